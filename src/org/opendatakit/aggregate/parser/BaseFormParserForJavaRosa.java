@@ -310,8 +310,13 @@ public class BaseFormParserForJavaRosa implements Serializable {
     }
   }
 
-  private static synchronized final XFormParserWithBindEnhancements parseFormDefinition(String xml,
-                                                                                        BaseFormParserForJavaRosa parser) throws ODKIncompleteSubmissionData {
+  /**
+   * Not synchronized: once {@link #initializeJavaRosa()} has registered the
+   * JavaRosa modules, its global state is only read, and each parse works on
+   * its own document and XFormParser, so forms can be parsed concurrently.
+   */
+  private static final XFormParserWithBindEnhancements parseFormDefinition(String xml,
+                                                                          BaseFormParserForJavaRosa parser) throws ODKIncompleteSubmissionData {
 
     StringReader isr = null;
     try {
@@ -486,6 +491,28 @@ public class BaseFormParserForJavaRosa implements Serializable {
     return null;
   }
 
+  /**
+   * Copy constructor, sharing the parsed form of another parser, which must
+   * not be one that has been deserialized.
+   */
+  protected BaseFormParserForJavaRosa(BaseFormParserForJavaRosa parsed) {
+    rootJavaRosaFormDef = parsed.rootJavaRosaFormDef;
+    rootElementDefn = parsed.rootElementDefn;
+    trueSubmissionElement = parsed.trueSubmissionElement;
+    submissionElement = parsed.submissionElement;
+    submissionElementDefn = parsed.submissionElementDefn;
+    base64RsaPublicKey = parsed.base64RsaPublicKey;
+    isFileEncryptedForm = parsed.isFileEncryptedForm;
+    isNotUploadableForm = parsed.isNotUploadableForm;
+    isInvalidFormXmlns = parsed.isInvalidFormXmlns;
+    title = parsed.title;
+    isFieldEncryptedForm = parsed.isFieldEncryptedForm;
+    base64EncryptedFieldRsaPublicKey = parsed.base64EncryptedFieldRsaPublicKey;
+    xml = parsed.xml;
+    stringLengths.putAll(parsed.stringLengths);
+    bindElements.addAll(parsed.bindElements);
+  }
+
   /**
    * Alternate constructor for internally comparing whether two form definitions
    * share the same data elements and storage models. This just parses the
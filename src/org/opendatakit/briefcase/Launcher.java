@@ -22,6 +22,7 @@ import static org.opendatakit.briefcase.operations.ClearPreferences.CLEAR_PREFS;
 import static org.opendatakit.briefcase.operations.Export.EXPORT_FORM;
 import static org.opendatakit.briefcase.operations.ImportFromODK.IMPORT_FROM_ODK;
 import static org.opendatakit.briefcase.operations.PullFormFromAggregate.PULL_FORM_FROM_AGGREGATE;
+import static org.opendatakit.briefcase.operations.Verify.VERIFY_FORM;
 import static org.opendatakit.briefcase.util.FindDirectoryStructure.getOsName;
 
 import io.sentry.Sentry;
@@ -49,6 +50,7 @@ public class Launcher {
         .register(PULL_FORM_FROM_AGGREGATE)
         .register(IMPORT_FROM_ODK)
         .register(EXPORT_FORM)
+        .register(VERIFY_FORM)
         .register(CLEAR_PREFS)
         .otherwise(() -> MainBriefcaseWindow.main(args))
         .run(args);
@@ -35,6 +35,7 @@ import org.opendatakit.briefcase.model.ExportSucceededEvent;
 import org.opendatakit.briefcase.model.ExportSucceededWithErrorsEvent;
 import org.opendatakit.briefcase.model.TerminationFuture;
 import org.opendatakit.briefcase.util.ErrorsOr;
+import org.opendatakit.briefcase.util.ExportToColumnar;
 import org.opendatakit.briefcase.util.ExportToCsv;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -95,6 +96,32 @@ public class ExportAction {
               configuration.mapEndDate((LocalDate ld) -> Date.from(ld.atStartOfDay(ZoneId.systemDefault()).toInstant())).orElse(null)
       );
     }
+    else if(configuration.getExportType().isPresent() && configuration.getExportType().get() == ExportType.STATA_BINARY){
+      // DTA - STATA binary format 118
+      action = new ExportToDta(
+              terminationFuture,
+              configuration.getExportDir().orElseThrow(() -> new RuntimeException("Export dir not present")).toFile(),
+              formDefinition,
+              formDefinition.getFormName(),
+              true,
+              false,
+              configuration.mapStartDate((LocalDate ld) -> Date.from(ld.atStartOfDay(ZoneId.systemDefault()).toInstant())).orElse(null),
+              configuration.mapEndDate((LocalDate ld) -> Date.from(ld.atStartOfDay(ZoneId.systemDefault()).toInstant())).orElse(null),
+              true
+      );
+    }
+    else if(configuration.getExportType().isPresent() && configuration.getExportType().get() == ExportType.COLUMNAR){
+      // typed columnar format
+      action = new ExportToColumnar(
+              terminationFuture,
+              configuration.getExportDir().orElseThrow(() -> new RuntimeException("Export dir not present")).toFile(),
+              formDefinition,
+              formDefinition.getFormName(),
+              true,
+              configuration.mapStartDate((LocalDate ld) -> Date.from(ld.atStartOfDay(ZoneId.systemDefault()).toInstant())).orElse(null),
+              configuration.mapEndDate((LocalDate ld) -> Date.from(ld.atStartOfDay(ZoneId.systemDefault()).toInstant())).orElse(null)
+      );
+    }
     else if(configuration.getExportType().isPresent() && configuration.getExportType().get() == ExportType.CSV){
       // CSV
       // 'overwrite' argument should be set to value of configuration.getOverwriteExistingFiles().get() instead of false by default.
@@ -42,7 +42,7 @@ public class BriefcaseFormDefinition implements IFormDefinition, Serializable {
   private final File formFolder;
   private final File revisedFormFile;
   private boolean needsMediaUpdate = false;
-  private JavaRosaParserWrapper formDefn;
+  private volatile JavaRosaParserWrapper formDefn;
   private PrivateKey privateKey = null;
 
   private static final String readFile(File formDefinitionFile) throws BadFormDefinition {
@@ -98,7 +98,7 @@ public class BriefcaseFormDefinition implements IFormDefinition, Serializable {
     File briefcaseFormDirectory;
     File briefcaseFormFile;
     try {
-      newDefn = new JavaRosaParserWrapper(tmpFormFile, readFile(tmpFormFile));
+      newDefn = JavaRosaParserWrapper.parse(tmpFormFile, readFile(tmpFormFile));
       briefcaseFormDirectory = FileSystemUtils.getFormDirectory(newDefn.getFormName());
       briefcaseFormFile = FileSystemUtils.getFormDefinitionFile(briefcaseFormDirectory);
     } catch (ODKIncompleteSubmissionData e) {
@@ -127,7 +127,7 @@ public class BriefcaseFormDefinition implements IFormDefinition, Serializable {
     try {
       if (revised.exists()) {
         revisedXml = readFile(revised);
-        revisedDefn = new JavaRosaParserWrapper(revised, revisedXml);
+        revisedDefn = JavaRosaParserWrapper.parse(revised, revisedXml);
       }
 
       if (!briefcaseFormFile.exists()) {
@@ -155,11 +155,11 @@ public class BriefcaseFormDefinition implements IFormDefinition, Serializable {
           }
         }
         needsMediaUpdate = !revised.exists(); // weird if it does...
-        existingDefn = new JavaRosaParserWrapper(briefcaseFormFile, readFile(briefcaseFormFile));
+        existingDefn = JavaRosaParserWrapper.parse(briefcaseFormFile, readFile(briefcaseFormFile));
       } else {
         // get the current existing definition...
         String existingXml = readFile(briefcaseFormFile);
-        existingDefn = new JavaRosaParserWrapper(briefcaseFormFile, existingXml);
+        existingDefn = JavaRosaParserWrapper.parse(briefcaseFormFile, existingXml);
         String existingTitle = existingDefn.getFormName();
 
         // compare the two
@@ -203,7 +203,7 @@ public class BriefcaseFormDefinition implements IFormDefinition, Serializable {
               }
               needsMediaUpdate = true;
               // and re-parse the new revised file (since we just updated it...)
-              revisedDefn = new JavaRosaParserWrapper(revised, readFile(revised));
+              revisedDefn = JavaRosaParserWrapper.parse(revised, readFile(revised));
             } else if (result == DifferenceResult.XFORMS_IDENTICAL) {
               // confirm that the media is up-to-date when the forms are
               // identical
@@ -247,7 +247,7 @@ public class BriefcaseFormDefinition implements IFormDefinition, Serializable {
             needsMediaUpdate = true;
             // and re-parse the new form file (since we just updated it...)
             existingXml = readFile(briefcaseFormFile);
-            existingDefn = new JavaRosaParserWrapper(briefcaseFormFile, existingXml);
+            existingDefn = JavaRosaParserWrapper.parse(briefcaseFormFile, existingXml);
           }
         } else if (result == DifferenceResult.XFORMS_IDENTICAL) {
           // if a revised form exists, we assume the media is up-to-date in that
@@ -297,10 +297,10 @@ public class BriefcaseFormDefinition implements IFormDefinition, Serializable {
     try {
       if (revised.exists()) {
         revisedFormFile = revised;
-        formDefn = new JavaRosaParserWrapper(revisedFormFile, readFile(revisedFormFile));
+        formDefn = JavaRosaParserWrapper.parse(revisedFormFile, readFile(revisedFormFile));
       } else {
         revisedFormFile = null;
-        formDefn = new JavaRosaParserWrapper(formFile, readFile(formFile));
+        formDefn = JavaRosaParserWrapper.parse(formFile, readFile(formFile));
       }
     } catch (ODKIncompleteSubmissionData e) {
       throw new BadFormDefinition(e, e.getReason());
@@ -370,17 +370,29 @@ public class BriefcaseFormDefinition implements IFormDefinition, Serializable {
     return formDefn.isFileEncryptedForm();
   }
 
+  /**
+   * Returns the submission element of the form. Definitions parsed from the
+   * same form xml share it, so it must not be modified.
+   */
   public TreeElement getSubmissionElement() {
-    TreeElement treeElement = formDefn.getSubmissionElement();
-    if (treeElement == null && formDefn.getFormDefinitionFile() != null) {
+    return getParsedFormDefn().getSubmissionElement();
+  }
+
+  /**
+   * The JavaRosa form is transient: definitions read from the form cache
+   * only carry the metadata of the form, and the form file is parsed again
+   * the first time the form itself is needed.
+   */
+  private synchronized JavaRosaParserWrapper getParsedFormDefn() {
+    if (formDefn.getFormDefn() == null && formDefn.getFormDefinitionFile() != null) {
       File formFile = formDefn.getFormDefinitionFile();
       try {
-        formDefn = new JavaRosaParserWrapper(formFile, readFile(formFile));
+        formDefn = JavaRosaParserWrapper.parse(formFile, readFile(formFile));
       } catch (ODKIncompleteSubmissionData | BadFormDefinition e) {
         e.printStackTrace();
       }
     }
-    return formDefn.getSubmissionElement();
+    return formDefn;
   }
 
   public void setPrivateKey(PrivateKey privateKey) {
@@ -419,7 +431,11 @@ public class BriefcaseFormDefinition implements IFormDefinition, Serializable {
     return id.hashCode() + 3 * (versionString == null ? -123121 : versionString.hashCode());
   }
 
+  /**
+   * Returns the JavaRosa form. Definitions parsed from the same form xml
+   * share it, so it must not be modified.
+   */
   public FormDef getFormDefn(){
-    return formDefn.getFormDefn();
+    return getParsedFormDefn().getFormDefn();
   }
 }
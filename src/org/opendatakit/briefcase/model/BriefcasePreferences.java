@@ -46,6 +46,11 @@ public class BriefcasePreferences {
   private static final String BRIEFCASE_PROXY_HOST_PROPERTY = "briefcaseProxyHost";
   private static final String BRIEFCASE_PROXY_PORT_PROPERTY = "briefcaseProxyPort";
   private static final String BRIEFCASE_PARALLEL_PULLS_PROPERTY = "briefcaseParallelPulls";
+  private static final String BRIEFCASE_PARALLEL_PUSHES_PROPERTY = "briefcaseParallelPushes";
+  private static final String BRIEFCASE_PULL_CHUNK_SIZE_PROPERTY = "briefcasePullChunkSize";
+  private static final String BRIEFCASE_MEDIA_STORE_PROPERTY = "briefcaseMediaStore";
+  private static final String BRIEFCASE_LINK_EXPORT_MEDIA_PROPERTY = "briefcaseLinkExportMedia";
+  private static final int DEFAULT_PULL_CHUNK_SIZE = 100;
   private static final String BRIEFCASE_TRACKING_CONSENT_PROPERTY = "briefcaseTrackingConsent";
   private static final String BRIEFCASE_STORE_PASSWORDS_CONSENT_PROPERTY = "briefcaseStorePasswordsConsent";
   private static final String BRIEFCASE_UNIQUE_USER_ID_PROPERTY = "uniqueUserID";
@@ -193,6 +198,79 @@ public class BriefcasePreferences {
     );
   }
 
+  public static void setBriefcaseParallelPushesProperty(Boolean value) {
+    if (value == null) {
+      Preference.APPLICATION_SCOPED.remove(BRIEFCASE_PARALLEL_PUSHES_PROPERTY);
+    } else {
+      Preference.APPLICATION_SCOPED.put(BRIEFCASE_PARALLEL_PUSHES_PROPERTY, value.toString());
+    }
+  }
+
+  public static Boolean getBriefcaseParallelPushesProperty() {
+    return Boolean.valueOf(
+        Preference.APPLICATION_SCOPED.get(BRIEFCASE_PARALLEL_PUSHES_PROPERTY, Boolean.FALSE.toString())
+    );
+  }
+
+  public static void setBriefcaseMediaStoreProperty(Boolean value) {
+    if (value == null) {
+      Preference.APPLICATION_SCOPED.remove(BRIEFCASE_MEDIA_STORE_PROPERTY);
+    } else {
+      Preference.APPLICATION_SCOPED.put(BRIEFCASE_MEDIA_STORE_PROPERTY, value.toString());
+    }
+  }
+
+  /**
+   * Whether pulled media files are kept once per content in a store under
+   * the briefcase folder, and linked from there into the instances.
+   */
+  public static Boolean getBriefcaseMediaStoreProperty() {
+    return Boolean.valueOf(
+        Preference.APPLICATION_SCOPED.get(BRIEFCASE_MEDIA_STORE_PROPERTY, Boolean.FALSE.toString())
+    );
+  }
+
+  public static void setBriefcaseLinkExportMediaProperty(Boolean value) {
+    if (value == null) {
+      Preference.APPLICATION_SCOPED.remove(BRIEFCASE_LINK_EXPORT_MEDIA_PROPERTY);
+    } else {
+      Preference.APPLICATION_SCOPED.put(BRIEFCASE_LINK_EXPORT_MEDIA_PROPERTY, value.toString());
+    }
+  }
+
+  /**
+   * Whether exports hard-link media files from the storage directory instead
+   * of copying them, when they are on the same volume.
+   */
+  public static Boolean getBriefcaseLinkExportMediaProperty() {
+    return Boolean.valueOf(
+        Preference.APPLICATION_SCOPED.get(BRIEFCASE_LINK_EXPORT_MEDIA_PROPERTY, Boolean.FALSE.toString())
+    );
+  }
+
+  public static void setBriefcasePullChunkSizeProperty(Integer value) {
+    if (value == null) {
+      Preference.APPLICATION_SCOPED.remove(BRIEFCASE_PULL_CHUNK_SIZE_PROPERTY);
+    } else {
+      Preference.APPLICATION_SCOPED.put(BRIEFCASE_PULL_CHUNK_SIZE_PROPERTY, value.toString());
+    }
+  }
+
+  /**
+   * Get the number of submissions requested on each page of the submission
+   * list of an Aggregate server, both when pulling and when checking which
+   * submissions a push can skip.
+   */
+  public static int getBriefcasePullChunkSizeProperty() {
+    try {
+      int value = Integer.parseInt(Preference.APPLICATION_SCOPED.get(
+          BRIEFCASE_PULL_CHUNK_SIZE_PROPERTY, Integer.toString(DEFAULT_PULL_CHUNK_SIZE)));
+      return value > 0 ? value : DEFAULT_PULL_CHUNK_SIZE;
+    } catch (NumberFormatException e) {
+      return DEFAULT_PULL_CHUNK_SIZE;
+    }
+  }
+
   /**
    * Enum that implements the strategies, to create differently scoped preferences.
    */
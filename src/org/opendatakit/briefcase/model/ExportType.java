@@ -18,7 +18,7 @@ package org.opendatakit.briefcase.model;
 import java.util.stream.Stream;
 
 public enum ExportType {
-    CSV(".csv and media files"),STATA(".xml stata type and media files"); // CSV, dta output types
+    CSV(".csv and media files"),STATA(".xml stata type and media files"),STATA_BINARY(".dta stata binary and media files"),COLUMNAR(".odkc typed columnar and media files"); // CSV, dta output types
 
     private String displayString;
 
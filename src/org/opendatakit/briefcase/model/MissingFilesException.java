@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.model;
+
+/**
+ * Thrown when some of the files listed in the manifest of an encrypted
+ * submission are not in its instance directory.
+ */
+public class MissingFilesException extends FileSystemException {
+
+  private static final long serialVersionUID = -2461753043125853206L;
+
+  public MissingFilesException(String message) {
+    super(message);
+  }
+}
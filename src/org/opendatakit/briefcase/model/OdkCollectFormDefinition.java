@@ -60,7 +60,7 @@ public class OdkCollectFormDefinition implements IFormDefinition {
       throw new BadFormDefinition("Form directory does not contain form");
     }
     try {
-      formDefn = new JavaRosaParserWrapper(formFile, readFile(formFile));
+      formDefn = JavaRosaParserWrapper.parse(formFile, readFile(formFile));
     } catch (ODKIncompleteSubmissionData e) {
       throw new BadFormDefinition(e, e.getReason());
     }
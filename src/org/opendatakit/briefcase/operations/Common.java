@@ -16,6 +16,8 @@
 package org.opendatakit.briefcase.operations;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import org.opendatakit.briefcase.model.BriefcasePreferences;
 import org.opendatakit.briefcase.ui.StorageLocation;
 import org.opendatakit.briefcase.util.FileSystemUtils;
@@ -28,6 +30,7 @@ class Common {
 
   static final Param<String> STORAGE_DIR = Param.arg("sd", "storage_directory", "Briefcase storage directory");
   static final Param<String> FORM_ID = Param.arg("id", "form_id", "Form ID");
+  static final Param<Path> PEM_FILE = Param.arg("pf", "pem_file", "PEM file for form decryption", Paths::get);
 
   static void bootCache(String storageDir) {
     BriefcasePreferences.setBriefcaseDirectoryProperty(storageDir);
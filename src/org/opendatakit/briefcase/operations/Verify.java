@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.briefcase.operations;
+
+import static org.opendatakit.briefcase.operations.Common.FORM_ID;
+import static org.opendatakit.briefcase.operations.Common.PEM_FILE;
+import static org.opendatakit.briefcase.operations.Common.STORAGE_DIR;
+import static org.opendatakit.briefcase.operations.Common.bootCache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Optional;
+import org.opendatakit.briefcase.export.ExportAction;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.TerminationFuture;
+import org.opendatakit.briefcase.reused.BriefcaseException;
+import org.opendatakit.briefcase.util.ErrorsOr;
+import org.opendatakit.briefcase.util.FileSystemUtils;
+import org.opendatakit.briefcase.util.SubmissionVerifier;
+import org.opendatakit.briefcase.util.VerificationReport;
+import org.opendatakit.common.cli.Operation;
+import org.opendatakit.common.cli.Param;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class Verify {
+  private static final Logger log = LoggerFactory.getLogger(Verify.class);
+  private static final Param<Void> VERIFY = Param.flag("vf", "verify", "Verify the submissions of a form");
+  private static final Param<Path> REPORT_FILE = Param.arg("vr", "verify_report", "CSV report of the submissions that failed verification", Paths::get);
+
+  public static Operation VERIFY_FORM = Operation.of(
+      VERIFY,
+      args -> verify(
+          args.get(STORAGE_DIR),
+          args.get(FORM_ID),
+          args.get(REPORT_FILE),
+          args.getOptional(PEM_FILE)
+      ),
+      Arrays.asList(STORAGE_DIR, FORM_ID, REPORT_FILE),
+      Arrays.asList(PEM_FILE)
+  );
+
+  public static void verify(String storageDir, String formid, Path reportFile, Optional<Path> maybePemFile) {
+    CliEventsCompanion.attach(log);
+    bootCache(storageDir);
+    BriefcaseFormDefinition formDefinition = FileSystemUtils.getBriefcaseFormList().stream()
+        .filter(form -> form.getFormId().equals(formid))
+        .findFirst()
+        .orElseThrow(() -> new FormNotFoundException(formid));
+
+    if (formDefinition.isFileEncryptedForm() || formDefinition.isFieldEncryptedForm()) {
+      Path pemFile = maybePemFile
+          .filter(Files::exists)
+          .orElseThrow(() -> new BriefcaseException("Missing pem file configuration"));
+      ErrorsOr<PrivateKey> privateKey = ExportAction.readPemFile(pemFile);
+      if (!privateKey.getErrors().isEmpty())
+        throw new BriefcaseException(String.join(" ", privateKey.getErrors()));
+      formDefinition.setPrivateKey(privateKey.get());
+    }
+
+    System.out.println("Verifying form " + formDefinition.getFormName() + " (" + formDefinition.getFormId() + ")");
+    VerificationReport report;
+    try {
+      report = SubmissionVerifier.verify(formDefinition, new TerminationFuture());
+    } catch (FileSystemException e) {
+      throw new BriefcaseException("Unable to access instances directory of form");
+    }
+
+    try {
+      report.write(reportFile);
+    } catch (IOException e) {
+      log.error("Error writing verification report", e);
+      throw new BriefcaseException("Can't write the verification report to " + reportFile);
+    }
+    log.info(report.getSummary());
+    System.out.println(report.getSummary());
+  }
+}
@@ -12,7 +12,7 @@ import javax.swing.text.NumberFormatter;
 public class JIntegerSpinner extends JSpinner {
 
   public JIntegerSpinner(int value, int min, int max, int step) {
-    super (new SpinnerNumberModel(8080, 0, 65535, 1));
+    super (new SpinnerNumberModel(value, min, max, step));
     JFormattedTextField txt = ((JSpinner.NumberEditor) this.getEditor()).getTextField();
     NumberFormatter formatter = (NumberFormatter)txt.getFormatter();
     formatter.setFormat(new DecimalFormat("#####"));
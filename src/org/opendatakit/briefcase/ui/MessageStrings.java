@@ -72,6 +72,10 @@ public class MessageStrings {
       "If you are behind a proxy, try setting up your proxy details through 'Settings' tab.";
 
   public static final String PARALLEL_PULLS = "Pull submissions in parallel (experimental)";
+  public static final String PARALLEL_PUSHES = "Push submissions in parallel (experimental)";
+  public static final String PULL_CHUNK_SIZE = "Submissions per request to Aggregate when pulling and pushing";
+  public static final String MEDIA_STORE = "Keep one copy of identical media files when pulling";
+  public static final String LINK_EXPORT_MEDIA = "Link media files into exports instead of copying them";
   static final String TRACKING_CONSENT_EXPLANATION =
           "Please help the ODK Community of volunteers and our mission to build software that\n" +
           "better meets your needs. We use third-party analytics tools to gather anonymous\n" +
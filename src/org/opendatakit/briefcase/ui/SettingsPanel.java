@@ -32,6 +32,10 @@ public class SettingsPanel extends JPanel {
   private final JTextField txtHost = new JTextField();
   private final JSpinner spinPort = new JIntegerSpinner(8080, 0, 65535, 1);
   private final JCheckBox chkParallel = new JCheckBox(MessageStrings.PARALLEL_PULLS);
+  private final JCheckBox chkParallelPush = new JCheckBox(MessageStrings.PARALLEL_PUSHES);
+  private final JSpinner spinChunkSize = new JIntegerSpinner(BriefcasePreferences.getBriefcasePullChunkSizeProperty(), 1, 10000, 10);
+  private final JCheckBox chkMediaStore = new JCheckBox(MessageStrings.MEDIA_STORE);
+  private final JCheckBox chkLinkExportMedia = new JCheckBox(MessageStrings.LINK_EXPORT_MEDIA);
   private final JCheckBox chkTrackingConsent = new JCheckBox(MessageStrings.TRACKING_CONSENT);
   private final JCheckBox chkStorePasswordsConsent = new JCheckBox("Remember passwords (unencrypted)");
 
@@ -88,6 +92,21 @@ public class SettingsPanel extends JPanel {
     chkParallel.setSelected(BriefcasePreferences.getBriefcaseParallelPullsProperty());
     chkParallel.addActionListener(new ParallelPullToggleListener());
 
+    chkParallelPush.setSelected(BriefcasePreferences.getBriefcaseParallelPushesProperty());
+    chkParallelPush.addActionListener(__ ->
+        BriefcasePreferences.setBriefcaseParallelPushesProperty(chkParallelPush.isSelected()));
+
+    spinChunkSize.addChangeListener(__ ->
+        BriefcasePreferences.setBriefcasePullChunkSizeProperty(((Number) spinChunkSize.getValue()).intValue()));
+
+    chkMediaStore.setSelected(BriefcasePreferences.getBriefcaseMediaStoreProperty());
+    chkMediaStore.addActionListener(__ ->
+        BriefcasePreferences.setBriefcaseMediaStoreProperty(chkMediaStore.isSelected()));
+
+    chkLinkExportMedia.setSelected(BriefcasePreferences.getBriefcaseLinkExportMediaProperty());
+    chkLinkExportMedia.addActionListener(__ ->
+        BriefcasePreferences.setBriefcaseLinkExportMediaProperty(chkLinkExportMedia.isSelected()));
+
     chkTrackingConsent.setSelected(BriefcasePreferences.getBriefcaseTrackingConsentProperty());
     chkTrackingConsent.addActionListener(__ -> {
       analytics.enableTracking(chkTrackingConsent.isSelected(), false);
@@ -107,6 +126,7 @@ public class SettingsPanel extends JPanel {
     final JLabel lblBriefcaseDir = new JLabel(MessageStrings.BRIEFCASE_STORAGE_LOCATION);
     final JLabel lblHost = new JLabel(MessageStrings.PROXY_HOST);
     final JLabel lblPort = new JLabel(MessageStrings.PROXY_PORT);
+    final JLabel lblChunkSize = new JLabel(MessageStrings.PULL_CHUNK_SIZE);
 
     lblBriefcaseDir.setText("Storage Location");
 
@@ -127,6 +147,13 @@ public class SettingsPanel extends JPanel {
                         .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                             .addComponent(chkProxy)
                             .addComponent(chkParallel)
+                            .addComponent(chkParallelPush)
+                            .addGroup(layout.createSequentialGroup()
+                                .addComponent(lblChunkSize)
+                                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                                .addComponent(spinChunkSize, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                            .addComponent(chkMediaStore)
+                            .addComponent(chkLinkExportMedia)
                             .addComponent(chkStorePasswordsConsent)
                             .addComponent(chkTrackingConsent)
                             .addGroup(layout.createSequentialGroup()
@@ -154,6 +181,16 @@ public class SettingsPanel extends JPanel {
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(chkParallel)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(chkParallelPush)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(lblChunkSize)
+                    .addComponent(spinChunkSize, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(chkMediaStore)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(chkLinkExportMedia)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(chkStorePasswordsConsent)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(chkTrackingConsent)
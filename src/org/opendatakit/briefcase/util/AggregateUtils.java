@@ -16,18 +16,29 @@
 
 package org.opendatakit.briefcase.util;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.util.List;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -69,6 +80,31 @@ public class AggregateUtils {
 
   private static final String FETCH_FAILED_DETAILED_REASON = "Fetch of %1$s failed. Detailed reason: ";
 
+  private static final String PART_FILE_EXTENSION = ".part";
+
+  private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Tells whether a partial response starts at the given offset, going by
+   * its "Content-Range: bytes start-end/total" header.
+   */
+  private static boolean isRangeFrom(HttpResponse response, long offset) {
+    Header contentRange = response.getFirstHeader("Content-Range");
+    if (contentRange == null)
+      return false;
+    String value = contentRange.getValue().trim();
+    if (!value.startsWith("bytes "))
+      return false;
+    int dashIndex = value.indexOf('-');
+    if (dashIndex == -1)
+      return false;
+    try {
+      return Long.parseLong(value.substring("bytes ".length(), dashIndex).trim()) == offset;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
   public static interface ResponseAction {
     void doAction(DocumentFetchResult result) throws MetadataUpdateException;
   }
@@ -96,6 +132,22 @@ public class AggregateUtils {
    * @throws TransmissionException
    */
   public static final void commonDownloadFile(ServerConnectionInfo serverInfo, File f, String downloadUrl) throws URISyntaxException, IOException, TransmissionException {
+    commonDownloadFile(serverInfo, f, downloadUrl, null);
+  }
+
+  /**
+   * Downloads a document from the downloadUrl into the file 'f'.
+   * <p>
+   * The contents are written to a hidden '.part' file next to 'f', which is
+   * moved over 'f' only once it is complete and, when expectedMd5 is given,
+   * its md5 hash matches. Being hidden, it is skipped by pushes and exports
+   * like other dot-files. When a download with a known hash is interrupted, the
+   * '.part' file is kept and the next attempt resumes it with a range
+   * request.
+   *
+   * @param expectedMd5 hex md5 hash of the document, or null when unknown
+   */
+  public static final void commonDownloadFile(ServerConnectionInfo serverInfo, File f, String downloadUrl, String expectedMd5) throws URISyntaxException, IOException, TransmissionException {
 
     // OK. We need to download it because we either:
     // (1) don't have it
@@ -110,27 +162,42 @@ public class AggregateUtils {
       throw e;
     }
 
+    File partFile = new File(f.getParentFile(), "." + f.getName() + PART_FILE_EXTENSION);
+    // a partial download can only be trusted if the result can be verified
+    if (expectedMd5 == null && partFile.exists() && !partFile.delete())
+      throw new IOException("Unable to remove partial download " + partFile.getAbsolutePath());
+
     HttpClient httpclient = WebUtils.createHttpClient();
 
     // get shared HttpContext so that authentication and cookies are retained.
     HttpClientContext localContext = WebUtils.getHttpContext();
 
-    // set up request...
-    HttpGet req = WebUtils.createOpenRosaHttpGet(u);
-
     WebUtils.setCredentials(localContext, serverInfo, u);
 
-    HttpResponse response = null;
-    // try
-    {
-      response = httpclient.execute(req, localContext);
+    boolean rangeRejected = false;
+    while (true) {
+      // set up request...
+      HttpGet req = WebUtils.createOpenRosaHttpGet(u);
+      long offset = partFile.exists() ? partFile.length() : 0;
+      if (offset > 0)
+        req.setHeader("Range", "bytes=" + offset + "-");
+
+      HttpResponse response = httpclient.execute(req, localContext);
       int statusCode = response.getStatusLine().getStatusCode();
 
-      if (statusCode == 401) {
+      if ((statusCode == 416 && offset > 0 || statusCode == 206 && !isRangeFrom(response, offset)) && !rangeRejected) {
+        // the partial file doesn't fit the document anymore, or the server
+        // sent some other range: start over
+        flushEntityBytes(response.getEntity());
+        rangeRejected = true;
+        if (partFile.exists() && !partFile.delete())
+          throw new IOException("Unable to remove partial download " + partFile.getAbsolutePath());
+        continue;
+      } else if (statusCode == 401) {
         // We reset the Http context to force next request to authenticate itself
         WebUtils.resetHttpContext();
         throw new TransmissionException("Authentication failure");
-      } else if (statusCode != 200) {
+      } else if (statusCode != 200 && (statusCode != 206 || !isRangeFrom(response, offset))) {
         String errMsg = String.format(FETCH_FAILED_DETAILED_REASON, f.getAbsolutePath())
             + response.getStatusLine().getReasonPhrase() + " (" + statusCode + ")";
         log.error(errMsg);
@@ -138,17 +205,49 @@ public class AggregateUtils {
         throw new TransmissionException(errMsg);
       }
 
+      // a 200 response means the server ignored the range and sent the whole document
+      boolean resume = statusCode == 206;
+      HttpEntity entity = response.getEntity();
+      long expectedSize = entity.getContentLength() < 0 ? -1 : (resume ? offset : 0) + entity.getContentLength();
+
       // write connection to file
+      try (ReadableByteChannel in = Channels.newChannel(entity.getContent());
+           FileChannel out = resume
+               ? FileChannel.open(partFile.toPath(), WRITE, APPEND)
+               : FileChannel.open(partFile.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DOWNLOAD_BUFFER_SIZE);
+        while (in.read(buffer) != -1) {
+          buffer.flip();
+          while (buffer.hasRemaining())
+            out.write(buffer);
+          buffer.clear();
+        }
+        out.force(false);
+      }
 
-      try (InputStream is = response.getEntity().getContent();
-           OutputStream os = new FileOutputStream(f)) {
-        byte buf[] = new byte[1024];
-        int len;
-        while ((len = is.read(buf)) > 0) {
-          os.write(buf, 0, len);
+      if (expectedSize >= 0 && partFile.length() != expectedSize) {
+        String errMsg = String.format(FETCH_FAILED_DETAILED_REASON, f.getAbsolutePath())
+            + "expected " + expectedSize + " bytes but got " + partFile.length();
+        log.error(errMsg);
+        throw new TransmissionException(errMsg);
+      }
+      if (expectedMd5 != null) {
+        String md5 = FileSystemUtils.getMd5Hash(partFile);
+        if (md5 == null || !md5.equalsIgnoreCase(expectedMd5)) {
+          partFile.delete();
+          String errMsg = String.format(FETCH_FAILED_DETAILED_REASON, f.getAbsolutePath())
+              + "the md5 hash of the downloaded file doesn't match the one given by the server";
+          log.error(errMsg);
+          throw new TransmissionException(errMsg);
         }
-        os.flush();
       }
+
+      try {
+        Files.move(partFile.toPath(), f.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(partFile.toPath(), f.toPath(), REPLACE_EXISTING);
+      }
+      return;
     }
   }
 
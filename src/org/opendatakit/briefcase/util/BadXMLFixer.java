@@ -66,6 +66,18 @@ public final class BadXMLFixer {
     }
   }
 
+  public static Document fixBadXML(byte[] xml, String name) throws CannotFixXMLException {
+    log.warn("Trying to fix the submission " + name);
+
+    try {
+      String fixedXML = fixXML(new String(xml, ENCODING));
+      return XmlManipulationUtils.parseXml(fixedXML.getBytes(ENCODING), name);
+    } catch (IOException | ParsingException | FileSystemException e) {
+      log.error(e.getMessage(), e);
+      throw new CannotFixXMLException("Cannot fix " + name, e);
+    }
+  }
+
   protected static String fixXML(String originalXML) throws CannotFixXMLException {
     // try to find the name of the root element, that is the formId
     int startIndex = XML_HEADER.length() + 1;
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the worker threads of the background pools, named
+ * briefcase-&lt;name&gt;-&lt;pool&gt;-thread-&lt;thread&gt;. They run at the
+ * lowest priority, to keep the UI responsive, and don't keep the application
+ * from exiting.
+ */
+class BriefcaseThreadFactory implements ThreadFactory {
+  private static final AtomicInteger poolNumber = new AtomicInteger(1);
+  private final AtomicInteger threadNumber = new AtomicInteger(1);
+  private final String namePrefix;
+
+  /**
+   * @param name what the threads of the pool do, like "pull" or "export"
+   */
+  BriefcaseThreadFactory(String name) {
+    namePrefix = "briefcase-" + name + "-" + poolNumber.getAndIncrement() + "-thread-";
+  }
+
+  @Override
+  public Thread newThread(Runnable r) {
+    Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.setDaemon(true);
+    return t;
+  }
+}
@@ -38,22 +38,27 @@ import org.slf4j.LoggerFactory;
 public final class CipherFactory {
 
   private static final Logger log = LoggerFactory.getLogger(CipherFactory.class);
-  private static final String SYMMETRIC_ALGORITHM = "AES/CFB/PKCS5Padding";
   private static final int IV_BYTE_LENGTH = 16;
 
+  private final CryptoContext cryptoContext;
   private final String instanceId;
   private final SecretKeySpec symmetricKey;
   private final byte[] ivSeedArray;
   private int ivCounter = 0;
 
   public CipherFactory(String instanceId, byte[] symmetricKeyBytes) throws CryptoException {
+    this(new CryptoContext(null), instanceId, symmetricKeyBytes);
+  }
+
+  CipherFactory(CryptoContext cryptoContext, String instanceId, byte[] symmetricKeyBytes) throws CryptoException {
 
+    this.cryptoContext = cryptoContext;
     this.instanceId = instanceId;
-    symmetricKey = new SecretKeySpec(symmetricKeyBytes, SYMMETRIC_ALGORITHM);
+    symmetricKey = new SecretKeySpec(symmetricKeyBytes, CryptoContext.SYMMETRIC_ALGORITHM);
     // construct the fixed portion of the iv -- the ivSeedArray
     // this is the md5 hash of the instanceID and the symmetric key
     try {
-      MessageDigest md = MessageDigest.getInstance("MD5");
+      MessageDigest md = cryptoContext.getMd5();
       md.update(instanceId.getBytes("UTF-8"));
       md.update(symmetricKeyBytes);
       byte[] messageDigest = md.digest();
@@ -73,16 +78,13 @@ public final class CipherFactory {
     ++ivSeedArray[ivCounter % ivSeedArray.length];
     ++ivCounter;
     IvParameterSpec baseIv = new IvParameterSpec(ivSeedArray);
-    Cipher c = Cipher.getInstance(SYMMETRIC_ALGORITHM);
-
-    c.init(Cipher.DECRYPT_MODE, symmetricKey, baseIv);
-    return c;
+    return cryptoContext.getSymmetricCipher(symmetricKey, baseIv);
   }
 
   public Cipher getCipher(String context, String fieldName) throws InvalidKeyException,
       InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException,
       UnsupportedEncodingException {
-    MessageDigest md = MessageDigest.getInstance("MD5");
+    MessageDigest md = cryptoContext.getMd5();
     md.update(instanceId.getBytes("UTF-8"));
     md.update(symmetricKey.getEncoded());
     md.update(fieldName.getBytes("UTF-8"));
@@ -91,9 +93,6 @@ public final class CipherFactory {
       ivSeedArray[i] = messageDigest[(i % messageDigest.length)];
     }
     IvParameterSpec baseIv = new IvParameterSpec(ivSeedArray);
-    Cipher c = Cipher.getInstance(SYMMETRIC_ALGORITHM);
-
-    c.init(Cipher.DECRYPT_MODE, symmetricKey, baseIv);
-    return c;
+    return cryptoContext.getSymmetricCipher(symmetricKey, baseIv);
   }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a self-describing columnar file, loosely modeled after Parquet.
+ * <p>
+ * Rows are buffered in row groups of a fixed number of rows. Each row group
+ * is written as one chunk per column, so that readers can load single
+ * columns without scanning the whole file. The schema and the location of
+ * every chunk go in a footer at the end of the file:
+ * <pre>
+ * file      := "ODKC" version:u8 chunk* footer footerLength:i32 "ODKC"
+ * footer    := columnCount:varint (name:string type:u8 encoding:u8)*
+ *              rowGroupCount:varint (rowCount:varint (offset:i64 length:i64)*)*
+ * chunk     := presence:bitmap[rowCount] values
+ * string    := length:varint utf8
+ * </pre>
+ * Numbers are little-endian. Only present values are written:
+ * i64 for INT64 and TIMESTAMP (epoch millis), IEEE 754 double for DOUBLE,
+ * i32 for DATE (days since epoch), u8 for BOOLEAN, and strings for
+ * STRING. DICTIONARY encoded columns start with their dictionary
+ * (entryCount:varint string*) followed by a varint index per value.
+ * <p>
+ * The README documents the layout in full for loaders in other tools. Keep
+ * it up to date when changing the format, and bump the version.
+ */
+class ColumnarFileWriter implements Closeable {
+  private static final byte[] MAGIC = "ODKC".getBytes(US_ASCII);
+  private static final int VERSION = 1;
+
+  enum ColumnType {
+    STRING, INT64, DOUBLE, BOOLEAN, DATE, TIMESTAMP
+  }
+
+  enum Encoding {
+    PLAIN, DICTIONARY
+  }
+
+  static class Column {
+    final String name;
+    final ColumnType type;
+    final Encoding encoding;
+
+    Column(String name, ColumnType type, Encoding encoding) {
+      this.name = name;
+      this.type = type;
+      this.encoding = encoding;
+    }
+  }
+
+  private final List<Column> columns;
+  private final int rowGroupSize;
+  private final FileChannel channel;
+  private final List<ColumnBuffer> buffers = new ArrayList<>();
+  private final List<Integer> rowGroupRows = new ArrayList<>();
+  private final List<long[]> chunkOffsets = new ArrayList<>();
+  private final List<long[]> chunkLengths = new ArrayList<>();
+  private long position = 0;
+  private int rows = 0;
+
+  ColumnarFileWriter(File file, List<Column> columns, int rowGroupSize) throws IOException {
+    this.columns = columns;
+    this.rowGroupSize = rowGroupSize;
+    for (Column column : columns)
+      buffers.add(new ColumnBuffer(column));
+    channel = FileChannel.open(file.toPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    header.write(MAGIC);
+    header.write(VERSION);
+    write(header.toByteArray());
+  }
+
+  List<Column> getColumns() {
+    return columns;
+  }
+
+  /**
+   * Adds a row. Values are given in column order, with the Java type of
+   * their column: String, Long, Double, Boolean, Integer (DATE) or Long
+   * (TIMESTAMP). Nulls are allowed in every column.
+   */
+  void writeRow(List<Object> values) throws IOException {
+    if (values.size() != columns.size())
+      throw new IllegalArgumentException("Expected " + columns.size() + " values but got " + values.size());
+    for (int i = 0; i < values.size(); i++)
+      buffers.get(i).add(values.get(i));
+    rows++;
+    if (rows == rowGroupSize)
+      flushRowGroup();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (rows > 0 || rowGroupRows.isEmpty())
+        flushRowGroup();
+
+      ByteArrayOutputStream footer = new ByteArrayOutputStream();
+      writeVarint(footer, columns.size());
+      for (Column column : columns) {
+        writeString(footer, column.name);
+        footer.write(column.type.ordinal());
+        footer.write(column.encoding.ordinal());
+      }
+      writeVarint(footer, rowGroupRows.size());
+      for (int g = 0; g < rowGroupRows.size(); g++) {
+        writeVarint(footer, rowGroupRows.get(g));
+        for (int c = 0; c < columns.size(); c++) {
+          writeLong(footer, chunkOffsets.get(g)[c]);
+          writeLong(footer, chunkLengths.get(g)[c]);
+        }
+      }
+      byte[] footerBytes = footer.toByteArray();
+      write(footerBytes);
+
+      ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+      writeInt(trailer, footerBytes.length);
+      trailer.write(MAGIC);
+      write(trailer.toByteArray());
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void flushRowGroup() throws IOException {
+    long[] offsets = new long[columns.size()];
+    long[] lengths = new long[columns.size()];
+    for (int c = 0; c < buffers.size(); c++) {
+      byte[] chunk = buffers.get(c).toChunk(rows);
+      offsets[c] = position;
+      lengths[c] = chunk.length;
+      write(chunk);
+      buffers.get(c).reset();
+    }
+    rowGroupRows.add(rows);
+    chunkOffsets.add(offsets);
+    chunkLengths.add(lengths);
+    rows = 0;
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    position += bytes.length;
+  }
+
+  private static class ColumnBuffer {
+    private final Column column;
+    private final BitSet present = new BitSet();
+    private final ByteArrayOutputStream values = new ByteArrayOutputStream();
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final List<String> dictionaryEntries = new ArrayList<>();
+    private int row = 0;
+
+    ColumnBuffer(Column column) {
+      this.column = column;
+    }
+
+    void add(Object value) {
+      if (value != null) {
+        present.set(row);
+        switch (column.type) {
+          case INT64:
+          case TIMESTAMP:
+            writeLong(values, (Long) value);
+            break;
+          case DOUBLE:
+            writeLong(values, Double.doubleToLongBits((Double) value));
+            break;
+          case BOOLEAN:
+            values.write((Boolean) value ? 1 : 0);
+            break;
+          case DATE:
+            writeInt(values, (Integer) value);
+            break;
+          case STRING:
+          default:
+            if (column.encoding == Encoding.DICTIONARY) {
+              Integer index = dictionary.get(value);
+              if (index == null) {
+                index = dictionaryEntries.size();
+                dictionary.put((String) value, index);
+                dictionaryEntries.add((String) value);
+              }
+              writeVarint(values, index);
+            } else {
+              writeString(values, (String) value);
+            }
+        }
+      }
+      row++;
+    }
+
+    byte[] toChunk(int rows) {
+      ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+      byte[] bitmap = new byte[(rows + 7) / 8];
+      byte[] set = present.toByteArray();
+      System.arraycopy(set, 0, bitmap, 0, Math.min(set.length, bitmap.length));
+      chunk.write(bitmap, 0, bitmap.length);
+      if (column.encoding == Encoding.DICTIONARY) {
+        writeVarint(chunk, dictionaryEntries.size());
+        for (String entry : dictionaryEntries)
+          writeString(chunk, entry);
+      }
+      byte[] bytes = values.toByteArray();
+      chunk.write(bytes, 0, bytes.length);
+      return chunk.toByteArray();
+    }
+
+    void reset() {
+      present.clear();
+      values.reset();
+      dictionary.clear();
+      dictionaryEntries.clear();
+      row = 0;
+    }
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(UTF_8);
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    for (int i = 0; i < 4; i++)
+      out.write((value >>> (8 * i)) & 0xFF);
+  }
+
+  private static void writeLong(ByteArrayOutputStream out, long value) {
+    for (int i = 0; i < 8; i++)
+      out.write((int) ((value >>> (8 * i)) & 0xFF));
+  }
+}
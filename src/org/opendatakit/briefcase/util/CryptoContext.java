@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Crypto objects shared by all the submissions of an export.
+ * <p>
+ * Looking up a Cipher implementation and initializing the RSA cipher with
+ * the private key are far more expensive than the decryption itself, so
+ * each thread keeps one instance of every Cipher and MessageDigest it
+ * needs and reuses it for every submission, file and field.
+ * <p>
+ * Because of that, a Cipher returned by this class must be used before the
+ * next Cipher is requested on the same thread.
+ */
+final class CryptoContext {
+  static final String SYMMETRIC_ALGORITHM = "AES/CFB/PKCS5Padding";
+
+  private final PrivateKey rsaPrivateKey;
+  private final ThreadLocal<Cipher> rsaCiphers = new ThreadLocal<>();
+  private final ThreadLocal<Cipher> symmetricCiphers = new ThreadLocal<>();
+  private final ThreadLocal<MessageDigest> md5Digests = new ThreadLocal<>();
+
+  CryptoContext(PrivateKey rsaPrivateKey) {
+    this.rsaPrivateKey = rsaPrivateKey;
+  }
+
+  /**
+   * Decrypts a value encrypted with the public key of the form, like the
+   * symmetric key or the element signature of a submission.
+   */
+  byte[] rsaDecrypt(byte[] encrypted) throws NoSuchAlgorithmException, NoSuchPaddingException,
+      InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+    Cipher c = rsaCiphers.get();
+    if (c == null) {
+      c = Cipher.getInstance(FileSystemUtils.ASYMMETRIC_ALGORITHM);
+      c.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
+      rsaCiphers.set(c);
+    }
+    try {
+      // doFinal leaves the cipher ready for the next value
+      return c.doFinal(encrypted);
+    } catch (BadPaddingException | IllegalBlockSizeException | RuntimeException e) {
+      // don't trust the state of a cipher that failed
+      rsaCiphers.remove();
+      throw e;
+    }
+  }
+
+  Cipher getSymmetricCipher(SecretKeySpec key, IvParameterSpec iv) throws NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+    Cipher c = symmetricCiphers.get();
+    if (c == null) {
+      c = Cipher.getInstance(SYMMETRIC_ALGORITHM);
+      symmetricCiphers.set(c);
+    }
+    c.init(Cipher.DECRYPT_MODE, key, iv);
+    return c;
+  }
+
+  /**
+   * Returns the MD5 digest of the current thread, already reset.
+   */
+  MessageDigest getMd5() throws NoSuchAlgorithmException {
+    MessageDigest md = md5Digests.get();
+    if (md == null) {
+      md = MessageDigest.getInstance("MD5");
+      md5Digests.set(md);
+    }
+    md.reset();
+    return md;
+  }
+}
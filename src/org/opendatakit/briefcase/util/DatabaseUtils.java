@@ -29,8 +29,13 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import org.opendatakit.briefcase.model.FileSystemException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,22 +53,35 @@ public class DatabaseUtils {
   private static final String CREATE_DDL = "CREATE TABLE recorded_instance (instanceId varchar(256) primary key, directory varchar(4096))";
   private static final String ASSERT_SQL = "SELECT instanceId, directory FROM recorded_instance limit 1";
   private static final String SELECT_ALL_SQL = "SELECT instanceId, directory FROM recorded_instance";
-  private static final String SELECT_DIR_SQL = "SELECT directory FROM recorded_instance WHERE instanceId = ?";
   private static final String INSERT_DML = "INSERT INTO recorded_instance (instanceId, directory) VALUES(?,?)";
   private static final String DELETE_DML = "DELETE FROM recorded_instance WHERE instanceId = ?";
   private static final String RELATIVE_DML = "UPDATE recorded_instance set directory = regexp_replace(directory,'.*(" + INSTANCE_DIR + ")','$1')";
 
+  private static final int FLUSH_THRESHOLD = 100;
+  private static final long FLUSH_INTERVAL_MILLIS = 5000;
+
   final private File formDir;
   private Connection connection;
 
   private boolean hasRecordedInstanceTable = false;
-  private PreparedStatement getRecordedInstanceQuery = null;
-  private PreparedStatement insertRecordedInstanceQuery = null;
-  private PreparedStatement deleteRecordedInstanceQuery = null;
+
+  /**
+   * In-memory copy of the registry, mapping instanceIds to their directory
+   * relative to the form directory. Lookups only read this map.
+   */
+  private final ConcurrentMap<String, String> recordedInstances = new ConcurrentHashMap<>();
+
+  /**
+   * Changes not yet written to the database, in the order they were made.
+   * A null directory means the instance has to be forgotten.
+   */
+  private final Map<String, String> pendingChanges = new LinkedHashMap<>();
+  private long lastFlush = System.currentTimeMillis();
 
   public DatabaseUtils(File formDir) throws FileSystemException, SQLException {
     this.formDir = formDir;
     connect();
+    loadRecordedInstances();
   }
 
   public void connect() throws FileSystemException, SQLException {
@@ -73,20 +91,15 @@ public class DatabaseUtils {
   }
 
   public synchronized void close() throws SQLException {
-    if (getRecordedInstanceQuery != null) {
+    try {
+      flush();
+    } finally {
       try {
-        getRecordedInstanceQuery.close();
-      } catch (SQLException e) {
-        log.error("failed to close connection", e);
+        connection.close();
       } finally {
-        getRecordedInstanceQuery = null;
+        connection = null;
       }
     }
-    try {
-      connection.close();
-    } finally {
-      connection = null;
-    }
   }
 
   private void assertRecordedInstanceTable() throws SQLException {
@@ -107,6 +120,18 @@ public class DatabaseUtils {
     }
   }
 
+  private synchronized void loadRecordedInstances() throws SQLException {
+    assertRecordedInstanceTable();
+    try (Statement stmt = connection.createStatement();
+         ResultSet values = stmt.executeQuery(SELECT_ALL_SQL)) {
+      while (values.next()) {
+        if (recordedInstances.putIfAbsent(values.getString(1), values.getString(2)) != null) {
+          log.warn("Duplicate entries for instanceId: " + values.getString(1));
+        }
+      }
+    }
+  }
+
   private void makeRecordedInstanceDirsRelative(Connection c) throws SQLException {
     try (Statement stmt = c.createStatement()) {
       stmt.execute(RELATIVE_DML);
@@ -131,97 +156,131 @@ public class DatabaseUtils {
   }
 
   // recorded instances have known instanceIds
-  public synchronized void putRecordedInstanceDirectory(String instanceId, File instanceDir) {
-    try {
-      assertRecordedInstanceTable();
-
-      if (insertRecordedInstanceQuery == null) {
-        insertRecordedInstanceQuery =
-            connection.prepareStatement(INSERT_DML);
-      }
-
-      insertRecordedInstanceQuery.setString(1, instanceId);
-      insertRecordedInstanceQuery.setString(2, makeRelative(formDir, instanceDir).toString());
-
-      if (1 != insertRecordedInstanceQuery.executeUpdate()) {
-        throw new SQLException("Expected one row to be updated");
-      }
-    } catch (SQLException e) {
-      log.error("failed to record instance " + instanceId, e);
-    }
+  public void putRecordedInstanceDirectory(String instanceId, File instanceDir) {
+    String directory = makeRelative(formDir, instanceDir).toString();
+    recordedInstances.put(instanceId, directory);
+    recordChange(instanceId, directory);
   }
 
   // recorded instances have known instanceIds
   private void forgetRecordedInstance(String instanceId) {
-    try {
-      assertRecordedInstanceTable();
+    recordedInstances.remove(instanceId);
+    recordChange(instanceId, null);
+  }
 
-      if (deleteRecordedInstanceQuery == null) {
-        deleteRecordedInstanceQuery =
-            connection.prepareStatement(DELETE_DML);
+  /**
+   * Queues a change for the database, and writes the queued changes when
+   * there are enough of them or the last write is old enough.
+   */
+  private void recordChange(String instanceId, String directory) {
+    boolean flushNeeded;
+    synchronized (pendingChanges) {
+      // re-insert to keep the order of the latest change
+      pendingChanges.remove(instanceId);
+      pendingChanges.put(instanceId, directory);
+      flushNeeded = pendingChanges.size() >= FLUSH_THRESHOLD
+          || System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MILLIS;
+    }
+    if (flushNeeded) {
+      try {
+        flush();
+      } catch (SQLException e) {
+        log.error("failed to update instance registry", e);
       }
+    }
+  }
 
-      deleteRecordedInstanceQuery.setString(1, instanceId);
+  /**
+   * Writes the queued changes in a single transaction, as one batch of
+   * deletes followed by one batch of inserts.
+   */
+  public synchronized void flush() throws SQLException {
+    Map<String, String> changes;
+    synchronized (pendingChanges) {
+      lastFlush = System.currentTimeMillis();
+      if (pendingChanges.isEmpty())
+        return;
+      changes = new LinkedHashMap<>(pendingChanges);
+      pendingChanges.clear();
+    }
 
-      if (deleteRecordedInstanceQuery.executeUpdate() > 1) {
-        throw new SQLException("Expected one row to be deleted");
+    assertRecordedInstanceTable();
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try (PreparedStatement delete = connection.prepareStatement(DELETE_DML);
+         PreparedStatement insert = connection.prepareStatement(INSERT_DML)) {
+      for (Map.Entry<String, String> change : changes.entrySet()) {
+        delete.setString(1, change.getKey());
+        delete.addBatch();
+        if (change.getValue() != null) {
+          insert.setString(1, change.getKey());
+          insert.setString(2, change.getValue());
+          insert.addBatch();
+        }
       }
+      delete.executeBatch();
+      insert.executeBatch();
+      connection.commit();
     } catch (SQLException e) {
-      log.error("failed to forget instance " + instanceId, e);
+      connection.rollback();
+      // keep the changes for the next flush, unless they have been superseded
+      synchronized (pendingChanges) {
+        changes.forEach(pendingChanges::putIfAbsent);
+      }
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
     }
   }
 
   // ask whether we have the recorded instance in this briefcase
   // return null if we don't.
-  public synchronized File hasRecordedInstance(String instanceId) {
-    try {
-      assertRecordedInstanceTable();
-
-      if (getRecordedInstanceQuery == null) {
-        getRecordedInstanceQuery = connection.prepareStatement(SELECT_DIR_SQL);
-      }
+  public File hasRecordedInstance(String instanceId) {
+    String directory = recordedInstances.get(instanceId);
+    if (directory == null)
+      return null;
+    File f = new File(formDir, directory);
+    return (f.exists() && f.isDirectory()) ? f : null;
+  }
 
-      getRecordedInstanceQuery.setString(1, instanceId);
-      ResultSet values = getRecordedInstanceQuery.executeQuery();
-      File f = null;
-      while (values.next()) {
-        if (f != null) {
-          throw new SQLException("Duplicate entries for instanceId: " + instanceId);
-        }
-        f = new File(formDir, values.getString(1));
+  /**
+   * Returns the directories of the recorded instances among the given
+   * instanceIds, in a single pass over the smaller of the two sets. Unlike
+   * {@link #hasRecordedInstance(String)}, the directories are not checked
+   * on disk.
+   */
+  public Set<File> getRecordedInstanceDirectories(Set<String> instanceIds) {
+    Set<File> directories = new HashSet<>();
+    if (instanceIds.size() < recordedInstances.size()) {
+      for (String instanceId : instanceIds) {
+        String directory = recordedInstances.get(instanceId);
+        if (directory != null)
+          directories.add(new File(formDir, directory));
       }
-      return (f != null && f.exists() && f.isDirectory()) ? f : null;
-    } catch (SQLException e) {
-      if (log.isDebugEnabled()) {
-        log.debug("failed to find recorded instance " + instanceId, e);
-      }
-      return null;
+    } else {
+      recordedInstances.forEach((instanceId, directory) -> {
+        if (instanceIds.contains(instanceId))
+          directories.add(new File(formDir, directory));
+      });
     }
+    return directories;
   }
 
-  public synchronized void assertRecordedInstanceDirectory(String instanceId, File dir) {
-    forgetRecordedInstance(instanceId);
+  public void assertRecordedInstanceDirectory(String instanceId, File dir) {
+    // the queued change replaces any previous row of the instance
     putRecordedInstanceDirectory(instanceId, dir);
   }
 
-  public synchronized void updateInstanceLists(Set<File> instanceList) {
+  public void updateInstanceLists(Set<File> instanceList) {
     Set<File> workingSet = new TreeSet<>(instanceList);
-    // scan the database's reported set of directories and remove all that are not in the set
-    try (Statement stmt = connection.createStatement()) {
-      assertRecordedInstanceTable();
-      try (ResultSet values = stmt.executeQuery(SELECT_ALL_SQL)) {
-        while (values.next()) {
-          String instanceId = values.getString(1);
-          File f = new File(formDir, values.getString(2));
-          if (!f.exists() || !f.isDirectory()) {
-            forgetRecordedInstance(instanceId);
-          } else {
-            workingSet.remove(f);
-          }
-        }
+    // scan the registry's reported set of directories and remove all that are not in the set
+    for (Map.Entry<String, String> entry : recordedInstances.entrySet()) {
+      File f = new File(formDir, entry.getValue());
+      if (!f.exists() || !f.isDirectory()) {
+        forgetRecordedInstance(entry.getKey());
+      } else {
+        workingSet.remove(f);
       }
-    } catch (SQLException e) {
-      log.error("failure while pruning instance registry", e);
     }
   }
 
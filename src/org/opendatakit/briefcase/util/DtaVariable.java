@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+/**
+ * Descriptor of a variable in a Stata export table.
+ */
+class DtaVariable {
+  /**
+   * Full name of the variable in the form model, used as key of the
+   * descriptor maps in {@link ExportToDta}
+   */
+  final String fullName;
+  /**
+   * Name given to the variable in the Stata output
+   */
+  final String stataName;
+  /**
+   * Name used for the value labels of the variable
+   */
+  final String valueLabelName;
+  final String type;
+  final String format;
+  final String label;
+
+  DtaVariable(String fullName, String stataName, String valueLabelName, String type, String format, String label) {
+    this.fullName = fullName;
+    this.stataName = stataName;
+    this.valueLabelName = valueLabelName;
+    this.type = type;
+    this.format = format;
+    this.label = label;
+  }
+
+  boolean isString() {
+    return type.startsWith("str");
+  }
+}
@@ -37,16 +37,20 @@ public class EncryptionInformation {
   private CipherFactory cipherFactory;
 
   public EncryptionInformation(String base64EncryptedSymmetricKey, String instanceId, PrivateKey rsaPrivateKey) throws CryptoException {
+    this(base64EncryptedSymmetricKey, instanceId, new CryptoContext(rsaPrivateKey));
+  }
+
+  /**
+   * Uses the RSA and AES ciphers of an export wide CryptoContext instead of
+   * creating new ones for this submission.
+   */
+  EncryptionInformation(String base64EncryptedSymmetricKey, String instanceId, CryptoContext cryptoContext) throws CryptoException {
 
     try {
       // construct the base64-encoded RSA-encrypted symmetric key
-      Cipher pkCipher;
-      pkCipher = Cipher.getInstance(FileSystemUtils.ASYMMETRIC_ALGORITHM);
-      // write AES key
-      pkCipher.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
       byte[] encryptedSymmetricKey = Base64.decodeBase64(base64EncryptedSymmetricKey);
-      byte[] decryptedKey = pkCipher.doFinal(encryptedSymmetricKey);
-      cipherFactory = new CipherFactory(instanceId, decryptedKey);
+      byte[] decryptedKey = cryptoContext.rsaDecrypt(encryptedSymmetricKey);
+      cipherFactory = new CipherFactory(cryptoContext, instanceId, decryptedKey);
     } catch (NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException | InvalidKeyException
         | NoSuchPaddingException e) {
       String msg = "Error decrypting base64EncryptedKey";
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.FormatStyle;
+import java.util.Date;
+
+/**
+ * Formats the date, time and dateTime values of submissions for an export,
+ * the way {@link java.text.DateFormat}'s default instances do: medium style,
+ * in the default locale and time zone.
+ * <p>
+ * The formatters are immutable, so an export creates one instance when it
+ * starts and shares it between all its threads.
+ */
+final class ExportDateFormat {
+  private final DateTimeFormatter dateFormatter;
+  private final DateTimeFormatter timeFormatter;
+  private final DateTimeFormatter dateTimeFormatter;
+
+  ExportDateFormat() {
+    ZoneId zone = ZoneId.systemDefault();
+    dateFormatter = DateTimeFormatter.ofLocalizedDate(FormatStyle.MEDIUM).withZone(zone);
+    timeFormatter = DateTimeFormatter.ofLocalizedTime(FormatStyle.MEDIUM).withZone(zone);
+    dateTimeFormatter = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM).withZone(zone);
+  }
+
+  /**
+   * Formats the date of a value, as parsed by {@link WebUtils#parseDate(String)}.
+   * Returns null if the value is null or empty.
+   */
+  String formatDate(String value) {
+    return format(dateFormatter, value);
+  }
+
+  String formatTime(String value) {
+    return format(timeFormatter, value);
+  }
+
+  String formatDateTime(String value) {
+    return format(dateTimeFormatter, value);
+  }
+
+  String formatDateTime(Date date) {
+    return dateTimeFormatter.format(date.toInstant());
+  }
+
+  private static String format(DateTimeFormatter formatter, String value) {
+    if (value == null || value.isEmpty())
+      return null;
+    return formatter.format(WebUtils.parseDate(value).toInstant());
+  }
+}
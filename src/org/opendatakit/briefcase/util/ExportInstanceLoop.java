@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.bushe.swing.event.EventBus;
+import org.kxml2.kdom.Document;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.CryptoException;
+import org.opendatakit.briefcase.model.ExportProgressEvent;
+import org.opendatakit.briefcase.model.ExportProgressPercentageEvent;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.ParsingException;
+import org.opendatakit.briefcase.model.TerminationFuture;
+import org.opendatakit.briefcase.util.XmlManipulationUtils.FormInstanceMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Feeds the instances of a form to an export, one by one in submission date
+ * order. Shared by the exports that write one row per instance.
+ * <p>
+ * Instances are parsed and decrypted ahead by the export threads, while the
+ * calling thread hands them to the {@link InstanceWriter}. The window of
+ * instances in flight is bounded to keep memory and temp files in check.
+ * Instances out of the date range, already exported or that can't be
+ * decrypted are skipped, and the loop stops at the first instance that
+ * fails.
+ */
+final class ExportInstanceLoop {
+  private static final Logger log = LoggerFactory.getLogger(ExportInstanceLoop.class);
+
+  private static final int EXPORT_THREADS = Runtime.getRuntime().availableProcessors();
+
+  private final TerminationFuture terminationFuture;
+  private final BriefcaseFormDefinition briefcaseLfd;
+  private final File outputDir;
+  private final boolean exportMedia;
+  private final Date startDate;
+  private final Date endDate;
+  private final Set<String> exportedInstanceIds;
+  // one crypto context per run, so its ciphers are reused by every submission
+  private final CryptoContext cryptoContext;
+  private final SubmissionReader submissionReader;
+
+  private int totalFilesSkipped = 0;
+  private int totalInstances = 0;
+  private int processedInstances = 0;
+
+  /**
+   * @param outputDir           where the temp directories holding the
+   *                            decrypted files of encrypted forms go
+   * @param exportedInstanceIds IDs of the instances to skip because they
+   *                            were exported already
+   */
+  ExportInstanceLoop(TerminationFuture terminationFuture, BriefcaseFormDefinition briefcaseLfd, File outputDir, boolean exportMedia, Date startDate, Date endDate, Set<String> exportedInstanceIds) {
+    this.terminationFuture = terminationFuture;
+    this.briefcaseLfd = briefcaseLfd;
+    this.outputDir = outputDir;
+    this.exportMedia = exportMedia;
+    this.startDate = startDate;
+    this.endDate = endDate;
+    this.exportedInstanceIds = exportedInstanceIds;
+    this.cryptoContext = new CryptoContext(briefcaseLfd.getPrivateKey());
+    this.submissionReader = new SubmissionReader(briefcaseLfd.getSubmissionElement());
+  }
+
+  /**
+   * Hands every instance in the directory to the writer. Returns false if
+   * the export was cancelled or an instance failed.
+   */
+  boolean run(File instancesDir, InstanceWriter writer) {
+    File[] instances = sortBySubmissionDate(instancesDir.listFiles(file -> file.isDirectory()
+        && !file.getName().startsWith(".") // Mac OSX
+        && new File(file, "submission.xml").exists()));
+    totalInstances = instances.length;
+
+    boolean allSuccessful = true;
+    ExecutorService executor = Executors.newFixedThreadPool(EXPORT_THREADS, new BriefcaseThreadFactory("export"));
+    Deque<Future<ParsedInstance>> pending = new ArrayDeque<>();
+    int next = 0;
+    try {
+      while (allSuccessful) {
+        while (next < instances.length && pending.size() < EXPORT_THREADS * 2) {
+          File instanceDir = instances[next++];
+          pending.add(executor.submit(() -> parseInstance(instanceDir)));
+        }
+        if (pending.isEmpty())
+          break;
+        if (terminationFuture.isCancelled()) {
+          EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
+          allSuccessful = false;
+          break;
+        }
+        allSuccessful = writeInstance(awaitInstance(pending.poll()), writer);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
+      allSuccessful = false;
+    } finally {
+      discardPending(executor, pending);
+    }
+    return allSuccessful;
+  }
+
+  boolean noneSkipped() {
+    return totalFilesSkipped == 0 || totalInstances == 0;
+  }
+
+  boolean someSkipped() {
+    return totalInstances > 0 && totalFilesSkipped > 0 && totalFilesSkipped < totalInstances;
+  }
+
+  boolean allSkipped() {
+    return totalInstances > 0 && totalFilesSkipped == totalInstances;
+  }
+
+  /**
+   * Sorts the instances by the submission date. If no submission date, we
+   * assume it to be latest.
+   * <p>
+   * Each submission is scanned only once to read its date, and the sort runs
+   * over the extracted timestamps instead of re-parsing the files on every
+   * comparison.
+   */
+  static File[] sortBySubmissionDate(File[] instances) {
+    if (instances == null)
+      return new File[0];
+
+    long[] submissionDates = new long[instances.length];
+    Integer[] order = new Integer[instances.length];
+    for (int i = 0; i < instances.length; i++) {
+      order[i] = i;
+      submissionDates[i] = Long.MAX_VALUE;
+      try {
+        String submissionDate = XmlManipulationUtils.readSubmissionDate(new File(instances[i], "submission.xml"));
+        if (StringUtils.isNotEmptyNotNull(submissionDate))
+          submissionDates[i] = WebUtils.parseDate(submissionDate).getTime();
+      } catch (ParsingException | FileSystemException | IllegalArgumentException e) {
+        log.error("failed to read submission date of " + instances[i].getName(), e);
+      }
+    }
+
+    Arrays.sort(order, (i1, i2) -> Long.compare(submissionDates[i1], submissionDates[i2]));
+
+    File[] sorted = new File[instances.length];
+    for (int i = 0; i < order.length; i++)
+      sorted[i] = instances[order[i]];
+    return sorted;
+  }
+
+  /**
+   * Parses (and decrypts, when needed) one instance. This is the part of the
+   * export that doesn't touch the output files, which lets it run in any of
+   * the export threads.
+   */
+  private ParsedInstance parseInstance(File instanceDir) {
+    File submission = new File(instanceDir, "submission.xml");
+    if (!submission.exists() || !submission.isFile()) {
+      EventBus.publish(new ExportProgressEvent("Submission not found for instance directory: "
+          + instanceDir.getPath(), briefcaseLfd));
+      return ParsedInstance.done(instanceDir, false);
+    }
+
+    // parse the manifest if encrypted, or read the values of the
+    // submission straight from the file otherwise
+    Document manifest = null;
+    SubmissionReader.Group values = null;
+    boolean isValidated = false;
+
+    try {
+      if (briefcaseLfd.isFileEncryptedForm())
+        manifest = XmlManipulationUtils.parseXml(submission);
+      else
+        values = submissionReader.read(submission);
+    } catch (ParsingException | FileSystemException e) {
+      String msg = "Error parsing submission " + instanceDir.getName();
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
+      return ParsedInstance.done(instanceDir, false);
+    }
+
+    // extract the submissionDate, if present, from the attributes
+    // of the root element of the submission or submission manifest (if encrypted).
+    String submissionDateValue = (manifest != null)
+        ? manifest.getRootElement().getAttributeValue(null, "submissionDate")
+        : values.getAttribute("submissionDate");
+    Date submissionDate = null;
+    if (submissionDateValue != null && submissionDateValue.length() != 0) {
+      submissionDate = WebUtils.parseDate(submissionDateValue);
+
+      // just return true to skip records out of range
+      if (startDate != null && submissionDate.before(startDate)) {
+        log.info("Submission date is before specified, skipping: " + instanceDir.getName());
+        return ParsedInstance.done(instanceDir, true);
+      }
+      if (endDate != null && submissionDate.after(endDate)) {
+        log.info("Submission date is after specified, skipping: " + instanceDir.getName());
+        return ParsedInstance.done(instanceDir, true);
+      }
+    } else if (startDate != null || endDate != null) {
+      // don't export records without dates if either date is set
+      log.info("No submission date found, skipping: " + instanceDir.getName());
+      return ParsedInstance.done(instanceDir, true);
+    }
+
+    // skip instances written by previous exports before decrypting them
+    if (isExported(manifest, values)) {
+      log.info("Submission already exported, skipping: " + instanceDir.getName());
+      return ParsedInstance.done(instanceDir, true);
+    }
+
+    // If we are encrypted and exporting media, be sure the temporary
+    // directory that will hold the unencrypted files is created.
+    // If we are encrypted but not exporting media, the files are only
+    // decrypted in memory and there is no temporary directory.
+    // If we aren't encrypted, the temporary directory
+    // is the same as the instance directory.
+
+    File unEncryptedDir;
+    if (briefcaseLfd.isFileEncryptedForm() && !exportMedia) {
+      unEncryptedDir = null;
+    } else if (briefcaseLfd.isFileEncryptedForm()) {
+      // create the temp directory that will hold the unencrypted
+      // files. Do this in the outputDir so that the briefcase storage location
+      // can be a read-only network mount. issue 676.
+      Path path;
+      try {
+        path = Files.createTempDirectory(Paths.get(outputDir.toURI()), ".temp");
+      } catch (IOException e) {
+        String msg = "Unable to create temp directory.";
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + " Cause : "
+            + e.toString(), briefcaseLfd));
+        return ParsedInstance.done(instanceDir, false);
+      }
+
+      unEncryptedDir = path.toFile();
+
+    } else {
+      unEncryptedDir = instanceDir;
+    }
+
+    // Beyond this point, any failure must clean up the decrypted
+    // files. On success, they are removed after the instance is written.
+    boolean parsed = false;
+    try {
+
+      if (briefcaseLfd.isFileEncryptedForm()) {
+        // Decrypt the form and all its media files into the
+        // unEncryptedDir and validate the contents of all
+        // those files.
+        try {
+          FileSystemUtils.DecryptOutcome outcome =
+              FileSystemUtils.decryptAndValidateSubmission(manifest, cryptoContext,
+                  instanceDir, unEncryptedDir);
+          values = submissionReader.read(outcome.submission.getRootElement());
+          isValidated = outcome.isValidated;
+        } catch (ParsingException | CryptoException | FileSystemException e) {
+          //Was unable to parse file or decrypt file or a file system error occurred
+          //Hence skip this instance
+          EventBus.publish(new ExportProgressEvent("Error decrypting submission "
+              + instanceDir.getName() + " Cause: " + e.toString() + " skipping....", briefcaseLfd));
+
+          log.info("Error decrypting submission "
+              + instanceDir.getName() + " Cause: " + e.toString());
+
+          return ParsedInstance.skipped(instanceDir);
+        }
+      }
+
+      String instanceId = null;
+      String base64EncryptedFieldKey = null;
+      // find an instanceId to use...
+      try {
+        FormInstanceMetadata sim = SubmissionReader.getFormInstanceMetadata(values);
+        instanceId = sim.instanceId;
+        base64EncryptedFieldKey = sim.base64EncryptedFieldKey;
+      } catch (ParsingException e) {
+        String msg = "Could not extract metadata from submission: " + submission.getAbsolutePath();
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
+        return ParsedInstance.done(instanceDir, false);
+      }
+
+      if (instanceId == null || instanceId.length() == 0) {
+        // if we have no instanceID, and there isn't any in the file,
+        // use the checksum as the id.
+        // NOTE: encrypted submissions always have instanceIDs.
+        // This is for legacy non-OpenRosa forms.
+        long checksum;
+        try {
+          checksum = FileUtils.checksumCRC32(submission);
+        } catch (IOException e1) {
+          String msg = "Failed during computing of crc";
+          log.error(msg, e1);
+          EventBus.publish(new ExportProgressEvent(msg + ": " + e1.getMessage(), briefcaseLfd));
+          return ParsedInstance.done(instanceDir, false);
+        }
+        instanceId = "crc32:" + Long.toString(checksum);
+      }
+
+      if (exportedInstanceIds.contains(instanceId)) {
+        log.info("Submission already exported, skipping: " + instanceDir.getName());
+        return ParsedInstance.done(instanceDir, true);
+      }
+
+      EncryptionInformation ei = null;
+      if (base64EncryptedFieldKey != null) {
+        try {
+          ei = new EncryptionInformation(base64EncryptedFieldKey, instanceId, cryptoContext);
+        } catch (CryptoException e) {
+          String msg = "Error establishing field decryption for submission " + instanceDir.getName();
+          log.error(msg, e);
+          EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
+          return ParsedInstance.done(instanceDir, false);
+        }
+      }
+
+      parsed = true;
+      return new ParsedInstance(instanceDir, true, false, values, submissionDate, isValidated, instanceId, ei, unEncryptedDir);
+    } finally {
+      if (!parsed)
+        deleteDecryptedFiles(unEncryptedDir);
+    }
+  }
+
+  private boolean isExported(Document manifest, SubmissionReader.Group values) {
+    if (exportedInstanceIds.isEmpty())
+      return false;
+    try {
+      String instanceId = (manifest != null)
+          ? XmlManipulationUtils.getFormInstanceMetadata(manifest.getRootElement()).instanceId
+          : SubmissionReader.getFormInstanceMetadata(values).instanceId;
+      return instanceId != null && exportedInstanceIds.contains(instanceId);
+    } catch (ParsingException e) {
+      // the instanceId will be resolved later on
+      return false;
+    }
+  }
+
+  /**
+   * Hands a parsed instance to the writer. This is only called from the
+   * thread running the loop, in submission date order.
+   */
+  private boolean writeInstance(ParsedInstance instance, InstanceWriter writer) {
+    processedInstances++;
+
+    EventBus.publish(new ExportProgressEvent("Processing instance: " + instance.instanceDir.getName(), briefcaseLfd));
+    EventBus.publish(new ExportProgressPercentageEvent((processedInstances * 100.0) / totalInstances, briefcaseLfd));
+
+    if (instance.skipped)
+      totalFilesSkipped++;
+    if (instance.values == null)
+      return instance.success;
+
+    try {
+      boolean written = writer.write(instance);
+      if (written && briefcaseLfd.isFileEncryptedForm() && !instance.isValidated) {
+        EventBus.publish(new ExportProgressEvent("Decrypted submission "
+            + instance.instanceDir.getName() + " may be missing attachments and could not be validated.", briefcaseLfd));
+      }
+      return written;
+    } finally {
+      if (!deleteDecryptedFiles(instance.unEncryptedDir))
+        return false;
+    }
+  }
+
+  private static ParsedInstance awaitInstance(Future<ParsedInstance> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Stops the export threads and removes the decrypted files of any
+   * instance that was parsed but not written.
+   */
+  private void discardPending(ExecutorService executor, Deque<Future<ParsedInstance>> pending) {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Future<ParsedInstance> future : pending) {
+      if (future.isDone() && !future.isCancelled()) {
+        try {
+          ParsedInstance instance = future.get();
+          if (instance.values != null)
+            deleteDecryptedFiles(instance.unEncryptedDir);
+        } catch (InterruptedException | ExecutionException e) {
+          // nothing to clean up
+        }
+      }
+    }
+  }
+
+  private boolean deleteDecryptedFiles(File unEncryptedDir) {
+    if (briefcaseLfd.isFileEncryptedForm() && unEncryptedDir != null) {
+      // destroy the temp directory and its contents...
+      try {
+        FileUtils.deleteDirectory(unEncryptedDir);
+      } catch (IOException e) {
+        String msg = "Unable to remove decrypted files";
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the rows of an instance. Returns false if they couldn't be
+   * written, which stops the export.
+   */
+  interface InstanceWriter {
+    boolean write(ParsedInstance instance);
+  }
+
+  /**
+   * Outcome of {@link #parseInstance(File)}. When there are no values, the
+   * instance has nothing to write and success holds the result for it.
+   */
+  static final class ParsedInstance {
+    final File instanceDir;
+    final boolean success;
+    final boolean skipped;
+    final SubmissionReader.Group values;
+    /** Null when the submission has no date */
+    final Date submissionDate;
+    final boolean isValidated;
+    final String instanceId;
+    final EncryptionInformation ei;
+    /** Where the media files of the instance are, null if they weren't decrypted */
+    final File unEncryptedDir;
+
+    private ParsedInstance(File instanceDir, boolean success, boolean skipped, SubmissionReader.Group values, Date submissionDate, boolean isValidated, String instanceId, EncryptionInformation ei, File unEncryptedDir) {
+      this.instanceDir = instanceDir;
+      this.success = success;
+      this.skipped = skipped;
+      this.values = values;
+      this.submissionDate = submissionDate;
+      this.isValidated = isValidated;
+      this.instanceId = instanceId;
+      this.ei = ei;
+      this.unEncryptedDir = unEncryptedDir;
+    }
+
+    static ParsedInstance done(File instanceDir, boolean success) {
+      return new ParsedInstance(instanceDir, success, false, null, null, false, null, null, null);
+    }
+
+    static ParsedInstance skipped(File instanceDir) {
+      return new ParsedInstance(instanceDir, true, true, null, null, false, null, null, null);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The media directory of an export. Attachments go in under their own
+ * name, or with a -2, -3... suffix when a different file already has it,
+ * and files that are already there aren't exported again.
+ * <p>
+ * The directory is listed once, when the export starts. Candidates are told
+ * apart by size first, so that only files that might be identical get
+ * hashed, and each of them only once.
+ * <p>
+ * Files can be hard-linked instead of copied, when the export is on the
+ * same volume as the storage directory, which takes no time and no space.
+ * Editing an exported file in place then also changes the stored one.
+ */
+final class ExportMediaDir {
+  private final File dir;
+  private final boolean link;
+  // size of each file of the directory, by name
+  private final Map<String, Long> sizes = new HashMap<>();
+  private final Map<String, String> hashes = new HashMap<>();
+
+  ExportMediaDir(File dir, boolean link) {
+    this.dir = dir;
+    this.link = link;
+    File[] files = dir.listFiles(File::isFile);
+    if (files != null)
+      for (File file : files)
+        sizes.put(file.getName(), file.length());
+  }
+
+  /**
+   * Exports an attachment, and returns the name it has in the media
+   * directory.
+   */
+  String export(File binaryFile) throws IOException {
+    String binaryFilename = binaryFile.getName();
+    if (!binaryFile.exists())
+      return binaryFilename;
+
+    int dotIndex = binaryFilename.lastIndexOf(".");
+    String namePart = (dotIndex == -1) ? binaryFilename : binaryFilename.substring(0, dotIndex);
+    String extPart = (dotIndex == -1) ? "" : binaryFilename.substring(dotIndex);
+
+    long size = binaryFile.length();
+    String binaryFileHash = null;
+    String destBinaryFilename = binaryFilename;
+    int version = 1;
+    while (sizes.containsKey(destBinaryFilename)) {
+      // check if the contents of the destFile and binaryFile are the same
+      // if yes, skip the export of such file
+      if (sizes.get(destBinaryFilename) == size) {
+        if (binaryFileHash == null)
+          binaryFileHash = FileSystemUtils.getMd5Hash(binaryFile);
+        String destFileHash = hashes.computeIfAbsent(destBinaryFilename,
+            name -> FileSystemUtils.getMd5Hash(new File(dir, name)));
+        if (binaryFileHash != null && binaryFileHash.equals(destFileHash))
+          return destBinaryFilename;
+      }
+      destBinaryFilename = namePart + "-" + (++version) + extPart;
+    }
+
+    File destFile = new File(dir, destBinaryFilename);
+    if (link)
+      FileSystemUtils.linkOrCopy(binaryFile.toPath(), destFile.toPath());
+    else
+      Files.copy(binaryFile.toPath(), destFile.toPath(), REPLACE_EXISTING, COPY_ATTRIBUTES);
+    sizes.put(destBinaryFilename, size);
+    if (binaryFileHash != null)
+      hashes.put(destBinaryFilename, binaryFileHash);
+    return destBinaryFilename;
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.instance.AbstractTreeElement;
+import org.javarosa.core.model.instance.TreeElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The fields of a form, compiled once per export from its TreeElement schema.
+ * <p>
+ * Exporters used to walk the schema for every submission, working out again
+ * the type, the column name, the xpath and the encryption of each field. The
+ * plan does that once: each output table (the submission and each repeat
+ * group) gets an index and the flat list of its fields, in column order, with
+ * everything the exporters need already resolved. Writing an instance is then
+ * a loop over those fields.
+ * <p>
+ * Plans are immutable, and can be shared between threads.
+ */
+final class ExportPlan {
+  private static final Logger log = LoggerFactory.getLogger(ExportPlan.class);
+
+  enum Kind {
+    /** A field written as it is */
+    VALUE,
+    DATE,
+    TIME,
+    DATE_TIME,
+    /** A field written as latitude, longitude, altitude and accuracy columns */
+    GEOPOINT,
+    /** A field holding the name of a media file */
+    BINARY,
+    /** A non-repeating group, whose fields go in the same table */
+    GROUP,
+    /** A repeat group, whose instances go in their own table */
+    REPEAT
+  }
+
+  static final class Field {
+    final TreeElement model;
+    final String name;
+    final Kind kind;
+    /** True for fields with field-level encryption */
+    final boolean encrypted;
+    /** Name of the column, relative to the table of the field */
+    final String fullName;
+    /** Xpath of the field, without indexes */
+    final String varName;
+    /** The fields of a {@link Kind#GROUP} */
+    final Field[] fields;
+    /** The table of a {@link Kind#REPEAT} */
+    final Table table;
+
+    private Field(TreeElement model, Kind kind, String fullName, Field[] fields, Table table) {
+      this.model = model;
+      this.name = model.getName();
+      this.kind = kind;
+      this.encrypted = JavaRosaParserWrapper.isEncryptedField(model);
+      this.fullName = fullName;
+      this.varName = model.getRef().toString().replaceAll("\\[(.*?)\\]", "");
+      this.fields = fields;
+      this.table = table;
+    }
+  }
+
+  static final class Table {
+    /** Position of the table in {@link ExportPlan#getTables()} */
+    final int index;
+    final TreeElement group;
+    final Field[] fields;
+
+    private Table(int index, TreeElement group, Field[] fields) {
+      this.index = index;
+      this.group = group;
+      this.fields = fields;
+    }
+  }
+
+  private final List<Table> tables;
+
+  private ExportPlan(List<Table> tables) {
+    this.tables = Collections.unmodifiableList(tables);
+  }
+
+  static ExportPlan compile(TreeElement submissionElement) {
+    List<Table> tables = new ArrayList<>();
+    compileTable(tables, submissionElement);
+    return new ExportPlan(tables);
+  }
+
+  private static Table compileTable(List<Table> tables, TreeElement group) {
+    // take the index before compiling the fields, so that a table comes
+    // before the tables of the repeat groups nested in it
+    int index = tables.size();
+    tables.add(null);
+    Table table = new Table(index, group, compileFields(tables, group, group));
+    tables.set(index, table);
+    return table;
+  }
+
+  private static Field[] compileFields(List<Table> tables, TreeElement primarySet, TreeElement treeElement) {
+    List<Field> fields = new ArrayList<>();
+    // TreeElement list has the begin and end tags for the nested groups.
+    // Swallow the end tag by looking to see if the prior and current
+    // field names are the same.
+    TreeElement prior = null;
+    for (int i = 0; i < treeElement.getNumChildren(); ++i) {
+      TreeElement current = (TreeElement) treeElement.getChildAt(i);
+      if (prior != null && prior.getName().equals(current.getName())) {
+        // it is the end-group tag... seems to happen with two adjacent repeat
+        // groups
+        log.info("repeating tag at " + i + " skipping " + current.getName());
+      } else {
+        String fullName = getFullName(current, primarySet);
+        switch (current.getDataType()) {
+          case Constants.DATATYPE_DATE:
+            fields.add(new Field(current, Kind.DATE, fullName, null, null));
+            break;
+          case Constants.DATATYPE_TIME:
+            fields.add(new Field(current, Kind.TIME, fullName, null, null));
+            break;
+          case Constants.DATATYPE_DATE_TIME:
+            fields.add(new Field(current, Kind.DATE_TIME, fullName, null, null));
+            break;
+          case Constants.DATATYPE_GEOPOINT:
+            fields.add(new Field(current, Kind.GEOPOINT, fullName, null, null));
+            break;
+          case Constants.DATATYPE_BINARY:
+            fields.add(new Field(current, Kind.BINARY, fullName, null, null));
+            break;
+          case Constants.DATATYPE_NULL:
+            // for nodes that have no data, or data type otherwise unknown
+            if (current.isRepeatable()) {
+              fields.add(new Field(current, Kind.REPEAT, fullName, null, compileTable(tables, current)));
+            } else if (current.getNumChildren() == 0) {
+              // assume fields that don't have children are string fields.
+              fields.add(new Field(current, Kind.VALUE, fullName, null, null));
+            } else {
+              fields.add(new Field(current, Kind.GROUP, fullName, compileFields(tables, primarySet, current), null));
+            }
+            break;
+          default:
+            fields.add(new Field(current, Kind.VALUE, fullName, null, null));
+            break;
+        }
+      }
+      prior = current;
+    }
+    return fields.toArray(new Field[0]);
+  }
+
+  private static String getFullName(AbstractTreeElement e, TreeElement group) {
+    List<String> names = new ArrayList<>();
+    while (e != null && e != group) {
+      names.add(e.getName());
+      e = e.getParent();
+    }
+    Collections.reverse(names);
+    return String.join("-", names);
+  }
+
+  /**
+   * Returns the submission table first, followed by the tables of the
+   * repeat groups in the order they appear in the form.
+   */
+  List<Table> getTables() {
+    return tables;
+  }
+
+  Table getRoot() {
+    return tables.get(0);
+  }
+}
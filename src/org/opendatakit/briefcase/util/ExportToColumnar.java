@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.BOOLEAN;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.DATE;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.DOUBLE;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.INT64;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.STRING;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.TIMESTAMP;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.NoSuchPaddingException;
+import org.apache.commons.codec.binary.Base64;
+import org.bushe.swing.event.EventBus;
+import org.javarosa.core.model.Constants;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.BriefcasePreferences;
+import org.opendatakit.briefcase.model.ExportProgressEvent;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.TerminationFuture;
+import org.opendatakit.briefcase.util.ColumnarFileWriter.Column;
+import org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType;
+import org.opendatakit.briefcase.util.ColumnarFileWriter.Encoding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports the submissions of a form to typed columnar files (see
+ * {@link ColumnarFileWriter}), with one file for the main table and one more
+ * for each repeat group, laid out like the csv export.
+ * <p>
+ * Column types come from the data types of the form model: integers,
+ * decimals, dates and date times get numeric columns, booleans get boolean
+ * columns and single choice questions get dictionary encoded string columns.
+ * Everything else is kept as strings.
+ */
+public class ExportToColumnar implements ITransformFormAction {
+
+  private static final String MEDIA_DIR = "media";
+
+  private static final String EXTENSION = ".odkc";
+
+  private static final int ROW_GROUP_SIZE = 10000;
+
+  private static final Logger log = LoggerFactory.getLogger(ExportToColumnar.class);
+
+  int invalidValues = 0;
+  // writer of each table of the plan, by table index
+  private ColumnarFileWriter[] writers = new ColumnarFileWriter[0];
+  private final TerminationFuture terminationFuture;
+  private final File outputDir;
+  private final BriefcaseFormDefinition briefcaseLfd;
+  private final String baseFilename;
+  private final boolean exportMedia;
+  private final Date startDate;
+  private final Date endDate;
+  private final File outputMediaDir;
+  private ExportInstanceLoop instanceLoop;
+  private ExportPlan plan;
+  private ExportMediaDir mediaDir;
+
+  public ExportToColumnar(TerminationFuture terminationFuture, File outputDir, BriefcaseFormDefinition briefcaseLfd, String baseFilename, boolean exportMedia, Date startDate, Date endDate) {
+    this.terminationFuture = terminationFuture;
+    this.outputDir = outputDir;
+    this.briefcaseLfd = briefcaseLfd;
+    this.baseFilename = baseFilename.endsWith(EXTENSION) ? baseFilename.substring(0, baseFilename.length() - EXTENSION.length()) : baseFilename;
+    this.exportMedia = exportMedia;
+    this.startDate = startDate;
+    this.endDate = endDate;
+    this.outputMediaDir = new File(outputDir, MEDIA_DIR);
+  }
+
+  @Override
+  public boolean doAction() {
+    if (exportMedia)
+      mediaDir = new ExportMediaDir(outputMediaDir, BriefcasePreferences.getBriefcaseLinkExportMediaProperty());
+    File instancesDir;
+    try {
+      instancesDir = FileSystemUtils.getFormInstancesDirectory(briefcaseLfd.getFormDirectory());
+    } catch (FileSystemException e) {
+      String msg = "Unable to access instances directory of form";
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
+      return false;
+    }
+
+    if (!outputDir.exists()) {
+      if (!outputDir.mkdir()) {
+        EventBus.publish(new ExportProgressEvent("Unable to create destination directory", briefcaseLfd));
+        return false;
+      }
+    }
+
+    plan = ExportPlan.compile(briefcaseLfd.getSubmissionElement());
+    if (!processFormDefinition()) {
+      return false;
+    }
+
+    instanceLoop = new ExportInstanceLoop(terminationFuture, briefcaseLfd, outputDir, exportMedia, startDate, endDate, Collections.emptySet());
+    boolean allSuccessful = instanceLoop.run(instancesDir, this::writeInstance);
+
+    allSuccessful = closeFiles() && allSuccessful;
+
+    if (invalidValues > 0) {
+      EventBus.publish(new ExportProgressEvent(invalidValues
+          + " values didn't match the type of their question and were exported as empty", briefcaseLfd));
+    }
+    return allSuccessful;
+  }
+
+  private boolean processFormDefinition() {
+    ExportPlan.Table submission = plan.getRoot();
+    writers = new ColumnarFileWriter[plan.getTables().size()];
+    File file = new File(outputDir, safeFilename(baseFilename) + EXTENSION);
+    try {
+      List<Column> columns = new ArrayList<>();
+      columns.add(new Column("SubmissionDate", TIMESTAMP, Encoding.PLAIN));
+      defineColumns(columns, submission.fields);
+      columns.add(new Column("KEY", STRING, Encoding.PLAIN));
+      if (briefcaseLfd.isFileEncryptedForm()) {
+        columns.add(new Column("isValidated", BOOLEAN, Encoding.PLAIN));
+      }
+      writers[submission.index] = new ColumnarFileWriter(file, columns, ROW_GROUP_SIZE);
+    } catch (IOException e) {
+      String msg = "Unable to create columnar file: " + file.getPath();
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
+      closeFiles();
+      return false;
+    }
+    return true;
+  }
+
+  private void processRepeatingGroupDefinition(ExportPlan.Field repeat) throws IOException {
+    String formName = baseFilename + "-" + repeat.fullName;
+    File file = new File(outputDir, safeFilename(formName) + EXTENSION);
+    List<Column> columns = new ArrayList<>();
+    defineColumns(columns, repeat.table.fields);
+    columns.add(new Column("PARENT_KEY", STRING, Encoding.PLAIN));
+    columns.add(new Column("KEY", STRING, Encoding.PLAIN));
+    columns.add(new Column("SET-OF-" + repeat.name, STRING, Encoding.PLAIN));
+    writers[repeat.table.index] = new ColumnarFileWriter(file, columns, ROW_GROUP_SIZE);
+  }
+
+  private boolean closeFiles() {
+    boolean success = true;
+    for (ColumnarFileWriter w : writers) {
+      if (w == null)
+        continue;
+      try {
+        w.close();
+      } catch (IOException e) {
+        String msg = "Failed writing columnar file";
+        log.error(msg, e);
+        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+        success = false;
+      }
+    }
+    Arrays.fill(writers, null);
+    return success;
+  }
+
+  /**
+   * Maps the data type of a question to the type of its column.
+   */
+  private static ColumnType getColumnType(ExportPlan.Field field) {
+    switch (field.model.getDataType()) {
+      case Constants.DATATYPE_INTEGER:
+        return INT64;
+      case Constants.DATATYPE_DECIMAL:
+        return DOUBLE;
+      case Constants.DATATYPE_DATE:
+        return DATE;
+      case Constants.DATATYPE_DATE_TIME:
+        return TIMESTAMP;
+      case Constants.DATATYPE_BOOLEAN:
+        return BOOLEAN;
+      default:
+        return STRING;
+    }
+  }
+
+  private void defineColumns(List<Column> columns, ExportPlan.Field[] fields) throws IOException {
+    for (ExportPlan.Field field : fields) {
+      switch (field.kind) {
+        case GEOPOINT:
+          columns.add(new Column(field.fullName + "-Latitude", DOUBLE, Encoding.PLAIN));
+          columns.add(new Column(field.fullName + "-Longitude", DOUBLE, Encoding.PLAIN));
+          columns.add(new Column(field.fullName + "-Altitude", DOUBLE, Encoding.PLAIN));
+          columns.add(new Column(field.fullName + "-Accuracy", DOUBLE, Encoding.PLAIN));
+          break;
+        case REPEAT:
+          columns.add(new Column("SET-OF-" + field.fullName, STRING, Encoding.PLAIN));
+          processRepeatingGroupDefinition(field);
+          break;
+        case GROUP:
+          defineColumns(columns, field.fields);
+          break;
+        default:
+          // single choice answers repeat a few values, which a dictionary stores once
+          Encoding encoding = field.model.getDataType() == Constants.DATATYPE_CHOICE ? Encoding.DICTIONARY : Encoding.PLAIN;
+          columns.add(new Column(field.fullName, getColumnType(field), encoding));
+          break;
+      }
+    }
+  }
+
+  private void emitSubmission(List<Object> row, EncryptionInformation ei, SubmissionReader.Group submissionGroup,
+                              ExportPlan.Field[] fields, String uniquePath, File instanceDir) throws IOException {
+    for (ExportPlan.Field field : fields) {
+      switch (field.kind) {
+        case GEOPOINT:
+          String compositeValue = getSubmissionValue(ei, field, getValue(submissionGroup, field));
+          String[] values = (compositeValue == null || compositeValue.trim().isEmpty())
+              ? new String[0]
+              : compositeValue.trim().split(" ");
+          for (int count = 0; count < 4; ++count)
+            row.add(count < values.length ? toValue(DOUBLE, values[count]) : null);
+          break;
+        case BINARY:
+          String binaryFilename = getSubmissionValue(ei, field, getValue(submissionGroup, field));
+          if (binaryFilename == null || binaryFilename.isEmpty()) {
+            row.add(null);
+          } else if (exportMedia) {
+            if (!outputMediaDir.exists() && !outputMediaDir.mkdir())
+              throw new IOException("Unable to create destination media directory");
+            row.add(MEDIA_DIR + File.separator + mediaDir.export(new File(instanceDir, binaryFilename)));
+          } else {
+            row.add(binaryFilename);
+          }
+          break;
+        case REPEAT:
+          List<SubmissionReader.Group> ecl = (submissionGroup == null)
+              ? Collections.emptyList() : submissionGroup.getGroups(field.name);
+          if (ecl.isEmpty()) {
+            row.add(null);
+          } else {
+            String uniqueGroupPath = uniquePath + "/" + field.fullName;
+            row.add(uniqueGroupPath);
+            emitRepeatingGroup(ei, ecl, field.table, uniquePath, uniqueGroupPath, instanceDir);
+          }
+          break;
+        case GROUP:
+          SubmissionReader.Group group = (submissionGroup == null) ? null : submissionGroup.getGroup(field.name);
+          emitSubmission(row, ei, group, field.fields, uniquePath, instanceDir);
+          break;
+        default:
+          String value = getSubmissionValue(ei, field, getValue(submissionGroup, field));
+          row.add(value == null ? null : toValue(getColumnType(field), value));
+          break;
+      }
+    }
+  }
+
+  private static String getValue(SubmissionReader.Group submissionGroup, ExportPlan.Field field) {
+    return (submissionGroup == null) ? null : submissionGroup.getValue(field.name);
+  }
+
+  private void emitRepeatingGroup(EncryptionInformation ei, List<SubmissionReader.Group> groupElementList, ExportPlan.Table table,
+                                  String uniqueParentPath, String uniqueGroupPath, File instanceDir)
+      throws IOException {
+    ColumnarFileWriter writer = writers[table.index];
+    int trueOrdinal = 1;
+    for (SubmissionReader.Group groupElement : groupElementList) {
+      String uniqueGroupInstancePath = uniqueGroupPath + "[" + trueOrdinal + "]";
+      List<Object> row = new ArrayList<>(writer.getColumns().size());
+      emitSubmission(row, ei, groupElement, table.fields, uniqueGroupInstancePath, instanceDir);
+      row.add(uniqueParentPath);
+      row.add(uniqueGroupInstancePath);
+      row.add(uniqueGroupPath);
+      writer.writeRow(row);
+      ++trueOrdinal;
+    }
+  }
+
+  /**
+   * Converts the text of an answer to the Java type of its column. Values
+   * that can't be converted are counted and exported as nulls.
+   */
+  private Object toValue(ColumnType type, String value) {
+    if (value == null || value.trim().isEmpty())
+      return type == STRING ? value : null;
+    String trimmed = value.trim();
+    try {
+      switch (type) {
+        case INT64:
+          return Long.parseLong(trimmed);
+        case DOUBLE:
+          return Double.parseDouble(trimmed);
+        case BOOLEAN:
+          if (trimmed.equals("true") || trimmed.equals("1"))
+            return true;
+          if (trimmed.equals("false") || trimmed.equals("0"))
+            return false;
+          break;
+        case DATE:
+          return (int) LocalDate.parse(trimmed.length() > 10 ? trimmed.substring(0, 10) : trimmed).toEpochDay();
+        case TIMESTAMP:
+          return WebUtils.parseDate(trimmed).getTime();
+        case STRING:
+        default:
+          return value;
+      }
+    } catch (IllegalArgumentException | DateTimeParseException e) {
+      // counted below
+    }
+    invalidValues++;
+    log.debug("unable to convert value " + value + " to " + type);
+    return null;
+  }
+
+  /**
+   * Writes the rows of a parsed instance into the columnar files. This is
+   * called from a single thread, in submission date order.
+   */
+  private boolean writeInstance(ExportInstanceLoop.ParsedInstance instance) {
+    try {
+      ColumnarFileWriter writer = writers[plan.getRoot().index];
+      List<Object> row = new ArrayList<>(writer.getColumns().size());
+      row.add((instance.submissionDate == null) ? null : instance.submissionDate.getTime());
+      emitSubmission(row, instance.ei, instance.values, plan.getRoot().fields,
+          instance.instanceId, instance.unEncryptedDir);
+      row.add(instance.instanceId);
+      if (briefcaseLfd.isFileEncryptedForm()) {
+        row.add(instance.isValidated);
+      }
+      writer.writeRow(row);
+      return true;
+    } catch (IOException e) {
+      String msg = "Failed writing columnar file";
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+      return false;
+    }
+  }
+
+  private String getSubmissionValue(EncryptionInformation ei, ExportPlan.Field field, String rawElement) {
+    if (rawElement == null) {
+      return null;
+    }
+
+    // Field-level encryption support -- experimental
+    if (field.encrypted) {
+      try {
+        Cipher c = ei.getCipher("field:" + field.name, field.name);
+        try (InputStreamReader isr = new InputStreamReader(new CipherInputStream(
+            new ByteArrayInputStream(Base64.decodeBase64(rawElement)), c), "UTF-8")) {
+          StringBuilder b = new StringBuilder();
+          int ch;
+          while ((ch = isr.read()) != -1) {
+            b.append((char) ch);
+          }
+          return b.toString();
+        }
+      } catch (IOException | InvalidKeyException | NoSuchPaddingException | NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+        log.debug(" element name: " + field.name + " exception: " + e, e);
+      }
+    }
+    return rawElement;
+  }
+
+  private String safeFilename(String name) {
+    return StringUtils.stripIllegalChars(name);
+  }
+
+  @Override
+  public BriefcaseFormDefinition getFormDefinition() {
+    return briefcaseLfd;
+  }
+
+  public boolean noneSkipped() {
+    return instanceLoop == null || instanceLoop.noneSkipped();
+  }
+
+  public boolean someSkipped() {
+    return instanceLoop != null && instanceLoop.someSkipped();
+  }
+
+  public boolean allSkipped() {
+    return instanceLoop != null && instanceLoop.allSkipped();
+  }
+}
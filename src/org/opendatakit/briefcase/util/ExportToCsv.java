@@ -24,44 +24,35 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.DateFormat;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.NoSuchPaddingException;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.FileUtils;
 import org.bushe.swing.event.EventBus;
-import org.javarosa.core.model.instance.AbstractTreeElement;
-import org.javarosa.core.model.instance.TreeElement;
-import org.kxml2.kdom.Document;
-import org.kxml2.kdom.Element;
-import org.kxml2.kdom.Node;
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
-import org.opendatakit.briefcase.model.CryptoException;
+import org.opendatakit.briefcase.model.BriefcasePreferences;
 import org.opendatakit.briefcase.model.ExportProgressEvent;
-import org.opendatakit.briefcase.model.ExportProgressPercentageEvent;
 import org.opendatakit.briefcase.model.ExportSucceededEvent;
 import org.opendatakit.briefcase.model.ExportSucceededWithErrorsEvent;
 import org.opendatakit.briefcase.model.FileSystemException;
-import org.opendatakit.briefcase.model.ParsingException;
 import org.opendatakit.briefcase.model.TerminationFuture;
 import org.opendatakit.briefcase.operations.ExportException;
-import org.opendatakit.briefcase.util.XmlManipulationUtils.FormInstanceMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -69,22 +60,30 @@ public class ExportToCsv implements ITransformFormAction {
 
   private static final String MEDIA_DIR = "media";
 
+  private static final String EXPORTED_INSTANCES_EXTENSION = ".exported";
+
+  // first line of the list of exported instances
+  private static final String LAYOUT_PREFIX = "#layout:";
+
   private static final Logger log = LoggerFactory.getLogger(ExportToCsv.class);
 
-  int totalFilesSkipped = 0;
-  int totalInstances = 0;
-  int processedInstances = 0;
-  private final Map<TreeElement, OutputStreamWriter> fileMap = new HashMap<>();
-  private final Map<String, String> fileHashMap = new HashMap<>();
+  // writer of each table of the plan, by table index
+  private OutputStreamWriter[] writers = new OutputStreamWriter[0];
+  private final Set<String> exportedInstanceIds = new HashSet<>();
+  private OutputStreamWriter exportedInstancesWriter;
   private final TerminationFuture terminationFuture;
   private final File outputDir;
   private final BriefcaseFormDefinition briefcaseLfd;
   private final String baseFilename;
   private final boolean exportMedia;
-  private final boolean overwrite;
+  private boolean overwrite;
   private final Date startDate;
   private final Date endDate;
   private final File outputMediaDir;
+  private ExportInstanceLoop instanceLoop;
+  private ExportPlan plan;
+  private ExportDateFormat dateFormat;
+  private ExportMediaDir mediaDir;
 
   public ExportToCsv(TerminationFuture terminationFuture, File outputDir, BriefcaseFormDefinition briefcaseLfd, String baseFilename, boolean exportMedia, boolean overwrite, Date startDate, Date endDate) {
     this.terminationFuture = terminationFuture;
@@ -106,7 +105,9 @@ public class ExportToCsv implements ITransformFormAction {
 
   @Override
   public boolean doAction() {
-    boolean allSuccessful = true;
+    dateFormat = new ExportDateFormat();
+    if (exportMedia)
+      mediaDir = new ExportMediaDir(outputMediaDir, BriefcasePreferences.getBriefcaseLinkExportMediaProperty());
     File instancesDir;
     try {
       instancesDir = FileSystemUtils.getFormInstancesDirectory(briefcaseLfd.getFormDirectory());
@@ -124,55 +125,36 @@ public class ExportToCsv implements ITransformFormAction {
       }
     }
 
+    plan = ExportPlan.compile(briefcaseLfd.getSubmissionElement());
+    String layout = getLayout();
+
+    if (!readExportedInstances(layout)) {
+      return false;
+    }
+
     if (!processFormDefinition()) {
       // weren't able to initialize the csv file...
       return false;
     }
 
-    File[] instances = instancesDir.listFiles(file -> file.isDirectory() && new File(file, "submission.xml").exists());
-    totalInstances = instances.length;
-
-    // Sorts the instances by the submission date. If no submission date, we
-    // assume it to be latest.
-    if (instances != null) {
-      Arrays.sort(instances, (f1, f2) ->
-        {
-          try {
-            if (f1.isDirectory() && f2.isDirectory()) {
-              File submission1 = new File(f1, "submission.xml");
-              String submissionDate1String = XmlManipulationUtils.parseXml(submission1).getRootElement()
-                  .getAttributeValue(null, "submissionDate");
-
-              File submission2 = new File(f2, "submission.xml");
-              String submissionDate2String = XmlManipulationUtils.parseXml(submission2).getRootElement()
-                  .getAttributeValue(null, "submissionDate");
-
-              Date submissionDate1 = StringUtils.isNotEmptyNotNull(submissionDate1String)
-                  ? WebUtils.parseDate(submissionDate1String) : new Date();
-              Date submissionDate2 = StringUtils.isNotEmptyNotNull(submissionDate2String)
-                  ? WebUtils.parseDate(submissionDate2String) : new Date();
-              return submissionDate1.compareTo(submissionDate2);
-            }
-          } catch (ParsingException | FileSystemException e) {
-            log.error("failed to sort submissions", e);
-          }
-          return 0;
-        });
-
+    try {
+      exportedInstancesWriter = new OutputStreamWriter(new FileOutputStream(getExportedInstancesFile(), !overwrite), "UTF-8");
+      if (overwrite)
+        exportedInstancesWriter.append(LAYOUT_PREFIX).append(layout).append("\n");
+    } catch (IOException e) {
+      String msg = "Unable to write the list of exported instances";
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
+      closeCsvFiles();
+      return false;
     }
 
-    for (File instanceDir : instances) {
-      if (terminationFuture.isCancelled()) {
-        EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
-        allSuccessful = false;
-        break;
-      }
-      if (instanceDir.getName().startsWith("."))
-        continue; // Mac OSX
-      allSuccessful = allSuccessful && processInstance(instanceDir);
-    }
+    instanceLoop = new ExportInstanceLoop(terminationFuture, briefcaseLfd, outputDir, exportMedia, startDate, endDate, exportedInstanceIds);
+    boolean allSuccessful = instanceLoop.run(instancesDir, this::writeInstance);
 
-    for (OutputStreamWriter w : fileMap.values()) {
+    for (OutputStreamWriter w : writers) {
+      if (w == null)
+        continue;
       try {
         w.flush();
         w.close();
@@ -184,98 +166,115 @@ public class ExportToCsv implements ITransformFormAction {
       }
     }
 
+    // the list goes last, so that it never mentions rows that didn't make it into the csv files
+    try {
+      exportedInstancesWriter.close();
+    } catch (IOException e) {
+      String msg = "Error flushing the list of exported instances";
+      EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
+      log.error(msg, e);
+      allSuccessful = false;
+    }
+
     return allSuccessful;
   }
 
-  private void emitString(OutputStreamWriter osw, boolean first, String string) throws IOException {
-    osw.append(first ? "" : ",");
-    if (string == null)
-      return;
-    if (string.length() == 0 || string.contains("\n") || string.contains("\"")
-        || string.contains(",")) {
-      string = string.replace("\"", "\"\"");
-      string = "\"" + string + "\"";
-    }
-    osw.append(string);
+  private File getExportedInstancesFile() {
+    return new File(outputDir, "." + safeFilename(baseFilename) + EXPORTED_INSTANCES_EXTENSION);
   }
 
-  private String getFullName(AbstractTreeElement e, TreeElement group) {
-    List<String> names = new ArrayList<>();
-    while (e != null && e != group) {
-      names.add(e.getName());
-      e = e.getParent();
+  /**
+   * Loads the IDs of the instances that are already in the csv files, so
+   * that only new instances get appended to them. The list is kept next to
+   * the csv files.
+   * <p>
+   * If the csv files are going to be overwritten, or any of the csv file and
+   * the list is missing (e.g. files from an export made by a previous
+   * version), the export starts from scratch and overwrites them. So it
+   * does when the form changed in a way that changes the csv columns, which
+   * the list records on its first line.
+   */
+  private boolean readExportedInstances(String layout) {
+    File exportedInstancesFile = getExportedInstancesFile();
+    File topLevelCsv = new File(outputDir, safeFilename(baseFilename) + ".csv");
+    if (overwrite || !topLevelCsv.exists() || !exportedInstancesFile.exists()) {
+      overwrite = true;
+      return true;
     }
-    StringBuilder b = new StringBuilder();
-    Collections.reverse(names);
-    boolean first = true;
-    for (String s : names) {
-      if (!first) {
-        b.append("-");
+
+    try {
+      List<String> lines = Files.readAllLines(exportedInstancesFile.toPath(), StandardCharsets.UTF_8);
+      if (lines.isEmpty() || !lines.get(0).equals(LAYOUT_PREFIX + layout)) {
+        log.info("the columns of " + topLevelCsv.getName() + " changed, exporting all the instances again");
+        overwrite = true;
+        return true;
       }
-      first = false;
-      b.append(s);
+      for (String instanceId : lines.subList(1, lines.size()))
+        if (!instanceId.isEmpty())
+          exportedInstanceIds.add(instanceId);
+      return true;
+    } catch (IOException e) {
+      String msg = "Unable to read the list of exported instances";
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
+      return false;
     }
-
-    return b.toString();
   }
 
-  private Element findElement(Element submissionElement, String name) {
-    if (submissionElement == null) {
-      return null;
+  /**
+   * Returns a hash of the csv columns of every table of the export.
+   */
+  private String getLayout() {
+    StringBuilder layout = new StringBuilder(briefcaseLfd.isFileEncryptedForm() ? "encrypted" : "plain");
+    for (ExportPlan.Table table : plan.getTables()) {
+      layout.append("\n").append(table.index);
+      appendLayout(layout, table.fields);
     }
-    int maxChildren = submissionElement.getChildCount();
-    for (int i = 0; i < maxChildren; i++) {
-      if (submissionElement.getType(i) == Node.ELEMENT) {
-        Element e = submissionElement.getElement(i);
-        if (name.equals(e.getName())) {
-          return e;
-        }
-      }
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      return FileHashCache.toHex(md.digest(layout.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
     }
-    return null;
   }
 
-  private List<Element> findElementList(Element submissionElement, String name) {
-    List<Element> ecl = new ArrayList<>();
-    int maxChildren = submissionElement.getChildCount();
-    for (int i = 0; i < maxChildren; i++) {
-      if (submissionElement.getType(i) == Node.ELEMENT) {
-        Element e = submissionElement.getElement(i);
-        if (name.equals(e.getName())) {
-          ecl.add(e);
-        }
-      }
+  private static void appendLayout(StringBuilder layout, ExportPlan.Field[] fields) {
+    for (ExportPlan.Field field : fields) {
+      layout.append(' ').append(field.kind).append(':').append(field.fullName);
+      if (field.kind == ExportPlan.Kind.GROUP)
+        appendLayout(layout, field.fields);
     }
-    return ecl;
   }
 
-  private String getSubmissionValue(EncryptionInformation ei, TreeElement model, Element element) {
-    // could not find element, return null
-    if (element == null) {
-      return null;
+  private void emitString(OutputStreamWriter osw, boolean first, String string) throws IOException {
+    osw.append(first ? "" : ",");
+    if (string == null)
+      return;
+    if (string.length() == 0 || string.contains("\n") || string.contains("\"")
+        || string.contains(",")) {
+      string = string.replace("\"", "\"\"");
+      string = "\"" + string + "\"";
     }
+    osw.append(string);
+  }
 
-    StringBuilder b = new StringBuilder();
-
-    int maxChildren = element.getChildCount();
-    for (int i = 0; i < maxChildren; i++) {
-      if (element.getType(i) == Node.TEXT) {
-        b.append(element.getText(i));
-      }
+  private String getSubmissionValue(EncryptionInformation ei, ExportPlan.Field field, String rawElement) {
+    // could not find element, return null
+    if (rawElement == null) {
+      return null;
     }
-    String rawElement = b.toString();
 
     // Field-level encryption support -- experimental
-    if (JavaRosaParserWrapper.isEncryptedField(model)) {
+    if (field.encrypted) {
 
       InputStreamReader isr = null;
       try {
-        Cipher c = ei.getCipher("field:" + model.getName(), model.getName());
+        Cipher c = ei.getCipher("field:" + field.name, field.name);
 
         isr = new InputStreamReader(new CipherInputStream(
             new ByteArrayInputStream(Base64.decodeBase64(rawElement)), c), "UTF-8");
 
-        b.setLength(0);
+        StringBuilder b = new StringBuilder();
         int ch;
         while ((ch = isr.read()) != -1) {
           char theChar = (char) ch;
@@ -284,9 +283,9 @@ public class ExportToCsv implements ITransformFormAction {
         return b.toString();
 
       } catch (IOException e) {
-        log.debug(" element name: " + model.getName() + " exception: " + e);
+        log.debug(" element name: " + field.name + " exception: " + e);
       } catch (InvalidKeyException | NoSuchPaddingException | NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
-        log.debug(" element name: " + model.getName() + " exception: " + e, e);
+        log.debug(" element name: " + field.name + " exception: " + e, e);
       } finally {
         if (isr != null) {
           try {
@@ -301,264 +300,106 @@ public class ExportToCsv implements ITransformFormAction {
   }
 
   private boolean emitSubmissionCsv(OutputStreamWriter osw, EncryptionInformation ei,
-                                    Element submissionElement,
-                                    TreeElement primarySet, TreeElement treeElement, boolean first, String uniquePath,
-                                    File instanceDir) throws IOException {
-    // OK -- group with at least one element -- assume no value...
-    // TreeElement list has the begin and end tags for the nested groups.
-    // Swallow the end tag by looking to see if the prior and current
-    // field names are the same.
-    TreeElement prior = null;
-    for (int i = 0; i < treeElement.getNumChildren(); ++i) {
-      TreeElement current = (TreeElement) treeElement.getChildAt(i);
-      log.debug(" element name: " + current.getName());
-      if ((prior != null) && (prior.getName().equals(current.getName()))) {
-        // it is the end-group tag... seems to happen with two adjacent repeat
-        // groups
-        log.info("repeating tag at " + i + " skipping " + current.getName());
-        prior = current;
-      } else {
-        Element ec = findElement(submissionElement, current.getName());
-        switch (current.getDataType()) {
-          case org.javarosa.core.model.Constants.DATATYPE_TEXT:/**
-           * Text question
-           * type.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_INTEGER:/**
-           * Numeric
-           * question type. These are numbers without decimal points
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_DECIMAL:/**
-           * Decimal
-           * question type. These are numbers with decimals
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_CHOICE:/**
-           * This is a
-           * question with alist of options where not more than one option can
-           * be selected at a time.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_CHOICE_LIST:/**
-           * This is a
-           * question with alist of options where more than one option can be
-           * selected at a time.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_BOOLEAN:/**
-           * Question with
-           * true and false answers.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_BARCODE:/**
-           * Question with
-           * barcode string answer.
-           */
-          default:
-          case org.javarosa.core.model.Constants.DATATYPE_UNSUPPORTED:
-            if (ec == null) {
+                                    SubmissionReader.Group submissionGroup, ExportPlan.Field[] fields,
+                                    boolean first, String uniquePath, File instanceDir) throws IOException {
+    for (ExportPlan.Field field : fields) {
+      switch (field.kind) {
+        case VALUE:
+          emitString(osw, first, getSubmissionValue(ei, field, getValue(submissionGroup, field)));
+          first = false;
+          break;
+        case DATE:
+          emitString(osw, first, dateFormat.formatDate(getSubmissionValue(ei, field, getValue(submissionGroup, field))));
+          first = false;
+          break;
+        case TIME:
+          emitString(osw, first, dateFormat.formatTime(getSubmissionValue(ei, field, getValue(submissionGroup, field))));
+          first = false;
+          break;
+        case DATE_TIME:
+          emitString(osw, first, dateFormat.formatDateTime(getSubmissionValue(ei, field, getValue(submissionGroup, field))));
+          first = false;
+          break;
+        case GEOPOINT:
+          String compositeValue = getSubmissionValue(ei, field, getValue(submissionGroup, field));
+          compositeValue = (compositeValue == null) ? null : compositeValue.trim();
+
+          // emit separate lat, long, alt, acc columns...
+          if (compositeValue == null || compositeValue.length() == 0) {
+            for (int count = 0; count < 4; ++count) {
               emitString(osw, first, null);
-            } else {
-              emitString(osw, first, getSubmissionValue(ei, current, ec));
-            }
-            first = false;
-            break;
-          case org.javarosa.core.model.Constants.DATATYPE_DATE:
-            /**
-             * Date question type. This has only date component without time.
-             */
-            if (ec == null) {
-              emitString(osw, first, null);
-            } else {
-              String value = getSubmissionValue(ei, current, ec);
-              if (value == null || value.length() == 0) {
-                emitString(osw, first, null);
-              } else {
-                Date date = WebUtils.parseDate(value);
-                DateFormat formatter = DateFormat.getDateInstance();
-                emitString(osw, first, formatter.format(date));
-              }
+              first = false;
             }
-            first = false;
-            break;
-          case org.javarosa.core.model.Constants.DATATYPE_TIME:
-            /**
-             * Time question type. This has only time element without date
-             */
-            if (ec == null) {
-              emitString(osw, first, null);
-            } else {
-              String value = getSubmissionValue(ei, current, ec);
-              if (value == null || value.length() == 0) {
-                emitString(osw, first, null);
-              } else {
-                Date date = WebUtils.parseDate(value);
-                DateFormat formatter = DateFormat.getTimeInstance();
-                emitString(osw, first, formatter.format(date));
-              }
+          } else {
+            String[] values = compositeValue.split(" ");
+            for (String value : values) {
+              emitString(osw, first, value);
+              first = false;
             }
-            first = false;
-            break;
-          case org.javarosa.core.model.Constants.DATATYPE_DATE_TIME:
-            /**
-             * Date and Time question type. This has both the date and time
-             * components
-             */
-            if (ec == null) {
+            for (int count = values.length; count < 4; ++count) {
               emitString(osw, first, null);
-            } else {
-              String value = getSubmissionValue(ei, current, ec);
-              if (value == null || value.length() == 0) {
-                emitString(osw, first, null);
-              } else {
-                Date date = WebUtils.parseDate(value);
-                DateFormat formatter = DateFormat.getDateTimeInstance();
-                emitString(osw, first, formatter.format(date));
-              }
+              first = false;
             }
+          }
+          break;
+        case BINARY:
+          String binaryFilename = getSubmissionValue(ei, field, getValue(submissionGroup, field));
+          if (binaryFilename == null || binaryFilename.length() == 0) {
+            emitString(osw, first, null);
             first = false;
-            break;
-          case org.javarosa.core.model.Constants.DATATYPE_GEOPOINT:
-            /**
-             * Question with location answer.
-             */
-            String compositeValue = (ec == null) ? null : getSubmissionValue(ei, current, ec);
-            compositeValue = (compositeValue == null) ? null : compositeValue.trim();
-
-            // emit separate lat, long, alt, acc columns...
-            if (compositeValue == null || compositeValue.length() == 0) {
-              for (int count = 0; count < 4; ++count) {
-                emitString(osw, first, null);
-                first = false;
-              }
-            } else {
-              String[] values = compositeValue.split(" ");
-              for (String value : values) {
-                emitString(osw, first, value);
-                first = false;
-              }
-              for (int count = values.length; count < 4; ++count) {
-                emitString(osw, first, null);
-                first = false;
-              }
-            }
-            break;
-          case org.javarosa.core.model.Constants.DATATYPE_BINARY:
-            /**
-             * Question with external binary answer.
-             */
-            String binaryFilename = getSubmissionValue(ei, current, ec);
-            if (binaryFilename == null || binaryFilename.length() == 0) {
-              emitString(osw, first, null);
-              first = false;
-            } else {
-              if (exportMedia) {
-                if (!outputMediaDir.exists()) {
-                  if (!outputMediaDir.mkdir()) {
-                    EventBus.publish(new ExportProgressEvent("Unable to create destination media directory", briefcaseLfd));
-                    return false;
-                  }
-                }
-
-                int dotIndex = binaryFilename.lastIndexOf(".");
-                String namePart = (dotIndex == -1) ? binaryFilename : binaryFilename.substring(0,
-                    dotIndex);
-                String extPart = (dotIndex == -1) ? "" : binaryFilename.substring(dotIndex);
-
-                File binaryFile = new File(instanceDir, binaryFilename);
-                String destBinaryFilename = binaryFilename;
-                int version = 1;
-                File destFile = new File(outputMediaDir, destBinaryFilename);
-                boolean exists = false;
-                String binaryFileHash = null;
-                String destFileHash = null;
-
-                if (destFile.exists() && binaryFile.exists()) {
-                  binaryFileHash = FileSystemUtils.getMd5Hash(binaryFile);
-
-                  while (destFile.exists()) {
-                    /* check if the contents of the destFile and binaryFile is same
-                     * if yes, skip the export of such file
-                     */
-
-                    if (fileHashMap.containsKey(destFile.getName())) {
-                      destFileHash = fileHashMap.get(destFile.getName());
-                    } else {
-                      destFileHash = FileSystemUtils.getMd5Hash(destFile);
-                      if (destFileHash != null) {
-                        fileHashMap.put(destFile.getName(), destFileHash);
-                      }
-                    }
-
-                    if (binaryFileHash != null && destFileHash != null && destFileHash.equals(binaryFileHash)) {
-                      exists = true;
-                      break;
-                    }
-
-                    destBinaryFilename = namePart + "-" + (++version) + extPart;
-                    destFile = new File(outputMediaDir, destBinaryFilename);
-                  }
+          } else {
+            if (exportMedia) {
+              if (!outputMediaDir.exists()) {
+                if (!outputMediaDir.mkdir()) {
+                  EventBus.publish(new ExportProgressEvent("Unable to create destination media directory", briefcaseLfd));
+                  return false;
                 }
-                if (binaryFile.exists() && exists == false) {
-                  FileUtils.copyFile(binaryFile, destFile);
-                }
-                emitString(osw, first, MEDIA_DIR + File.separator + destFile.getName());
-              } else {
-                emitString(osw, first, binaryFilename);
               }
 
-              first = false;
-            }
-            break;
-          case org.javarosa.core.model.Constants.DATATYPE_NULL: /*
-           * for nodes that
-           * have no data,
-           * or data type
-           * otherwise
-           * unknown
-           */
-            if (current.isRepeatable()) {
-              if (prior == null || !current.getName().equals(prior.getName())) {
-                // repeatable group...
-                if (ec == null) {
-                  emitString(osw, first, null);
-                  first = false;
-                } else {
-                  String uniqueGroupPath = uniquePath + "/" + getFullName(current, primarySet);
-                  emitString(osw, first, uniqueGroupPath);
-                  first = false;
-                  // first time processing this repeat group (ignore templates)
-                  List<Element> ecl = findElementList(submissionElement, current.getName());
-                  emitRepeatingGroupCsv(ei, ecl, current, uniquePath,
-                      uniqueGroupPath, instanceDir);
-                }
-              }
-            } else if (current.getNumChildren() == 0 && current != briefcaseLfd.getSubmissionElement()) {
-              // assume fields that don't have children are string fields.
-              if (ec == null) {
-                emitString(osw, first, null);
-                first = false;
-              } else {
-                emitString(osw, first, getSubmissionValue(ei, current, ec));
-                first = false;
-              }
+              String destBinaryFilename = mediaDir.export(new File(instanceDir, binaryFilename));
+              emitString(osw, first, MEDIA_DIR + File.separator + destBinaryFilename);
             } else {
-              /* one or more children -- this is a non-repeating group */
-              first = emitSubmissionCsv(osw, ei, ec, primarySet, current, first, uniquePath, instanceDir);
+              emitString(osw, first, binaryFilename);
             }
-            break;
-        }
-        prior = current;
+
+            first = false;
+          }
+          break;
+        case REPEAT:
+          List<SubmissionReader.Group> ecl = (submissionGroup == null)
+              ? Collections.emptyList() : submissionGroup.getGroups(field.name);
+          if (ecl.isEmpty()) {
+            emitString(osw, first, null);
+            first = false;
+          } else {
+            String uniqueGroupPath = uniquePath + "/" + field.fullName;
+            emitString(osw, first, uniqueGroupPath);
+            first = false;
+            emitRepeatingGroupCsv(ei, ecl, field.table, uniquePath, uniqueGroupPath, instanceDir);
+          }
+          break;
+        case GROUP:
+          SubmissionReader.Group group = (submissionGroup == null) ? null : submissionGroup.getGroup(field.name);
+          first = emitSubmissionCsv(osw, ei, group, field.fields, first, uniquePath, instanceDir);
+          break;
       }
     }
     return first;
   }
 
-  private void emitRepeatingGroupCsv(EncryptionInformation ei, List<Element> groupElementList, TreeElement group,
+  private static String getValue(SubmissionReader.Group submissionGroup, ExportPlan.Field field) {
+    return (submissionGroup == null) ? null : submissionGroup.getValue(field.name);
+  }
+
+  private void emitRepeatingGroupCsv(EncryptionInformation ei, List<SubmissionReader.Group> groupElementList, ExportPlan.Table table,
                                      String uniqueParentPath, String uniqueGroupPath, File instanceDir)
       throws IOException {
-    OutputStreamWriter osw = fileMap.get(group);
+    OutputStreamWriter osw = writers[table.index];
     int trueOrdinal = 1;
-    for (Element groupElement : groupElementList) {
+    for (SubmissionReader.Group groupElement : groupElementList) {
       String uniqueGroupInstancePath = uniqueGroupPath + "[" + trueOrdinal + "]";
       boolean first = true;
-      first = emitSubmissionCsv(osw, ei, groupElement, group, group, first, uniqueGroupInstancePath, instanceDir);
+      first = emitSubmissionCsv(osw, ei, groupElement, table.fields, first, uniqueGroupInstancePath, instanceDir);
       emitString(osw, first, uniqueParentPath);
       emitString(osw, false, uniqueGroupInstancePath);
       emitString(osw, false, uniqueGroupPath);
@@ -567,162 +408,59 @@ public class ExportToCsv implements ITransformFormAction {
     }
   }
 
-  private boolean emitCsvHeaders(OutputStreamWriter osw, TreeElement primarySet,
-                                 TreeElement treeElement, boolean first) throws IOException {
-    // OK -- group with at least one element -- assume no value...
-    // TreeElement list has the begin and end tags for the nested groups.
-    // Swallow the end tag by looking to see if the prior and current
-    // field names are the same.
-    TreeElement prior = null;
-    for (int i = 0; i < treeElement.getNumChildren(); ++i) {
-      TreeElement current = (TreeElement) treeElement.getChildAt(i);
-      if ((prior != null) && (prior.getName().equals(current.getName()))) {
-        // it is the end-group tag... seems to happen with two adjacent repeat
-        // groups
-        log.info("repeating tag at " + i + " skipping " + current.getName());
-        prior = current;
-      } else {
-        switch (current.getDataType()) {
-          case org.javarosa.core.model.Constants.DATATYPE_TEXT:/**
-           * Text question
-           * type.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_INTEGER:/**
-           * Numeric
-           * question type. These are numbers without decimal points
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_DECIMAL:/**
-           * Decimal
-           * question type. These are numbers with decimals
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_DATE:/**
-           * Date question
-           * type. This has only date component without time.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_TIME:/**
-           * Time question
-           * type. This has only time element without date
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_DATE_TIME:/**
-           * Date and
-           * Time question type. This has both the date and time components
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_CHOICE:/**
-           * This is a
-           * question with alist of options where not more than one option can
-           * be selected at a time.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_CHOICE_LIST:/**
-           * This is a
-           * question with alist of options where more than one option can be
-           * selected at a time.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_BOOLEAN:/**
-           * Question with
-           * true and false answers.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_BARCODE:/**
-           * Question with
-           * barcode string answer.
-           */
-          case org.javarosa.core.model.Constants.DATATYPE_BINARY:/**
-           * Question with
-           * external binary answer.
-           */
-          default:
-          case org.javarosa.core.model.Constants.DATATYPE_UNSUPPORTED:
-            emitString(osw, first, getFullName(current, primarySet));
-            first = false;
-            break;
-          case org.javarosa.core.model.Constants.DATATYPE_GEOPOINT:
-            /**
-             * Question with location answer.
-             */
-            emitString(osw, first, getFullName(current, primarySet) + "-Latitude");
-            emitString(osw, false, getFullName(current, primarySet) + "-Longitude");
-            emitString(osw, false, getFullName(current, primarySet) + "-Altitude");
-            emitString(osw, false, getFullName(current, primarySet) + "-Accuracy");
-            first = false;
-            break;
-          case org.javarosa.core.model.Constants.DATATYPE_NULL: /*
-           * for nodes that
-           * have no data,
-           * or data type
-           * otherwise
-           * unknown
-           */
-            if (current.isRepeatable()) {
-              // repeatable group...
-              emitString(osw, first, "SET-OF-" + getFullName(current, primarySet));
-              first = false;
-              processRepeatingGroupDefinition(current, primarySet, true);
-            } else if (current.getNumChildren() == 0 && current != briefcaseLfd.getSubmissionElement()) {
-              // assume fields that don't have children are string fields.
-              emitString(osw, first, getFullName(current, primarySet));
-              first = false;
-            } else {
-              /* one or more children -- this is a non-repeating group */
-              first = emitCsvHeaders(osw, primarySet, current, first);
-            }
-            break;
-        }
-        prior = current;
+  private boolean emitCsvHeaders(OutputStreamWriter osw, ExportPlan.Field[] fields, boolean first) throws IOException {
+    for (ExportPlan.Field field : fields) {
+      switch (field.kind) {
+        case GEOPOINT:
+          emitString(osw, first, field.fullName + "-Latitude");
+          emitString(osw, false, field.fullName + "-Longitude");
+          emitString(osw, false, field.fullName + "-Altitude");
+          emitString(osw, false, field.fullName + "-Accuracy");
+          first = false;
+          break;
+        case REPEAT:
+          emitString(osw, first, "SET-OF-" + field.fullName);
+          first = false;
+          processRepeatingGroupDefinition(field);
+          break;
+        case GROUP:
+          first = emitCsvHeaders(osw, field.fields, first);
+          break;
+        default:
+          emitString(osw, first, field.fullName);
+          first = false;
+          break;
       }
     }
     return first;
   }
 
-  private void populateRepeatGroupsIntoFileMap(TreeElement primarySet,
-                                               TreeElement treeElement) throws IOException {
-    // OK -- group with at least one element -- assume no value...
-    // TreeElement list has the begin and end tags for the nested groups.
-    // Swallow the end tag by looking to see if the prior and current
-    // field names are the same.
-    TreeElement prior = null;
-    for (int i = 0; i < treeElement.getNumChildren(); ++i) {
-      TreeElement current = (TreeElement) treeElement.getChildAt(i);
-      if ((prior != null) && (prior.getName().equals(current.getName()))) {
-        // it is the end-group tag... seems to happen with two adjacent repeat
-        // groups
-        log.info("repeating tag at " + i + " skipping " + current.getName());
-        prior = current;
-      } else {
-        switch (current.getDataType()) {
-          default:
-            break;
-          case org.javarosa.core.model.Constants.DATATYPE_NULL:
-            /* for nodes that have no data, or data type otherwise unknown */
-            if (current.isRepeatable()) {
-              processRepeatingGroupDefinition(current, primarySet, false);
-            } else if (current.getNumChildren() == 0 && current != briefcaseLfd.getSubmissionElement()) {
-              // ignore - string type
-            } else {
-              /* one or more children -- this is a non-repeating group */
-              populateRepeatGroupsIntoFileMap(primarySet, current);
-            }
-            break;
-        }
-        prior = current;
-      }
+  private void openRepeatGroupFiles(ExportPlan.Field[] fields) throws IOException {
+    for (ExportPlan.Field field : fields) {
+      if (field.kind == ExportPlan.Kind.REPEAT)
+        processRepeatingGroupDefinition(field);
+      else if (field.kind == ExportPlan.Kind.GROUP)
+        openRepeatGroupFiles(field.fields);
     }
   }
 
-  private void processRepeatingGroupDefinition(TreeElement group, TreeElement primarySet, boolean emitCsvHeaders)
-      throws IOException {
-    String formName = baseFilename + "-" + getFullName(group, primarySet);
+  private void processRepeatingGroupDefinition(ExportPlan.Field repeat) throws IOException {
+    String formName = baseFilename + "-" + repeat.fullName;
     File topLevelCsv = new File(outputDir, safeFilename(formName) + ".csv");
+    boolean exists = topLevelCsv.exists();
     FileOutputStream os = new FileOutputStream(topLevelCsv, !overwrite);
     OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-    fileMap.put(group, osw);
-    if (emitCsvHeaders) {
+    writers[repeat.table.index] = osw;
+    // only write headers if overwrite is set, or creating file for the first time
+    if (overwrite || !exists) {
       boolean first = true;
-      first = emitCsvHeaders(osw, group, group, first);
+      first = emitCsvHeaders(osw, repeat.table.fields, first);
       emitString(osw, first, "PARENT_KEY");
       emitString(osw, false, "KEY");
-      emitString(osw, false, "SET-OF-" + group.getName());
+      emitString(osw, false, "SET-OF-" + repeat.name);
       osw.append("\n");
     } else {
-      populateRepeatGroupsIntoFileMap(group, group);
+      openRepeatGroupFiles(repeat.table.fields);
     }
   }
 
@@ -732,7 +470,8 @@ public class ExportToCsv implements ITransformFormAction {
 
   private boolean processFormDefinition() {
 
-    TreeElement submission = briefcaseLfd.getSubmissionElement();
+    ExportPlan.Table submission = plan.getRoot();
+    writers = new OutputStreamWriter[plan.getTables().size()];
 
     String formName = baseFilename;
     File topLevelCsv = new File(outputDir, safeFilename(formName) + ".csv");
@@ -741,232 +480,68 @@ public class ExportToCsv implements ITransformFormAction {
     try {
       os = new FileOutputStream(topLevelCsv, !overwrite);
       OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-      fileMap.put(submission, osw);
+      writers[submission.index] = osw;
       // only write headers if overwrite is set, or creating file for the first time
       if (overwrite || !exists) {
         emitString(osw, true, "SubmissionDate");
-        emitCsvHeaders(osw, submission, submission, false);
+        emitCsvHeaders(osw, submission.fields, false);
         emitString(osw, false, "KEY");
         if (briefcaseLfd.isFileEncryptedForm()) {
           emitString(osw, false, "isValidated");
         }
         osw.append("\n");
       } else {
-        populateRepeatGroupsIntoFileMap(submission, submission);
+        openRepeatGroupFiles(submission.fields);
       }
 
     } catch (IOException e) {
       String msg = "Unable to create csv file: " + topLevelCsv.getPath();
       log.error(msg, e);
       EventBus.publish(new ExportProgressEvent(msg, briefcaseLfd));
-      for (OutputStreamWriter w : fileMap.values()) {
-        try {
-          w.close();
-        } catch (IOException e1) {
-          log.warn("failed to close writer", e1);
-        }
-      }
-      fileMap.clear();
+      closeCsvFiles();
       return false;
     }
     return true;
   }
 
-  private boolean processInstance(File instanceDir) {
-    File submission = new File(instanceDir, "submission.xml");
-    if (!submission.exists() || !submission.isFile()) {
-      EventBus.publish(new ExportProgressEvent("Submission not found for instance directory: "
-          + instanceDir.getPath(), briefcaseLfd));
-      return false;
-    }
-
-    processedInstances++;
-
-    EventBus.publish(new ExportProgressEvent("Processing instance: " + instanceDir.getName(), briefcaseLfd));
-    EventBus.publish(new ExportProgressPercentageEvent((processedInstances * 100.0) / totalInstances, briefcaseLfd));
-
-    // If we are encrypted, be sure the temporary directory
-    // that will hold the unencrypted files is created.
-    // If we aren't encrypted, the temporary directory
-    // is the same as the instance directory.
-
-    File unEncryptedDir;
-    if (briefcaseLfd.isFileEncryptedForm()) {
-      // create the temp directory that will hold the unencrypted
-      // files. Do this in the outputDir so that the briefcase storage location
-      // can be a read-only network mount. issue 676.
-      Path path;
+  private void closeCsvFiles() {
+    for (OutputStreamWriter w : writers) {
+      if (w == null)
+        continue;
       try {
-        path = Files.createTempDirectory(Paths.get(outputDir.toURI()), ".temp");
-      } catch (IOException e) {
-        String msg = "Unable to create temp directory.";
-        log.error(msg, e);
-        EventBus.publish(new ExportProgressEvent(msg + " Cause : "
-                + e.toString(), briefcaseLfd));
-        return false;
-      }
-
-      unEncryptedDir = path.toFile();
-
-    } else {
-      unEncryptedDir = instanceDir;
-    }
-
-    // parse the xml document (this is the manifest if encrypted)...
-    Document doc;
-    boolean isValidated = false;
-
-    try {
-      doc = XmlManipulationUtils.parseXml(submission);
-    } catch (ParsingException | FileSystemException e) {
-      String msg = "Error parsing submission " + instanceDir.getName();
-      log.error(msg, e);
-      EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
-      return false;
-    }
-
-    String submissionDate = null;
-    // extract the submissionDate, if present, from the attributes
-    // of the root element of the submission or submission manifest (if encrypted).
-    submissionDate = doc.getRootElement().getAttributeValue(null, "submissionDate");
-    if (submissionDate == null || submissionDate.length() == 0) {
-      submissionDate = null;
-    } else {
-      Date theDate = WebUtils.parseDate(submissionDate);
-      DateFormat formatter = DateFormat.getDateTimeInstance();
-      submissionDate = formatter.format(theDate);
-
-      // just return true to skip records out of range
-      if (startDate != null && theDate.before(startDate)) {
-        log.info("Submission date is before specified, skipping: " + instanceDir.getName());
-        return true;
-      }
-      if (endDate != null && theDate.after(endDate)) {
-        log.info("Submission date is after specified, skipping: " + instanceDir.getName());
-        return true;
-      }
-      // don't export records without dates if either date is set
-      if ((startDate != null || endDate != null) && submissionDate == null) {
-        log.info("No submission date found, skipping: " + instanceDir.getName());
-        return true;
+        w.close();
+      } catch (IOException e1) {
+        log.warn("failed to close writer", e1);
       }
     }
+    Arrays.fill(writers, null);
+  }
 
-    // Beyond this point, we need to have a finally block that
-    // will clean up any decrypted files whenever there is any
-    // failure.
+  /**
+   * Writes the rows of a parsed instance into the csv files. This is called
+   * from a single thread, in submission date order.
+   */
+  private boolean writeInstance(ExportInstanceLoop.ParsedInstance instance) {
+    // emit the csv record...
     try {
+      OutputStreamWriter osw = writers[plan.getRoot().index];
 
+      emitString(osw, true, (instance.submissionDate == null) ? null : dateFormat.formatDateTime(instance.submissionDate));
+      emitSubmissionCsv(osw, instance.ei, instance.values, plan.getRoot().fields,
+          false, instance.instanceId, instance.unEncryptedDir);
+      emitString(osw, false, instance.instanceId);
       if (briefcaseLfd.isFileEncryptedForm()) {
-        // Decrypt the form and all its media files into the
-        // unEncryptedDir and validate the contents of all
-        // those files.
-        // NOTE: this changes the value of 'doc'
-        try {
-          FileSystemUtils.DecryptOutcome outcome =
-              FileSystemUtils.decryptAndValidateSubmission(doc, briefcaseLfd.getPrivateKey(),
-                  instanceDir, unEncryptedDir);
-          doc = outcome.submission;
-          isValidated = outcome.isValidated;
-        } catch (ParsingException | CryptoException | FileSystemException e) {
-          //Was unable to parse file or decrypt file or a file system error occurred
-          //Hence skip this instance
-          EventBus.publish(new ExportProgressEvent("Error decrypting submission "
-              + instanceDir.getName() + " Cause: " + e.toString() + " skipping....", briefcaseLfd));
-
-          log.info("Error decrypting submission "
-              + instanceDir.getName() + " Cause: " + e.toString());
-
-          //update total number of files skipped
-          totalFilesSkipped++;
-          return true;
-        }
-      }
-
-      String instanceId = null;
-      String base64EncryptedFieldKey = null;
-      // find an instanceId to use...
-      try {
-        FormInstanceMetadata sim = XmlManipulationUtils.getFormInstanceMetadata(doc.getRootElement());
-        instanceId = sim.instanceId;
-        base64EncryptedFieldKey = sim.base64EncryptedFieldKey;
-      } catch (ParsingException e) {
-        String msg = "Could not extract metadata from submission: " + submission.getAbsolutePath();
-        log.error(msg, e);
-        EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
-        return false;
-      }
-
-      if (instanceId == null || instanceId.length() == 0) {
-        // if we have no instanceID, and there isn't any in the file,
-        // use the checksum as the id.
-        // NOTE: encrypted submissions always have instanceIDs.
-        // This is for legacy non-OpenRosa forms.
-        long checksum;
-        try {
-          checksum = FileUtils.checksumCRC32(submission);
-        } catch (IOException e1) {
-          String msg = "Failed during computing of crc";
-          log.error(msg, e1);
-          EventBus.publish(new ExportProgressEvent(msg + ": " + e1.getMessage(), briefcaseLfd));
-          return false;
-        }
-        instanceId = "crc32:" + Long.toString(checksum);
+        emitString(osw, false, Boolean.toString(instance.isValidated));
       }
+      osw.append("\n");
+      exportedInstancesWriter.append(instance.instanceId).append("\n");
+      return true;
 
-      if (terminationFuture.isCancelled()) {
-        EventBus.publish(new ExportProgressEvent("Aborted", briefcaseLfd));
-        return false;
-      }
-
-      EncryptionInformation ei = null;
-      if (base64EncryptedFieldKey != null) {
-        try {
-          ei = new EncryptionInformation(base64EncryptedFieldKey, instanceId, briefcaseLfd.getPrivateKey());
-        } catch (CryptoException e) {
-          String msg = "Error establishing field decryption for submission " + instanceDir.getName();
-          log.error(msg, e);
-          EventBus.publish(new ExportProgressEvent(msg + " Cause: " + e.toString(), briefcaseLfd));
-          return false;
-        }
-      }
-
-      // emit the csv record...
-      try {
-        OutputStreamWriter osw = fileMap.get(briefcaseLfd.getSubmissionElement());
-
-        emitString(osw, true, submissionDate);
-        emitSubmissionCsv(osw, ei, doc.getRootElement(), briefcaseLfd.getSubmissionElement(),
-            briefcaseLfd.getSubmissionElement(), false, instanceId, unEncryptedDir);
-        emitString(osw, false, instanceId);
-        if (briefcaseLfd.isFileEncryptedForm()) {
-          emitString(osw, false, Boolean.toString(isValidated));
-          if (!isValidated) {
-            EventBus.publish(new ExportProgressEvent("Decrypted submission "
-                + instanceDir.getName() + " may be missing attachments and could not be validated.", briefcaseLfd));
-          }
-        }
-        osw.append("\n");
-        return true;
-
-      } catch (IOException e) {
-        String msg = "Failed writing csv";
-        log.error(msg, e);
-        EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
-        return false;
-      }
-    } finally {
-      if (briefcaseLfd.isFileEncryptedForm()) {
-        // destroy the temp directory and its contents...
-        try {
-          FileUtils.deleteDirectory(unEncryptedDir);
-        } catch (IOException e) {
-          String msg = "Unable to remove decrypted files";
-          log.error(msg, e);
-          EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
-          return false;
-        }
-      }
+    } catch (IOException e) {
+      String msg = "Failed writing csv";
+      log.error(msg, e);
+      EventBus.publish(new ExportProgressEvent(msg + ": " + e.getMessage(), briefcaseLfd));
+      return false;
     }
   }
 
@@ -1007,14 +582,14 @@ public class ExportToCsv implements ITransformFormAction {
   }
 
   public boolean noneSkipped() {
-    return totalFilesSkipped == 0 || totalInstances == 0;
+    return instanceLoop == null || instanceLoop.noneSkipped();
   }
 
   public boolean someSkipped() {
-    return totalInstances > 0 && totalFilesSkipped > 0 && totalFilesSkipped < totalInstances;
+    return instanceLoop != null && instanceLoop.someSkipped();
   }
 
   public boolean allSkipped() {
-    return totalInstances > 0 && totalFilesSkipped == totalInstances;
+    return instanceLoop != null && instanceLoop.allSkipped();
   }
 }
@@ -18,6 +18,7 @@ package org.opendatakit.briefcase.util;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bushe.swing.event.EventBus;
@@ -33,18 +34,21 @@ import org.opendatakit.briefcase.util.XmlManipulationUtils.FormInstanceMetadata;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.NoSuchPaddingException;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.file.Path;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.text.DateFormat;
 import java.time.LocalDate;
 import java.util.*;
 
@@ -77,6 +81,8 @@ public class ExportToDta implements ITransformFormAction {
   BriefcaseFormDefinition briefcaseLfd;
   TerminationFuture terminationFuture;
   Map<TreeElement, OutputStreamWriter> fileMap = new HashMap<TreeElement, OutputStreamWriter>();
+  // Output files when writing binary .dta, these are written in one go at the end of the export
+  Map<TreeElement, File> dtaFileMap = new HashMap<TreeElement, File>();
 
   boolean exportMedia = true;
   Date startDate;
@@ -112,6 +118,13 @@ public class ExportToDta implements ITransformFormAction {
   public int data_idx = 0;
   public int value_labels_idx = 0;
   public boolean useShortVarName = true;
+  // write binary .dta (format 118) files instead of the xml flavour
+  private final boolean binaryFormat;
+  private CryptoContext cryptoContext;
+  private SubmissionReader submissionReader;
+  private ExportPlan plan;
+  private ExportDateFormat dateFormat;
+  private ExportMediaDir mediaDir;
   private FormDef fd;
   Map<String,String> iTextMap;
   Map<String,String> typelistMap;
@@ -119,8 +132,12 @@ public class ExportToDta implements ITransformFormAction {
   Map<String,String> variable_labelsMap;
   Map<TreeElement, Document> docMap = new HashMap<TreeElement, Document>();
   Map<Document, Map<String,String>> docVarsMap = new HashMap<Document, Map<String,String>>();
-  Map<Element,List<StringBuilder>> valsMapBufs = new HashMap<Element,List<StringBuilder>>();
+  // <o> observations of each document are streamed to a spool file while the
+  // descriptors are collected, and copied into the output once those are known
+  Map<Document, ObservationSpool> spoolMap = new HashMap<Document, ObservationSpool>();
   Map<String,String> allVallabsMap = new HashMap<String,String>();
+  // choiceLabelsMap maps the bind reference of a question to its choice values and labels
+  Map<String,Map<String,String>> choiceLabelsMap = new HashMap<String,Map<String,String>>();
   Map<String,Integer> repeatMap = new HashMap<String,Integer>();
   Map<String,Integer> repeatMapTmp = new HashMap<String,Integer>();
   // repeatVarsMap maps long/full variable name to short name
@@ -140,13 +157,18 @@ public class ExportToDta implements ITransformFormAction {
   }
 
   public ExportToDta(TerminationFuture terminationFuture, File outputDir, BriefcaseFormDefinition lfd, String filename, boolean exportMedia, Boolean overwrite, Date start, Date end) {
+    this(terminationFuture, outputDir, lfd, filename, exportMedia, overwrite, start, end, false);
+  }
+
+  // Exports as binary .dta files when binaryFormat is set
+  public ExportToDta(TerminationFuture terminationFuture, File outputDir, BriefcaseFormDefinition lfd, String filename, boolean exportMedia, Boolean overwrite, Date start, Date end, boolean binaryFormat) {
      this.outputDir = outputDir;
      this.outputMediaDir = new File(outputDir, MEDIA_DIR);
      this.briefcaseLfd = lfd;
      this.terminationFuture = terminationFuture;
 
-     // Strip .xml, it gets added later
-     if (filename.endsWith(".xml")) {
+     // Strip .xml or .dta, it gets added later
+     if (filename.endsWith(".xml") || filename.endsWith(".dta")) {
          filename = filename.substring(0, filename.length()-4);
      }
      this.baseFilename = filename;
@@ -155,11 +177,15 @@ public class ExportToDta implements ITransformFormAction {
      this.overwrite = true;
      this.startDate = start;
      this.endDate = end;
+     this.binaryFormat = binaryFormat;
   }
 
   @Override
   public boolean doAction() {
     boolean allSuccessful = true;
+    // one crypto context per run, so its ciphers are reused by every submission
+    cryptoContext = new CryptoContext(briefcaseLfd.getPrivateKey());
+    dateFormat = new ExportDateFormat();
     File instancesDir;
     try {
       instancesDir = FileSystemUtils.getFormInstancesDirectory(briefcaseLfd.getFormDirectory());
@@ -185,8 +211,11 @@ public class ExportToDta implements ITransformFormAction {
            return false;
          }
        }
+       mediaDir = new ExportMediaDir(outputMediaDir, BriefcasePreferences.getBriefcaseLinkExportMediaProperty());
     }
 
+    submissionReader = new SubmissionReader(briefcaseLfd.getSubmissionElement());
+    plan = ExportPlan.compile(briefcaseLfd.getSubmissionElement());
     if (!processFormDefinition()) {
       // weren't able to initialize the dta file...
       return false;
@@ -210,6 +239,14 @@ public class ExportToDta implements ITransformFormAction {
     // Print each document using it's associated writer
     for (Map.Entry<TreeElement, Document> adoc : docMap.entrySet()) {
       try {
+        if ( binaryFormat ) {
+          // Build descriptors and write the binary file
+          allSuccessful = allSuccessful && getQuestions(fd, adoc.getValue());
+          allSuccessful = allSuccessful && processDtaDescriptors(adoc.getValue());
+          allSuccessful = allSuccessful && writeBinary(adoc.getValue(), dtaFileMap.get(adoc.getKey()));
+          continue;
+        }
+
         // The writer and the_doc are associated with the same key (a TreeElement)
         OutputStreamWriter w = fileMap.get(adoc.getKey());
         StringWriter fo = new StringWriter();
@@ -237,10 +274,43 @@ public class ExportToDta implements ITransformFormAction {
         allSuccessful = false;
       }
     }
+    deleteSpools();
 
     return allSuccessful;
   }
 
+  private boolean writeBinary(Document the_doc, File dtaFile) throws IOException {
+    List<DtaVariable> variables = describeVariables(docVarsMap.get(the_doc));
+
+    // Stata only supports value labels for integer values
+    Map<String,Map<Integer,String>> valueLabels = new HashMap<String,Map<Integer,String>>();
+    for (DtaVariable variable : variables) {
+      Map<String,String> choiceLabels = choiceLabelsMap.get(variable.fullName);
+      if (choiceLabels == null) {
+        continue;
+      }
+      Map<Integer,String> labels = new LinkedHashMap<Integer,String>();
+      for (Map.Entry<String,String> choice : choiceLabels.entrySet()) {
+        try {
+          labels.put(Integer.parseInt(choice.getKey().trim()), choice.getValue());
+        } catch (NumberFormatException e) {
+          // not an integer value, can't be labelled
+        }
+      }
+      valueLabels.put(variable.fullName, labels);
+    }
+
+    new StataDtaWriter(variables, spoolMap.get(the_doc), valueLabels, briefcaseLfd.getFormName()).write(dtaFile);
+    return true;
+  }
+
+  private void deleteSpools() {
+    for (ObservationSpool spool : spoolMap.values()) {
+      spool.delete();
+    }
+    spoolMap.clear();
+  }
+
   private boolean writeSpecial(Document the_doc, OutputStreamWriter w, StringWriter fo, KXmlSerializer serializer){
     try {
       KXmlSerializer serializer2 = new KXmlSerializer();
@@ -272,40 +342,18 @@ public class ExportToDta implements ITransformFormAction {
     return true;
   }
 
-  private void writeSpecialManual(Document the_doc, OutputStreamWriter w){
-    StringBuffer typelist= new StringBuffer();
-    StringBuffer varlist= new StringBuffer();
-    StringBuffer srtlist= new StringBuffer();
-    StringBuffer fmtlist= new StringBuffer();
-    StringBuffer lbllist= new StringBuffer();
-    StringBuffer data= new StringBuffer();
-    StringBuffer variable_labels= new StringBuffer();
-    StringBuffer question_label = new StringBuffer();
-    StringBuilder vallabs_list = new StringBuilder();
-
-    Map<String,String> varsMap = docVarsMap.get(the_doc);
-
+  // Build the descriptors of the variables of a document, in the order they are written.
+  // This consumes the counters in repeatMap used for the special short names, the same way
+  // emitSubmissionDta does for the <v> values.
+  private List<DtaVariable> describeVariables(Map<String,String> varsMap){
+    List<DtaVariable> variables = new ArrayList<DtaVariable>();
     String the_type = null;
     String the_fmt = null;
-    String the_vallab = null;
-
-    boolean res = false;
-
-    // Open tags for tags in typelist,fmtlist,lbllist
-    typelist.append("<typelist>");
-    varlist.append("<varlist>");
-    srtlist.append("<srtlist />");
-    fmtlist.append("<fmtlist>");
-    lbllist.append("<lbllist>");
-    variable_labels.append("<variable_labels>");
-
-    // Construct xml strings for tags in <descriptors>
-    StringBuilder b = new StringBuilder();
+    String question_label = null;
     String new_varname = null;
     int ct=0;
 
     for (String varname : varsMap.keySet()) {
-      // <typelist><type>..
       the_type = typelistMap.get(varname);
       the_type = the_type == null ? "str244" : the_type;
 
@@ -319,9 +367,6 @@ public class ExportToDta implements ITransformFormAction {
           new_varname = new_varname+"_00"+ct;
           ct--;
           repeatMap.put(repeatVarsMap.get(varname),ct);
-          // Update entry in repeatVarsMap with its new name so we can reuse it
-          // to update the associated <v> entries that use the longname etc.
-          //repeatVarsMap.put(varname,new_varname);
         }else{
           // Get original variable name. This is the same as in the form
           new_varname = varsMap.get(varname);
@@ -332,11 +377,53 @@ public class ExportToDta implements ITransformFormAction {
       }
 
       String stataVarName = makeStataVarName(new_varname);
-      b.append(stataVarName);
+
+      the_fmt = fmtlistMap.get(varname);
+      the_fmt = the_fmt==null ?  "%13s" : the_fmt;
+
+      question_label = variable_labelsMap.containsKey(varname) ? String.valueOf(variable_labelsMap.get(varname)) : stataVarName;
+
+      variables.add(new DtaVariable(varname, stataVarName, new_varname, the_type, the_fmt, question_label));
+    }
+    return variables;
+  }
+
+  private void writeSpecialManual(Document the_doc, OutputStreamWriter w){
+    StringBuffer typelist= new StringBuffer();
+    StringBuffer varlist= new StringBuffer();
+    StringBuffer srtlist= new StringBuffer();
+    StringBuffer fmtlist= new StringBuffer();
+    StringBuffer lbllist= new StringBuffer();
+    StringBuffer data= new StringBuffer();
+    StringBuffer variable_labels= new StringBuffer();
+    StringBuffer question_label = new StringBuffer();
+    StringBuilder vallabs_list = new StringBuilder();
+
+    Map<String,String> varsMap = docVarsMap.get(the_doc);
+
+    String the_vallab = null;
+
+    boolean res = false;
+
+    // Open tags for tags in typelist,fmtlist,lbllist
+    typelist.append("<typelist>");
+    varlist.append("<varlist>");
+    srtlist.append("<srtlist />");
+    fmtlist.append("<fmtlist>");
+    lbllist.append("<lbllist>");
+    variable_labels.append("<variable_labels>");
+
+    // Construct xml strings for tags in <descriptors>
+    StringBuilder b = new StringBuilder();
+
+    List<DtaVariable> variables = describeVariables(varsMap);
+    for (DtaVariable variable : variables) {
+      b.append(variable.stataName);
+      // <typelist><type>..
       typelist.append("<type ").append("varname=").append("\"")
                 .append(b.toString()).append("\"")
                 .append(">");
-        typelist.append(the_type);
+        typelist.append(variable.type);
         typelist.append("</type>");
 
         // <varlist><variable>..
@@ -345,12 +432,10 @@ public class ExportToDta implements ITransformFormAction {
                 .append(" />");
 
       // <fmtlist><fmt>..
-      the_fmt = fmtlistMap.get(varname);
-      the_fmt = the_fmt==null ?  "%13s" : the_fmt;
       fmtlist.append("<fmt ").append("varname=").append("\"")
                 .append(b.toString()).append("\"")
                 .append(">");
-        fmtlist.append(the_fmt);
+        fmtlist.append(variable.format);
         fmtlist.append("</fmt>");
 
       // <lbllist><lblname>..
@@ -361,7 +446,7 @@ public class ExportToDta implements ITransformFormAction {
         lbllist.append("</lblname>");
 
       // <lbllist><vlabel>..
-      question_label = variable_labelsMap.containsKey(varname)  ? question_label.append(variable_labelsMap.get(varname)): question_label.append(b.toString());
+      question_label.append(variable.label);
       variable_labels.append("<vlabel ").append("varname=").append("\"")
               .append(b.toString()).append("\"")
               .append(">");
@@ -369,22 +454,11 @@ public class ExportToDta implements ITransformFormAction {
       variable_labels.append("</vlabel>");
       question_label.delete(0,question_label.length());
 
-      //<value_labels><vallab>...
-      /*if(allVallabsMap.containsKey(varname) && !allVallabsDone.containsKey(new_varname) && varsMap.containsKey(varname)){
-        allVallabs.append("<vallab").append(" ")
-                .append("name=").append("\"").append(new_varname).append("\"")
-                .append(">")
-                .append(allVallabsMap.get(varname))
-                .append("</vallab>");
-        allVallabsDone.put(new_varname,null);
-
-      }*/
-
       //alt method for creating vallabs relevant to the document
-      the_vallab = allVallabsMap.get(varname);
+      the_vallab = allVallabsMap.get(variable.fullName);
       if(the_vallab != null){
         vallabs_list.append("<vallab").append(" ")
-                .append("name=").append("\"").append(new_varname).append("\"")
+                .append("name=").append("\"").append(variable.valueLabelName).append("\"")
                 .append(">")
                 .append(the_vallab)
                 .append("</vallab>");
@@ -411,7 +485,7 @@ public class ExportToDta implements ITransformFormAction {
       w.flush();
 
       // Now write <data> xml fragments
-      processDtaData(the_doc, w);
+      processDtaData(the_doc, variables, w);
       w.flush();
 
       // Now print allVallabs
@@ -474,6 +548,7 @@ public class ExportToDta implements ITransformFormAction {
 
             variable_labelsMap.putIfAbsent(the_vallab,question_label);
             if(choices != null){
+              Map<String,String> choiceLabels = new LinkedHashMap<String,String>();
               for(Object c : choices){
                 ch = (SelectChoice) c;
                 val = ch.getValue();
@@ -494,9 +569,11 @@ public class ExportToDta implements ITransformFormAction {
                         .append(">")
                         .append(txt)
                         .append("</label>");
+                choiceLabels.put(ch.getValue(),txt);
               }
 
               allVallabsMap.put(the_vallab,b.toString());
+              choiceLabelsMap.put(the_vallab,choiceLabels);
 
               // clear
               b.delete(0,b.length());
@@ -633,10 +710,9 @@ public class ExportToDta implements ITransformFormAction {
 
     // Update number of observations
     try {
-      Element data = dta.getElement(null,"data");
       Element el_nobs = header.getElement(null, "nobs");
       el_nobs.removeChild(0);
-      nobs = data.getChildCount();
+      nobs = spoolMap.get(the_doc).getCount();
       el_nobs.addChild(Node.TEXT, Integer.toString(nobs));
     }catch (Exception e){
       e.printStackTrace();
@@ -646,27 +722,30 @@ public class ExportToDta implements ITransformFormAction {
     return true;
   }
 
-  private boolean processDtaData(Document the_doc, OutputStreamWriter w){
-    Element data = the_doc.getElement(null,"dta").getElement(null,"data");
-
+  private boolean processDtaData(Document the_doc, List<DtaVariable> variables, OutputStreamWriter w){
     try {
+      ObservationSpool spool = spoolMap.get(the_doc);
+      int[] columns = new int[variables.size()];
+      for (int i = 0; i < variables.size(); i++) {
+        columns[i] = spool.getColumn(variables.get(i).fullName);
+      }
       // Begin <data> contents for this document
       w.append("<data>");
-
-      int ct = data.getChildCount();
-      for (int i = 0; i < ct; i++) {
-        Element obs = (Element) data.getChild(i);
-        // Get the list of <v>s in valsMapBufs for this observation
-        List<StringBuilder> vals = valsMapBufs.get(obs);
-        // Write <v> strings to associated observation <o>
-        w.append("<o name=\"").append(obs.getAttributeValue(null,"name")).append("\">");
-
-        for (StringBuilder val : vals) {
-          String s = val.toString();
-          w.append(val.toString());
+      // Write the <o> observations streamed while processing the instances
+      spool.forEach((name, values) -> {
+        w.append("<o name=\"").append(name).append("\">");
+        for (int i = 0; i < variables.size(); i++) {
+          if (columns[i] < 0 || values[columns[i]] == null) {
+            continue;
+          }
+          w.append("<v").append(" ")
+                  .append("varname=").append("\"").append(variables.get(i).stataName).append("\"")
+                  .append(">")
+                  .append(values[columns[i]])
+                  .append("</v>");
         }
         w.append("</o>");
-      }
+      });
       // Close <data> section for this document
       w.append("</data>");
     }catch (IOException e){
@@ -856,63 +935,23 @@ public class ExportToDta implements ITransformFormAction {
 
   }
 
-  private Element findElement(Element submissionElement, String name) {
-    if ( submissionElement == null ) {
-      return null;
-    }
-    int maxChildren = submissionElement.getChildCount();
-    for (int i = 0; i < maxChildren; i++) {
-      if (submissionElement.getType(i) == Node.ELEMENT) {
-        Element e = submissionElement.getElement(i);
-        if (name.equals(e.getName())) {
-          return e;
-        }
-      }
-    }
-    return null;
-  }
-
-  private List<Element> findElementList(Element submissionElement, String name) {
-    List<Element> ecl = new ArrayList<Element>();
-    int maxChildren = submissionElement.getChildCount();
-    for (int i = 0; i < maxChildren; i++) {
-      if (submissionElement.getType(i) == Node.ELEMENT) {
-        Element e = submissionElement.getElement(i);
-        if (name.equals(e.getName())) {
-          ecl.add(e);
-        }
-      }
-    }
-    return ecl;
-  }
-
-  private String getSubmissionValue(EncryptionInformation ei, TreeElement model, Element element) {
+  private String getSubmissionValue(EncryptionInformation ei, ExportPlan.Field field, String rawElement) {
     // could not find element, return null
-    if (element == null) {
+    if (rawElement == null) {
       return null;
     }
 
-    StringBuilder b = new StringBuilder();
-
-    int maxChildren = element.getChildCount();
-    for (int i = 0; i < maxChildren; i++) {
-      if (element.getType(i) == Node.TEXT) {
-        b.append(element.getText(i));
-      }
-    }
-    String rawElement = b.toString();
-
     // Field-level encryption support -- experimental
-    if ( JavaRosaParserWrapper.isEncryptedField(model) ) {
+    if ( field.encrypted ) {
 
       InputStreamReader isr = null;
       try {
-        Cipher c = ei.getCipher("field:" + model.getName(), model.getName());
+        Cipher c = ei.getCipher("field:" + field.name, field.name);
 
         isr = new InputStreamReader(new CipherInputStream(
                   new ByteArrayInputStream(Base64.decodeBase64(rawElement)), c),"UTF-8");
 
-        b.setLength(0);
+        StringBuilder b = new StringBuilder();
         int ch;
         while ( (ch = isr.read()) != -1 ) {
           char theChar = (char) ch;
@@ -922,19 +961,19 @@ public class ExportToDta implements ITransformFormAction {
 
       } catch (IOException e) {
         e.printStackTrace();
-        log.debug(" element name: " + model.getName() + " exception: " + e);
+        log.debug(" element name: " + field.name + " exception: " + e);
       } catch (InvalidKeyException e) {
         e.printStackTrace();
-        log.debug(" element name: " + model.getName() + " exception: " + e);
+        log.debug(" element name: " + field.name + " exception: " + e);
       } catch (InvalidAlgorithmParameterException e) {
         e.printStackTrace();
-        log.debug(" element name: " + model.getName() + " exception: " + e);
+        log.debug(" element name: " + field.name + " exception: " + e);
       } catch (NoSuchAlgorithmException e) {
         e.printStackTrace();
-        log.debug(" element name: " + model.getName() + " exception: " + e);
+        log.debug(" element name: " + field.name + " exception: " + e);
       } catch (NoSuchPaddingException e) {
         e.printStackTrace();
-        log.debug(" element name: " + model.getName() + " exception: " + e);
+        log.debug(" element name: " + field.name + " exception: " + e);
       } finally {
         if (isr != null) {
           try {
@@ -949,31 +988,17 @@ public class ExportToDta implements ITransformFormAction {
   }
 
   private boolean emitSubmissionDta(OutputStreamWriter osw, EncryptionInformation ei,
-      Element submissionElement,
-      TreeElement primarySet, TreeElement treeElement, boolean first, String uniquePath,
+      SubmissionReader.Group submissionGroup, ExportPlan.Field[] fields, boolean first, String uniquePath,
       File instanceDir, int trueOrdinal, Document the_doc) throws IOException {
-    // OK -- group with at least one element -- assume no value...
-    // TreeElement list has the begin and end tags for the nested groups.
-    // Swallow the end tag by looking to see if the prior and current
-    // field names are the same.
-    TreeElement prior = null;
-    Element obs = null;
-    Integer var_ct = 0;
-    int r_ct=0;
-
-    try{
-      // ct is the most recently added observation in the <data> sub-tree
-      int ct = the_doc.getElement(null,"dta").getElement(null,"data").getChildCount() - 1;
-      obs = the_doc.getElement(null,"dta").getElement(null,"data").getElement(ct);
-    }catch(Exception e){
+    // The observation being written is the one most recently started in the spool
+    ObservationSpool spool = spoolMap.get(the_doc);
+    if(spool == null){
       // We have a problem with the document tree. Should not continue
-      e.printStackTrace();
       log.info("<dta> and or <data> not yet created");
       return false;
     }
     // Try to get variables map for this document
     Map<String,String> varsMap = null;
-    //Map<String,Integer> varsMap = null;
     try{
       varsMap = docVarsMap.get(the_doc);
     }catch (NullPointerException x){
@@ -981,172 +1006,49 @@ public class ExportToDta implements ITransformFormAction {
       log.info("Could not get variables map for this submission/tree element");
     }
 
-    //StringBuffer s = new StringBuffer();
     StringBuilder b = new StringBuilder();
-    for (int i = 0; i < treeElement.getNumChildren(); ++i) {
-      TreeElement current = (TreeElement) treeElement.getChildAt(i);
-      if ((prior != null) && (prior.getName().equals(current.getName()))) {
-        // it is the end-group tag... seems to happen with two adjacent repeat
-        // groups
-        log.info("repeating tag at " + i + " skipping " + current.getName());
-        prior = current;
-      } else {
-        Element ec = findElement(submissionElement, current.getName());
+    for (ExportPlan.Field field : fields) {
         String the_val="";
-        var_ct = 0;
-        switch (current.getDataType()) {
-        case org.javarosa.core.model.Constants.DATATYPE_TEXT:/**
-           * Text question
-           * type.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_INTEGER:/**
-           * Numeric
-           * question type. These are numbers without decimal points
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_DECIMAL:/**
-           * Decimal
-           * question type. These are numbers with decimals
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_CHOICE:/**
-           * This is a
-           * question with alist of options where not more than one option can
-           * be selected at a time.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_CHOICE_LIST:/**
-           * This is a
-           * question with alist of options where more than one option can be
-           * selected at a time.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_BOOLEAN:/**
-           * Question with
-           * true and false answers.
-           */
-        case org.javarosa.core.model.Constants.DATATYPE_BARCODE:/**
-           * Question with
-           * barcode string answer.
-           */
-        default:
-        case org.javarosa.core.model.Constants.DATATYPE_UNSUPPORTED:
-          if (ec == null) {
-
-          } else {
-            the_val = getSubmissionValue(ei,current,ec);
-
+        switch (field.kind) {
+        case VALUE:
+          String value = getValue(submissionGroup, field);
+          if (value != null) {
+            the_val = getSubmissionValue(ei,field,value);
           }
           first = false;
           break;
-        case org.javarosa.core.model.Constants.DATATYPE_DATE:
-          /**
-           * Date question type. This has only date component without time.
-           */
-          if (ec == null) {
-
-          } else {
-            String value = getSubmissionValue(ei,current,ec);
-            if (value == null || value.length() == 0) {
-
-            } else {
-              Date date = WebUtils.parseDate(value);
-              DateFormat formatter = DateFormat.getDateInstance();
-
-              the_val = formatter.format(date);
-            }
-          }
+        case DATE:
+          the_val = emptyIfNull(dateFormat.formatDate(getSubmissionValue(ei,field,getValue(submissionGroup,field))));
           first = false;
           break;
-        case org.javarosa.core.model.Constants.DATATYPE_TIME:
-          /**
-           * Time question type. This has only time element without date
-           */
-          if (ec == null) {
-
-          } else {
-            String value = getSubmissionValue(ei,current,ec);
-            if (value == null || value.length() == 0) {
-
-            } else {
-              Date date = WebUtils.parseDate(value);
-              DateFormat formatter = DateFormat.getTimeInstance();
-
-              the_val = formatter.format(date);
-            }
-          }
+        case TIME:
+          the_val = emptyIfNull(dateFormat.formatTime(getSubmissionValue(ei,field,getValue(submissionGroup,field))));
           first = false;
           break;
-        case org.javarosa.core.model.Constants.DATATYPE_DATE_TIME:
-          /**
-           * Date and Time question type. This has both the date and time
-           * components
-           */
-          if (ec == null) {
-
-          } else {
-            String value = getSubmissionValue(ei,current,ec);
-            if (value == null || value.length() == 0) {
-
-            } else {
-              Date date = WebUtils.parseDate(value);
-              DateFormat formatter = DateFormat.getDateTimeInstance();
-
-              the_val = formatter.format(date);
-            }
-          }
+        case DATE_TIME:
+          the_val = emptyIfNull(dateFormat.formatDateTime(getSubmissionValue(ei,field,getValue(submissionGroup,field))));
           first = false;
           break;
-        case org.javarosa.core.model.Constants.DATATYPE_GEOPOINT:
+        case GEOPOINT:
           /**
            * Question with location answer.
            */
-          String compositeValue = (ec == null) ? null : getSubmissionValue(ei,current,ec);
-          compositeValue = (compositeValue == null) ? null : compositeValue.trim();
-          the_val = compositeValue;
-
-          // emit separate lat, long, alt, acc columns...
-          if (compositeValue == null || compositeValue.length() == 0) {
-            for (int count = 0; count < 4; ++count) {
-
-              first = false;
-            }
-          } else {
-            String[] values = compositeValue.split(" ");
-            for (String value : values) {
-
-              first = false;
-            }
-            for (int count = values.length; count < 4; ++count) {
-
-              first = false;
-            }
-          }
+          String compositeValue = getSubmissionValue(ei,field,getValue(submissionGroup,field));
+          the_val = (compositeValue == null) ? null : compositeValue.trim();
+          first = false;
           break;
-        case org.javarosa.core.model.Constants.DATATYPE_BINARY:
+        case BINARY:
           /**
            * Question with external binary answer e.g Media files
            */
-          String binaryFilename = getSubmissionValue(ei,current,ec);
+          String binaryFilename = getSubmissionValue(ei,field,getValue(submissionGroup,field));
           if (binaryFilename == null || binaryFilename.length() == 0) {
 
             first = false;
           } else {
             if (exportMedia) {
-               int dotIndex = binaryFilename.lastIndexOf(".");
-               String namePart = (dotIndex == -1) ? binaryFilename : binaryFilename.substring(0,
-                   dotIndex);
-               String extPart = (dotIndex == -1) ? "" : binaryFilename.substring(dotIndex);
-
-               File binaryFile = new File(instanceDir, binaryFilename);
-               String destBinaryFilename = binaryFilename;
-               int version = 1;
-               File destFile = new File(outputMediaDir, destBinaryFilename);
-               while (destFile.exists()) {
-                 destBinaryFilename = namePart + "-" + (++version) + extPart;
-                 destFile = new File(outputMediaDir, destBinaryFilename);
-               }
-               if ( binaryFile.exists() ) {
-                 FileUtils.copyFile(binaryFile, destFile);
-               }
-
-               the_val = MEDIA_DIR + File.separator + destFile.getName();
+               String destBinaryFilename = mediaDir.export(new File(instanceDir, binaryFilename));
+               the_val = MEDIA_DIR + File.separator + destBinaryFilename;
             } else {
 
                 the_val = binaryFilename;
@@ -1155,97 +1057,41 @@ public class ExportToDta implements ITransformFormAction {
             first = false;
           }
           break;
-        case org.javarosa.core.model.Constants.DATATYPE_NULL: /*
-                                                               * for nodes that
-                                                               * have no data,
-                                                               * or data type
-                                                               * otherwise
-                                                               * unknown
-                                                               */
-          if (current.isRepeatable()) {
-            if (prior == null || !current.getName().equals(prior.getName())) {
-              // repeatable group...
-              if (ec == null) {
-
-                first = false;
-              } else {
-                String uniqueGroupPath = uniquePath + "/" + getFullName(current, primarySet);
-
-                // DVB: Should we take this value?
-                the_val = uniqueGroupPath;
-                first = false;
-                // first time processing this repeat group (ignore templates)
-                List<Element> ecl = findElementList(submissionElement, current.getName());
-                  emitRepeatingGroupDta(ei, ecl, current, uniquePath,
-                                                    uniqueGroupPath, instanceDir);
-
-              }
-            }
-          } else if (current.getNumChildren() == 0 && current != briefcaseLfd.getSubmissionElement()) {
-            // assume fields that don't have children are string fields.
-            if (ec == null) {
-
-              first = false;
-            } else {
-
-              first = false;
-              the_val = getSubmissionValue(ei,current,ec);
-            }
-          } else {
-            /* one or more children -- this is a non-repeating group */
-            first = emitSubmissionDta(osw, ei, ec, primarySet, current, first, uniquePath, instanceDir, trueOrdinal, the_doc);
+        case REPEAT:
+          List<SubmissionReader.Group> ecl = (submissionGroup == null)
+              ? Collections.emptyList() : submissionGroup.getGroups(field.name);
+          if (!ecl.isEmpty()) {
+            String uniqueGroupPath = uniquePath + "/" + field.fullName;
+
+            // DVB: Should we take this value?
+            the_val = uniqueGroupPath;
+            emitRepeatingGroupDta(ei, ecl, field.table, uniquePath,
+                                  uniqueGroupPath, instanceDir);
           }
+          first = false;
+          break;
+        case GROUP:
+          /* one or more children -- this is a non-repeating group */
+          SubmissionReader.Group group = (submissionGroup == null) ? null : submissionGroup.getGroup(field.name);
+          first = emitSubmissionDta(osw, ei, group, field.fields, first, uniquePath, instanceDir, trueOrdinal, the_doc);
           break;
         }
 
         // Add the value tag <v> to the observations
-        b.append(getFullVarName(current, primarySet));
-        if(current.getNumChildren() == 0){
-          varsMap.put(b.toString(),current.getName());
-
-          List<StringBuilder> v2 = valsMapBufs.get(obs);
-          if(v2==null){
-            v2 = new ArrayList<StringBuilder>();
-          }
-
-          StringBuilder s = new StringBuilder();
-          String new_varname = null;
-
-          if(useShortVarName){
-            new_varname = repeatVarsMap.get(b.toString());
-            // Create special short names for special repeat variables which are used for
-            // multiple bind nodesets update counter in repeatMap to account for remaining
-            // counts for special short names of special repeats
-            if(new_varname!=null){
-              r_ct = repeatMap.get(new_varname);
-              new_varname = new_varname+"_00"+r_ct;
-              r_ct--;
-              repeatMap.put(repeatVarsMap.get(b.toString()),r_ct);
-              // Update entry in repeatVarsMap with its new name so we can reuse it
-              // to update the associated <v> entries that use the longname etc.
-              //repeatVarsMap.put(b.toString(),new_varname);
-            }else{
-              // Get original variable name. This is the same as in the form
-              new_varname = varsMap.get(b.toString());
-            }
-          }else{
-            // keep long name
-            new_varname = b.toString();
-          }
-
-          s.append("<v").append(" ")
-                  .append("varname=").append("\"").append(makeStataVarName(new_varname)).append("\"")
-                  .append(">")
-                  .append(the_val)
-                  .append("</v>");
-
-          v2.add(s);
+        b.append(field.varName);
+        if(field.model.getNumChildren() == 0){
+          varsMap.put(b.toString(),field.name);
+
+          // Values are spooled by the full variable name, which is unique in the document.
+          // The Stata names are given to the variables once all instances are processed,
+          // see describeVariables.
+          spool.value(b.toString(), the_val);
         }
 
         // Update fmt and type for Choice numeric-type values if not blank/empty string
         // Only doing Choice because we are losing data for mixed numeric/non-numeric data in a
         // variable, especially if the ODK type isn't specified.
-        if(current.getDataType() == org.javarosa.core.model.Constants.DATATYPE_CHOICE){
+        if(field.model.getDataType() == org.javarosa.core.model.Constants.DATATYPE_CHOICE){
           try{
             Integer val2 = Integer.parseInt(the_val);
             if(val2 instanceof Integer && Math.abs(val2)>=0){
@@ -1269,54 +1115,37 @@ public class ExportToDta implements ITransformFormAction {
         }
         // clear
         b.delete(0,b.length());
-
-
-        prior = current;
-        // Cleanup
-        current = null;
-        ec = null;
-      }
     }
 
     return first;
   }
 
-  private void emitRepeatingGroupDta(EncryptionInformation ei, List<Element> groupElementList, TreeElement group,
+  private static String getValue(SubmissionReader.Group submissionGroup, ExportPlan.Field field) {
+    return (submissionGroup == null) ? null : submissionGroup.getValue(field.name);
+  }
+
+  private static String emptyIfNull(String value) {
+    return (value == null) ? "" : value;
+  }
+
+  private void emitRepeatingGroupDta(EncryptionInformation ei, List<SubmissionReader.Group> groupElementList, ExportPlan.Table table,
       String uniqueParentPath, String uniqueGroupPath, File instanceDir)
       throws IOException {
-    OutputStreamWriter osw = fileMap.get(group);
-    Document the_doc = docMap.get(group);
+    OutputStreamWriter osw = fileMap.get(table.group);
+    Document the_doc = docMap.get(table.group);
+    ObservationSpool spool = spoolMap.get(the_doc);
     int trueOrdinal = 1;
-    for ( Element groupElement : groupElementList ) {
+    for ( SubmissionReader.Group groupElement : groupElementList ) {
       String uniqueGroupInstancePath = uniqueGroupPath + "[" + trueOrdinal + "]";
       boolean first = true;
-      Element obs = the_doc.createElement(null,"o");
-      obs.setName("o");
-      obs.setAttribute(null,"name",uniqueGroupInstancePath);
-      Element data = the_doc.getElement(null,"dta").getElement(null,"data");
-      data.addChild(Node.ELEMENT, obs);
-
-      // ALT: Prep list to store <v> values for this <obs> observation
-      List<StringBuilder> listVals = new ArrayList<>();
-      valsMapBufs.put(obs,listVals);
+      spool.startObservation(uniqueGroupInstancePath);
 
-      first = emitSubmissionDta(osw, ei, groupElement, group, group, first, uniqueGroupInstancePath, instanceDir, trueOrdinal, the_doc);
+      first = emitSubmissionDta(osw, ei, groupElement, table.fields, first, uniqueGroupInstancePath, instanceDir, trueOrdinal, the_doc);
 
       // Add PARENT_KEY, KEY values
-      StringBuilder s = new StringBuilder();
-      s.append("<v").append(" ")
-              .append("varname=").append("\"").append("PARENT_KEY").append("\"")
-              .append(">")
-              .append(uniqueParentPath)
-              .append("</v>");
-
-      s.append("<v").append(" ")
-              .append("varname=").append("\"").append("KEY").append("\"")
-              .append(">")
-              .append(uniqueGroupInstancePath)
-              .append("</v>");
-
-      listVals.add(s);
+      spool.value("PARENT_KEY", uniqueParentPath);
+      spool.value("KEY", uniqueGroupInstancePath);
+      spool.endObservation();
 
       ++trueOrdinal;
     }
@@ -1526,13 +1355,19 @@ public class ExportToDta implements ITransformFormAction {
   private void processRepeatingGroupDefinition(TreeElement group, TreeElement primarySet, boolean emitDtaHeaders)
       throws IOException {
     String formName = baseFilename + "-" + getFullName(group, primarySet);
-    File topLevelDta = new File(outputDir, safeFilename(formName) + ".xml");
-    FileOutputStream os = new FileOutputStream(topLevelDta, !overwrite);
-    OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-    fileMap.put(group, osw);
+    File topLevelDta = new File(outputDir, safeFilename(formName) + getFileExtension());
+    OutputStreamWriter osw = null;
+    if ( binaryFormat ) {
+      dtaFileMap.put(group, topLevelDta);
+    } else {
+      FileOutputStream os = new FileOutputStream(topLevelDta, !overwrite);
+      osw = new OutputStreamWriter(os, "UTF-8");
+      fileMap.put(group, osw);
+    }
     // Dta related
     Document the_doc = setupDta();
     docMap.put(group,the_doc);
+    spoolMap.put(the_doc, new ObservationSpool(outputDir));
 
     // Add PARENT_KEY, KEY, SET-OF variables.
 
@@ -1559,6 +1394,10 @@ public class ExportToDta implements ITransformFormAction {
     }
   }
 
+  private String getFileExtension() {
+    return binaryFormat ? ".dta" : ".xml";
+  }
+
   private String safeFilename(String name) {
     return name.replaceAll("\\p{Punct}", "_")
             .replace("\\p{Space}", "_").replaceAll("__", "_")
@@ -1570,15 +1409,21 @@ public class ExportToDta implements ITransformFormAction {
     TreeElement submission = briefcaseLfd.getSubmissionElement();
 
     String formName = baseFilename;
-    File topLevelDta = new File(outputDir, safeFilename(formName) + ".xml");
+    File topLevelDta = new File(outputDir, safeFilename(formName) + getFileExtension());
     boolean exists = topLevelDta.exists();
     FileOutputStream os;
     try {
-      os = new FileOutputStream(topLevelDta, !overwrite);
-      OutputStreamWriter osw = new OutputStreamWriter(os, "UTF-8");
-      fileMap.put(submission, osw);
+      OutputStreamWriter osw = null;
+      if ( binaryFormat ) {
+        dtaFileMap.put(submission, topLevelDta);
+      } else {
+        os = new FileOutputStream(topLevelDta, !overwrite);
+        osw = new OutputStreamWriter(os, "UTF-8");
+        fileMap.put(submission, osw);
+      }
       Document the_doc = setupDta();
       docMap.put(submission,the_doc);
+      spoolMap.put(the_doc, new ObservationSpool(outputDir));
       Map<String,String> varsMap = new HashMap<String,String>();
       //Map<String,Integer> varsMap = new HashMap<String,Integer>();
       docVarsMap.put(the_doc,varsMap);
@@ -1609,6 +1454,7 @@ public class ExportToDta implements ITransformFormAction {
         }
       }
       fileMap.clear();
+      deleteSpools();
       iTextMap.clear();
       fmtlistMap.clear();
       typelistMap.clear();
@@ -1625,6 +1471,7 @@ public class ExportToDta implements ITransformFormAction {
         }
       }
       fileMap.clear();
+      deleteSpools();
       iTextMap.clear();
       fmtlistMap.clear();
       typelistMap.clear();
@@ -1641,6 +1488,7 @@ public class ExportToDta implements ITransformFormAction {
         }
       }
       fileMap.clear();
+      deleteSpools();
       iTextMap.clear();
       fmtlistMap.clear();
       typelistMap.clear();
@@ -1691,12 +1539,17 @@ public class ExportToDta implements ITransformFormAction {
       unEncryptedDir = instanceDir;
     }
 
-    // parse the xml document (this is the manifest if encrypted)...
-    Document doc;
+    // parse the manifest if encrypted, or read the values of the
+    // submission straight from the file otherwise
+    Document manifest = null;
+    SubmissionReader.Group values = null;
     boolean isValidated = false;
 
     try {
-      doc = XmlManipulationUtils.parseXml(submission);
+      if (briefcaseLfd.isFileEncryptedForm())
+        manifest = XmlManipulationUtils.parseXml(submission);
+      else
+        values = submissionReader.read(submission);
     } catch (ParsingException e) {
       e.printStackTrace();
       EventBus.publish(new ExportProgressEvent("Error parsing submission "
@@ -1712,13 +1565,14 @@ public class ExportToDta implements ITransformFormAction {
     String submissionDate = null;
     // extract the submissionDate, if present, from the attributes
     // of the root element of the submission or submission manifest (if encrypted).
-    submissionDate = doc.getRootElement().getAttributeValue(null, "submissionDate");
+    submissionDate = (manifest != null)
+        ? manifest.getRootElement().getAttributeValue(null, "submissionDate")
+        : values.getAttribute("submissionDate");
     if (submissionDate == null || submissionDate.length() == 0) {
       submissionDate = null;
     } else {
       Date theDate = WebUtils.parseDate(submissionDate);
-      DateFormat formatter = DateFormat.getDateTimeInstance();
-      submissionDate = formatter.format(theDate);
+      submissionDate = dateFormat.formatDateTime(theDate);
 
       // just return true to skip records out of range
       // DVB: Should we support this for dta xml? Since xml file is overwritten,
@@ -1749,12 +1603,11 @@ public class ExportToDta implements ITransformFormAction {
         // Decrypt the form and all its media files into the
         // unEncryptedDir and validate the contents of all
         // those files.
-        // NOTE: this changes the value of 'doc'
         try {
           FileSystemUtils.DecryptOutcome outcome =
-            FileSystemUtils.decryptAndValidateSubmission(doc, briefcaseLfd.getPrivateKey(),
+            FileSystemUtils.decryptAndValidateSubmission(manifest, cryptoContext,
               instanceDir, unEncryptedDir);
-          doc = outcome.submission;
+          values = submissionReader.read(outcome.submission.getRootElement());
           isValidated = outcome.isValidated;
         } catch (ParsingException | CryptoException | FileSystemException e) {
           //Was unable to parse file or decrypt file or a file system error occurred
@@ -1775,7 +1628,7 @@ public class ExportToDta implements ITransformFormAction {
       String base64EncryptedFieldKey = null;
       // find an instanceId to use...
       try {
-        FormInstanceMetadata sim = XmlManipulationUtils.getFormInstanceMetadata(doc.getRootElement());
+        FormInstanceMetadata sim = SubmissionReader.getFormInstanceMetadata(values);
         instanceId = sim.instanceId;
         base64EncryptedFieldKey = sim.base64EncryptedFieldKey;
       } catch (ParsingException e) {
@@ -1810,7 +1663,7 @@ public class ExportToDta implements ITransformFormAction {
       EncryptionInformation ei = null;
       if ( base64EncryptedFieldKey != null ) {
         try {
-          ei = new EncryptionInformation(base64EncryptedFieldKey, instanceId, briefcaseLfd.getPrivateKey());
+          ei = new EncryptionInformation(base64EncryptedFieldKey, instanceId, cryptoContext);
         } catch (CryptoException e) {
           String msg = "Error establishing field decryption for submission " + instanceDir.getName();
           log.error(msg, e);
@@ -1823,21 +1676,16 @@ public class ExportToDta implements ITransformFormAction {
       try {
         OutputStreamWriter osw = fileMap.get(briefcaseLfd.getSubmissionElement());
         Document the_doc = docMap.get(briefcaseLfd.getSubmissionElement());
+        ObservationSpool spool = spoolMap.get(the_doc);
         time_stamp = submissionDate;
 
-        Element obs = the_doc.createElement(null,"o");
-        obs.setName("o");
-        obs.setAttribute(null,"name",instanceId);
-        Element data = the_doc.getElement(null,"dta").getElement(null,"data");
-        data.addChild(Node.ELEMENT, obs);
-
-        // ALT: Prep list to store <v> values for this <obs> observation
-        List<StringBuilder> listVals = new ArrayList<>();
-        valsMapBufs.put(obs,listVals);
-
-
-        emitSubmissionDta(osw, ei, doc.getRootElement(), briefcaseLfd.getSubmissionElement(),
-            briefcaseLfd.getSubmissionElement(), false, instanceId, unEncryptedDir, 0, the_doc);
+        spool.startObservation(instanceId);
+        try {
+          emitSubmissionDta(osw, ei, values, plan.getRoot().fields,
+              false, instanceId, unEncryptedDir, 0, the_doc);
+        } finally {
+          spool.endObservation();
+        }
 
         if ( briefcaseLfd.isFileEncryptedForm() ) {
 
@@ -1850,9 +1698,8 @@ public class ExportToDta implements ITransformFormAction {
         repeatMap.putAll(repeatMapTmp);
 
         // Cleanup
-        doc = null;
+        values = null;
         submission = null;
-        obs = null;
         return true;
 
       } catch (IOException e) {
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the MD5 hashes of files, and remembers the hashes of the files in
+ * the briefcase folder by path, size and modification time, so that a file
+ * that hasn't changed isn't read again, not even after a restart.
+ * <p>
+ * Files are read through a FileChannel into a direct buffer, and each thread
+ * keeps its own buffer and digest.
+ * <p>
+ * The hashes are kept in a log file in the briefcase folder, with the same
+ * layout as the form cache: a magic number and a format version, followed
+ * by checksummed records, the last record of a path winning. The log is
+ * compacted when opened, if most of its records have been superseded or are
+ * about files that are gone.
+ */
+final class FileHashCache {
+  private static final Logger log = LoggerFactory.getLogger(FileHashCache.class);
+  private static final String CACHE_FILE = "file-hashes.bin";
+  private static final int MAGIC = 0x42434648; // "BCFH"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // a file modified this recently could still change without its size or
+  // modification time changing, so its hash isn't kept
+  private static final long RACY_WINDOW_MILLIS = 2000;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(FileHashCache::newMd5Digest);
+  private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+  // null when nothing is kept
+  private final Path root;
+  private final Path cacheFile;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private FileChannel appender;
+
+  /**
+   * Creates a cache that keeps nothing, for when there's no briefcase
+   * folder yet.
+   */
+  FileHashCache() {
+    root = null;
+    cacheFile = null;
+  }
+
+  FileHashCache(File briefcaseFolder) {
+    root = briefcaseFolder.toPath().toAbsolutePath().normalize();
+    cacheFile = root.resolve(CACHE_FILE);
+    try {
+      int records = Files.exists(cacheFile) ? load() : -1;
+      if (records >= 0 && records <= 2 * entries.size() + 1024)
+        appender = FileChannel.open(cacheFile, WRITE, APPEND);
+      else
+        rewrite();
+    } catch (IOException e) {
+      log.error("unable to open the file hash cache, hashes won't be kept", e);
+      entries.clear();
+    }
+  }
+
+  /**
+   * Returns the number of records in the file, or -1 if they can't all be
+   * read and it needs rewriting.
+   */
+  private int load() throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(cacheFile));
+    if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      log.info("discarding file hash cache with unknown format " + cacheFile);
+      return -1;
+    }
+    int records = 0;
+    while (buffer.remaining() >= 8) {
+      int start = buffer.position();
+      int length = buffer.getInt();
+      long crc = buffer.getInt() & 0xFFFFFFFFL;
+      if (length <= 0 || length > buffer.remaining() || crc != checksum(buffer, buffer.position(), length)) {
+        buffer.position(start);
+        break;
+      }
+      byte[] path = new byte[buffer.getInt()];
+      buffer.get(path);
+      long size = buffer.getLong();
+      long lastModified = buffer.getLong();
+      byte[] md5 = new byte[16];
+      buffer.get(md5);
+      entries.put(new String(path, UTF_8), new Entry(size, lastModified, toHex(md5)));
+      records++;
+    }
+    // an unreadable tail can't be appended to
+    return buffer.hasRemaining() ? -1 : records;
+  }
+
+  /**
+   * Writes the entries of files that still exist into a new cache file,
+   * which then replaces the old one.
+   */
+  private void rewrite() throws IOException {
+    Path tmp = cacheFile.resolveSibling(CACHE_FILE + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+      header.flip();
+      writeFully(channel, header);
+      Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<String, Entry> e = it.next();
+        if (Files.exists(Paths.get(e.getKey())))
+          writeFully(channel, record(e.getKey(), e.getValue()));
+        else
+          it.remove();
+      }
+    }
+    Files.move(tmp, cacheFile, REPLACE_EXISTING, ATOMIC_MOVE);
+    appender = FileChannel.open(cacheFile, WRITE, APPEND);
+  }
+
+  private synchronized void append(String path, Entry entry) {
+    if (appender == null)
+      return;
+    try {
+      writeFully(appender, record(path, entry));
+    } catch (IOException e) {
+      // keep going with the entries in memory
+      log.error("unable to write to the file hash cache", e);
+      try {
+        appender.close();
+      } catch (IOException e1) {
+        log.warn("failed to close the file hash cache", e1);
+      }
+      appender = null;
+    }
+  }
+
+  /**
+   * Closes the cache file. Hashes already in memory are still served, but new
+   * ones are no longer persisted.
+   */
+  synchronized void close() {
+    if (appender == null)
+      return;
+    try {
+      appender.close();
+    } catch (IOException e) {
+      log.warn("failed to close the file hash cache", e);
+    }
+    appender = null;
+  }
+
+  /**
+   * Returns the MD5 hash of a file, as 32 lowercase hex digits.
+   */
+  String getMd5Hash(File file) throws IOException {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    if (root == null || !path.startsWith(root) || path.equals(cacheFile))
+      return toHex(digest(path));
+
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    long size = attributes.size();
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    String key = path.toString();
+    Entry entry = entries.get(key);
+    if (entry != null && entry.size == size && entry.lastModified == lastModified)
+      return entry.md5Hash;
+
+    String md5Hash = toHex(digest(path));
+    if (System.currentTimeMillis() - lastModified >= RACY_WINDOW_MILLIS) {
+      entry = new Entry(size, lastModified, md5Hash);
+      entries.put(key, entry);
+      append(key, entry);
+    }
+    return md5Hash;
+  }
+
+  private static byte[] digest(Path path) throws IOException {
+    MessageDigest md = digests.get();
+    ByteBuffer buffer = buffers.get();
+    md.reset();
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      buffer.clear();
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        md.update(buffer);
+        buffer.clear();
+      }
+    }
+    return md.digest();
+  }
+
+  private static MessageDigest newMd5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unexpected problem computing md5 hash", e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+      chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    return bytes;
+  }
+
+  private static ByteBuffer record(String filePath, Entry entry) {
+    byte[] path = filePath.getBytes(UTF_8);
+    ByteBuffer body = ByteBuffer.allocate(4 + path.length + 8 + 8 + 16);
+    body.putInt(path.length).put(path).putLong(entry.size).putLong(entry.lastModified).put(fromHex(entry.md5Hash));
+    body.flip();
+    ByteBuffer record = ByteBuffer.allocate(8 + body.remaining());
+    record.putInt(body.remaining()).putInt((int) checksum(body, 0, body.remaining())).put(body);
+    record.flip();
+    return record;
+  }
+
+  private static long checksum(ByteBuffer buffer, int offset, int length) {
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(offset).limit(offset + length);
+    CRC32 crc = new CRC32();
+    crc.update(slice);
+    return crc.getValue();
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+  }
+
+  private static class Entry {
+    final long size;
+    final long lastModified;
+    final String md5Hash;
+
+    Entry(long size, long lastModified, String md5Hash) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.md5Hash = md5Hash;
+    }
+  }
+}
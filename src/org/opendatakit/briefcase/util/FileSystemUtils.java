@@ -16,17 +16,21 @@
 
 package org.opendatakit.briefcase.util;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.DigestInputStream;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -36,6 +40,12 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -49,6 +59,7 @@ import org.kxml2.kdom.Node;
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
 import org.opendatakit.briefcase.model.CryptoException;
 import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.MissingFilesException;
 import org.opendatakit.briefcase.model.OdkCollectFormDefinition;
 import org.opendatakit.briefcase.model.ParsingException;
 import org.opendatakit.briefcase.ui.StorageLocation;
@@ -61,6 +72,10 @@ public class FileSystemUtils {
   static final Logger log = LoggerFactory.getLogger(FileSystemUtils.class);
 
   public static FormCacheable formCache = new NullFormCache();
+  static FileHashCache fileHashCache = new FileHashCache();
+  private static final int FORM_LIST_THREADS = Runtime.getRuntime().availableProcessors();
+  // shared by every listing, its threads go away when idle
+  private static final ExecutorService formListExecutor = newFormListExecutor();
 
   public static final String FORMS_DIR = "forms";
   static final String INSTANCE_DIR = "instances";
@@ -76,6 +91,7 @@ public class FileSystemUtils {
   static final String UTF_8 = "UTF-8";
   static final String ENCRYPTED_FILE_EXTENSION = ".enc";
   static final String MISSING_FILE_EXTENSION = ".missing";
+  private static final int DECRYPT_BUFFER_SIZE = 64 * 1024;
 
   public static final String getMountPoint() {
     return System.getProperty("os.name").startsWith("Win") ? File.separator + ".." : (System
@@ -114,47 +130,84 @@ public class FileSystemUtils {
   }
 
   /**
-   * Creates a new FormCache in the briefcase folder. Called, at program startup if the briefcase
+   * Creates a new FormCache and FileHashCache in the briefcase folder. Called, at program startup if the briefcase
    * folder has been established, and whenever it changes
    */
   public static void createFormCacheInBriefcaseFolder() {
-    FileSystemUtils.formCache = new FormCache(new StorageLocation().getBriefcaseFolder());
+    File briefcaseFolder = new StorageLocation().getBriefcaseFolder();
+    FileSystemUtils.formCache = new FormCache(briefcaseFolder);
+    if (FileSystemUtils.fileHashCache != null)
+      FileSystemUtils.fileHashCache.close();
+    FileSystemUtils.fileHashCache = new FileHashCache(briefcaseFolder);
   }
 
+  /**
+   * Lists the forms of the storage directory. Forms come from the form cache
+   * unless the hash of their file changed, and the hashes of unchanged files
+   * come from the file hash cache. Forms that need parsing are parsed in
+   * parallel.
+   */
   public static final List<BriefcaseFormDefinition> getBriefcaseFormList() {
     List<BriefcaseFormDefinition> formsList = new ArrayList<>();
     File forms = FileSystemUtils.getFormsFolder();
     if (forms.exists()) {
       File[] formDirs = forms.listFiles();
-      for (File f : formDirs) {
-        if (f.isDirectory()) {
+      List<Future<BriefcaseFormDefinition>> definitions = new ArrayList<>();
+      try {
+        for (File f : formDirs) {
+          if (f.isDirectory()) {
+            definitions.add(formListExecutor.submit(() -> getBriefcaseFormDefinition(f)));
+          } else {
+            // junk?
+            f.delete();
+          }
+        }
+        // keep the order of the directory listing
+        for (Future<BriefcaseFormDefinition> definition : definitions) {
           try {
-            File formFile = new File(f, f.getName() + ".xml");
-            String formFileHash = getMd5Hash(formFile);
-            String existingFormFileHash = formCache.getFormFileMd5Hash(formFile.getAbsolutePath());
-            BriefcaseFormDefinition existingDefinition = formCache.getFormFileFormDefinition(formFile.getAbsolutePath());
-            if (existingFormFileHash == null
-                || existingDefinition == null
-                || !existingFormFileHash.equalsIgnoreCase(formFileHash)) {
-              // overwrite cache if the form's hash is not the same or there's no entry for the form in the cache.
-              formCache.putFormFileMd5Hash(formFile.getAbsolutePath(), formFileHash);
-              existingDefinition = new BriefcaseFormDefinition(f, formFile);
-              formCache.putFormFileFormDefinition(formFile.getAbsolutePath(), existingDefinition);
-            }
-
-            formsList.add(existingDefinition);
-          } catch (BadFormDefinition e) {
-            log.debug("bad form definition", e);
+            formsList.add(definition.get());
+          } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+              throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+              throw (Error) e.getCause();
+            log.debug("bad form definition", e.getCause());
           }
-        } else {
-          // junk?
-          f.delete();
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        for (Future<BriefcaseFormDefinition> definition : definitions)
+          definition.cancel(true);
       }
     }
     return formsList;
   }
 
+  private static ExecutorService newFormListExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(FORM_LIST_THREADS, FORM_LIST_THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), new BriefcaseThreadFactory("formlist"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static BriefcaseFormDefinition getBriefcaseFormDefinition(File formDir) throws BadFormDefinition {
+    File formFile = new File(formDir, formDir.getName() + ".xml");
+    String formFilePath = formFile.getAbsolutePath();
+    BriefcaseFormDefinition existingDefinition = formCache.getFormFileFormDefinition(formFilePath);
+    String formFileHash = getMd5Hash(formFile);
+    String existingFormFileHash = formCache.getFormFileMd5Hash(formFilePath);
+    if (existingFormFileHash == null
+        || existingDefinition == null
+        || !existingFormFileHash.equalsIgnoreCase(formFileHash)) {
+      // overwrite cache if the form's hash is not the same or there's no entry for the form in the cache.
+      existingDefinition = new BriefcaseFormDefinition(formDir, formFile);
+      formCache.putFormFileFormDefinition(formFilePath, existingDefinition);
+    }
+    formCache.putFormFileMd5Hash(formFilePath, formFileHash);
+    return existingDefinition;
+  }
+
   public static final List<OdkCollectFormDefinition> getODKFormList(File odk) {
     List<OdkCollectFormDefinition> formsList = new ArrayList<>();
     File forms = new File(odk, "forms");
@@ -372,64 +425,40 @@ public class FileSystemUtils {
     return instanceDir;
   }
 
-  public static final String getMd5Hash(File file) {
+  /**
+   * Makes 'link' a hard link to 'existing', replacing it, or a copy of it
+   * when the file system can't link them, like across volumes.
+   */
+  static void linkOrCopy(Path existing, Path link) throws IOException {
+    Files.deleteIfExists(link);
     try {
-      // CTS (6/15/2010) : stream file through digest instead of handing
-      // it the
-      // byte[]
-      MessageDigest md = MessageDigest.getInstance("MD5");
-      int chunkSize = 256;
-
-      byte[] chunk = new byte[chunkSize];
-
-      // Get the size of the file
-      long lLength = file.length();
-
-      if (lLength > Integer.MAX_VALUE) {
-        log.error("File " + file.getName() + "is too large");
-        return null;
-      }
-
-      int length = (int) lLength;
-
-      InputStream is = null;
-      is = new FileInputStream(file);
-
-      int l = 0;
-      for (l = 0; l + chunkSize < length; l += chunkSize) {
-        is.read(chunk, 0, chunkSize);
-        md.update(chunk, 0, chunkSize);
-      }
-
-      int remaining = length - l;
-      if (remaining > 0) {
-        is.read(chunk, 0, remaining);
-        md.update(chunk, 0, remaining);
-      }
-      byte[] messageDigest = md.digest();
-
-      BigInteger number = new BigInteger(1, messageDigest);
-      String md5 = number.toString(16);
-      while (md5.length() < 32)
-        md5 = "0" + md5;
-      is.close();
-      return md5;
-
-    } catch (NoSuchAlgorithmException e) {
-      log.error("MD5 calculation failed: " + e.getMessage());
-      return null;
+      Files.createLink(link, existing);
+    } catch (UnsupportedOperationException | IOException e) {
+      Files.copy(existing, link, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+  }
 
-    } catch (FileNotFoundException e) {
+  public static final String getMd5Hash(File file) {
+    try {
+      return fileHashCache.getMd5Hash(file);
+    } catch (NoSuchFileException e) {
       log.error("No File: " + e.getMessage());
       return null;
     } catch (IOException e) {
       log.error("Problem reading from file: " + e.getMessage());
       return null;
     }
-
   }
 
-  private static final void decryptFile(EncryptionInformation ei, File original, File unencryptedDir)
+  /**
+   * Decrypts a file and computes the md5 hash of its decrypted contents in
+   * the same pass. The decrypted contents are written to 'out', unless it is
+   * null.
+   *
+   * @return the md5 hash of the decrypted contents, or null if the file is
+   *     missing on the server
+   */
+  private static final String decryptFile(CryptoContext cryptoContext, EncryptionInformation ei, File original, OutputStream out)
       throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
       InvalidAlgorithmParameterException {
 
@@ -438,17 +467,10 @@ public class FileSystemUtils {
       // need to get a Cipher to update the cipher initialization vector.
       ei.getCipher("missing.enc");
       log.info("Missing file (pre-ODK Aggregate 1.4.5 mark-as-complete on server)");
-      return;
+      return null;
     }
 
-    String name = original.getName();
-    if (!name.endsWith(ENCRYPTED_FILE_EXTENSION)) {
-      String errMsg = "Unexpected non-" + ENCRYPTED_FILE_EXTENSION + " extension " + name
-          + " -- ignoring file";
-      throw new IllegalArgumentException(errMsg);
-    }
-    name = name.substring(0, name.length() - ENCRYPTED_FILE_EXTENSION.length());
-    File decryptedFile = new File(unencryptedDir, name);
+    String name = getDecryptedFileName(original.getName());
 
     Cipher c = ei.getCipher(name);
 
@@ -459,39 +481,50 @@ public class FileSystemUtils {
     // page.
     if (name.endsWith(MISSING_FILE_EXTENSION)) {
       log.info("Missing file (ODK Aggregate 1.4.5 and higher):" + original.getName());
-      return;
+      return null;
     }
 
-    try (InputStream fin = new CipherInputStream(new FileInputStream(original), c);
-         OutputStream fout = new FileOutputStream(decryptedFile)) {
-      byte[] buffer = new byte[2048];
-      int len = fin.read(buffer);
-      while (len != -1) {
-        fout.write(buffer, 0, len);
-        len = fin.read(buffer);
+    MessageDigest md = cryptoContext.getMd5();
+    try (InputStream fin = new DigestInputStream(new CipherInputStream(new FileInputStream(original), c), md)) {
+      byte[] buffer = new byte[DECRYPT_BUFFER_SIZE];
+      int len;
+      while ((len = fin.read(buffer)) != -1) {
+        if (out != null)
+          out.write(buffer, 0, len);
       }
-      fout.flush();
-      log.debug("Decrypted:" + original.getName() + " -> " + decryptedFile.getName());
+      log.debug("Decrypted:" + original.getName() + " -> " + name);
+    }
+    return FileHashCache.toHex(md.digest());
+  }
+
+  private static String getDecryptedFileName(String name) {
+    if (!name.endsWith(ENCRYPTED_FILE_EXTENSION)) {
+      String errMsg = "Unexpected non-" + ENCRYPTED_FILE_EXTENSION + " extension " + name
+          + " -- ignoring file";
+      throw new IllegalArgumentException(errMsg);
     }
+    return name.substring(0, name.length() - ENCRYPTED_FILE_EXTENSION.length());
   }
 
-  private static boolean decryptSubmissionFiles(String base64EncryptedSymmetricKey,
-                                                FormInstanceMetadata fim, List<String> mediaNames,
-                                                String encryptedSubmissionFile, String base64EncryptedElementSignature,
-                                                PrivateKey rsaPrivateKey, File instanceDir, File unencryptedDir) throws FileSystemException,
+  /**
+   * Decrypts and validates the files of an encrypted submission. Media files
+   * are only written to unencryptedDir when it is not null, and the
+   * submission is parsed straight from its decrypted contents, without being
+   * written to disk.
+   */
+  private static DecryptOutcome decryptSubmissionFiles(String base64EncryptedSymmetricKey,
+                                                       FormInstanceMetadata fim, List<String> mediaNames,
+                                                       String encryptedSubmissionFile, String base64EncryptedElementSignature,
+                                                       CryptoContext cryptoContext, File instanceDir, File unencryptedDir) throws FileSystemException,
       CryptoException, ParsingException {
 
-    EncryptionInformation ei = new EncryptionInformation(base64EncryptedSymmetricKey, fim.instanceId, rsaPrivateKey);
+    EncryptionInformation ei = new EncryptionInformation(base64EncryptedSymmetricKey, fim.instanceId, cryptoContext);
 
     byte[] elementDigest;
     try {
-      // construct the base64-encoded RSA-encrypted symmetric key
-      Cipher pkCipher;
-      pkCipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
       // extract digest
-      pkCipher.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
       byte[] encryptedElementSignature = Base64.decodeBase64(base64EncryptedElementSignature);
-      elementDigest = pkCipher.doFinal(encryptedElementSignature);
+      elementDigest = cryptoContext.rsaDecrypt(encryptedElementSignature);
     } catch (NoSuchAlgorithmException | BadPaddingException | IllegalBlockSizeException | InvalidKeyException
         | NoSuchPaddingException e) {
       String msg = "Error decrypting base64EncryptedElementSignature";
@@ -533,21 +566,24 @@ public class FileSystemUtils {
       }
       if (!filesToProcess.contains(new File(instanceDir, encryptedSubmissionFile))) {
         b.append(" ").append(encryptedSubmissionFile);
-        throw new FileSystemException("Error decrypting: " + instanceDir.getName() + " Missing files:" + b.toString());
+        throw new MissingFilesException("Error decrypting: " + instanceDir.getName() + " Missing files:" + b.toString());
       } else {
         // ignore the fact that we don't have the lost files
         if (filesToProcess.size() + lostFileCount != mediaNames.size() + 1) {
-          throw new FileSystemException("Error decrypting: " + instanceDir.getName() + " Missing files:" + b.toString());
+          throw new MissingFilesException("Error decrypting: " + instanceDir.getName() + " Missing files:" + b.toString());
         }
       }
     }
 
     // decrypt the media files IN ORDER.
+    List<String> mediaHashes = new ArrayList<>();
     for (String mediaName : mediaNames) {
       String displayedName = (mediaName == null) ? "<missing .enc file>" : mediaName;
       File f = (mediaName == null) ? null : new File(instanceDir, mediaName);
-      try {
-        decryptFile(ei, f, unencryptedDir);
+      File decryptedFile = (f == null || unencryptedDir == null) ? null : new File(unencryptedDir, getDecryptedFileName(f.getName()));
+      try (OutputStream out = (decryptedFile == null || decryptedFile.getName().endsWith(MISSING_FILE_EXTENSION))
+          ? null : new BufferedOutputStream(new FileOutputStream(decryptedFile), DECRYPT_BUFFER_SIZE)) {
+        mediaHashes.add(decryptFile(cryptoContext, ei, f, out));
       } catch (InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException
           | NoSuchAlgorithmException e) {
         String msg = "Error decrypting:" + displayedName;
@@ -562,8 +598,11 @@ public class FileSystemUtils {
 
     // decrypt the submission file
     File f = new File(instanceDir, encryptedSubmissionFile);
+    String submissionName = getDecryptedFileName(encryptedSubmissionFile);
+    ByteArrayOutputStream submissionXml = new ByteArrayOutputStream();
+    String submissionMd5;
     try {
-      decryptFile(ei, f, unencryptedDir);
+      submissionMd5 = decryptFile(cryptoContext, ei, f, submissionXml);
     } catch (InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException
         | NoSuchAlgorithmException e) {
       String msg = "Error decrypting:" + f.getName();
@@ -576,15 +615,13 @@ public class FileSystemUtils {
     }
 
     // get the FIM for the decrypted submission file
-    File submissionFile = new File(unencryptedDir,
-        encryptedSubmissionFile.substring(0, encryptedSubmissionFile.lastIndexOf(".enc")));
-
+    Document subDoc;
     FormInstanceMetadata submissionFim;
     try {
-      Document subDoc = XmlManipulationUtils.parseXml(submissionFile);
+      subDoc = XmlManipulationUtils.parseXml(submissionXml.toByteArray(), submissionName);
       submissionFim = XmlManipulationUtils.getFormInstanceMetadata(subDoc.getRootElement());
-    } catch (ParsingException | FileSystemException e) {
-      String msg = "Error decrypting: " + submissionFile.getName();
+    } catch (ParsingException e) {
+      String msg = "Error decrypting: " + submissionName;
       log.error(msg, e);
       throw new FileSystemException(msg + " Cause: " + e);
     }
@@ -592,7 +629,7 @@ public class FileSystemUtils {
     boolean same = submissionFim.xparam.formId.equals(fim.xparam.formId);
 
     if (!same) {
-      throw new FileSystemException("Error decrypting:" + unencryptedDir.getName()
+      throw new FileSystemException("Error decrypting:" + instanceDir.getName()
           + " Cause: form instance metadata differs from that in manifest");
     }
 
@@ -607,30 +644,22 @@ public class FileSystemUtils {
     appendElementSignatureSource(b, fim.instanceId);
 
     boolean missingFile = false;
-    for (String encFilename : mediaNames) {
-      if (encFilename == null) {
+    for (int i = 0; i < mediaNames.size(); i++) {
+      // this is a missing file -- we will not be able to
+      // confirm the signature of the submission.
+      if (mediaHashes.get(i) == null) {
         missingFile = true;
         continue;
       }
-      File decryptedFile = new File(unencryptedDir,
-          encFilename.substring(0, encFilename.lastIndexOf(".enc")));
-      if (decryptedFile.getName().endsWith(".missing")) {
-        // this is a missing file -- we will not be able to 
-        // confirm the signature of the submission.
-        missingFile = true;
-        continue;
-      }
-      String md5 = FileSystemUtils.getMd5Hash(decryptedFile);
-      appendElementSignatureSource(b, decryptedFile.getName() + "::" + md5);
+      appendElementSignatureSource(b, getDecryptedFileName(mediaNames.get(i)) + "::" + mediaHashes.get(i));
     }
 
-    String md5 = FileSystemUtils.getMd5Hash(submissionFile);
-    appendElementSignatureSource(b, submissionFile.getName() + "::" + md5);
+    appendElementSignatureSource(b, submissionName + "::" + submissionMd5);
 
     // compute the digest of the element signature string
     byte[] messageDigest;
     try {
-      MessageDigest md = MessageDigest.getInstance("MD5");
+      MessageDigest md = cryptoContext.getMd5();
       md.update(b.toString().getBytes("UTF-8"));
       messageDigest = md.digest();
     } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
@@ -647,7 +676,7 @@ public class FileSystemUtils {
       }
     }
 
-    return same;
+    return new DecryptOutcome(subDoc, same);
   }
 
   private static void appendElementSignatureSource(StringBuilder b, String value) {
@@ -664,9 +693,26 @@ public class FileSystemUtils {
     }
   }
 
+  /**
+   * Decrypts an encrypted submission, given its manifest, and checks its
+   * signature.
+   *
+   * @param unEncryptedDir directory where the decrypted media files are
+   *     written, or null when they are not needed
+   */
   public static DecryptOutcome decryptAndValidateSubmission(Document doc,
                                                             PrivateKey rsaPrivateKey, File instanceDir, File unEncryptedDir)
       throws ParsingException, FileSystemException, CryptoException {
+    return decryptAndValidateSubmission(doc, new CryptoContext(rsaPrivateKey), instanceDir, unEncryptedDir);
+  }
+
+  /**
+   * Same as {@link #decryptAndValidateSubmission(Document, PrivateKey, File, File)},
+   * reusing the ciphers of an export wide CryptoContext.
+   */
+  static DecryptOutcome decryptAndValidateSubmission(Document doc,
+                                                     CryptoContext cryptoContext, File instanceDir, File unEncryptedDir)
+      throws ParsingException, FileSystemException, CryptoException {
 
     Element rootElement = doc.getRootElement();
 
@@ -751,16 +797,12 @@ public class FileSystemUtils {
       throw new ParsingException("InstanceID within metadata does not match that on top level element.");
     }
 
-    boolean isValidated = FileSystemUtils.decryptSubmissionFiles(base64EncryptedSymmetricKey, fim,
+    DecryptOutcome outcome = FileSystemUtils.decryptSubmissionFiles(base64EncryptedSymmetricKey, fim,
         mediaNames, encryptedSubmissionFile,
-        base64EncryptedElementSignature, rsaPrivateKey, instanceDir, unEncryptedDir);
+        base64EncryptedElementSignature, cryptoContext, instanceDir, unEncryptedDir);
 
     // and change doc to be the decrypted submission document
-    File decryptedSubmission = new File(unEncryptedDir, "submission.xml");
-    doc = XmlManipulationUtils.parseXml(decryptedSubmission);
-    if (doc == null) {
-      return null;
-    }
+    doc = outcome.submission;
 
     // verify that the metadata matches between the manifest and the submission
     rootElement = doc.getRootElement();
@@ -774,6 +816,6 @@ public class FileSystemUtils {
           "InstanceId in decrypted submission does not match that in manifest!");
     }
 
-    return new DecryptOutcome(doc, isValidated);
+    return outcome;
   }
 }
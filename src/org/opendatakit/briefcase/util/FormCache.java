@@ -1,86 +1,348 @@
 package org.opendatakit.briefcase.util;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.zip.CRC32;
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Caches the hash and the parsed definition of the form files of the
+ * storage directory, in a binary file next to them.
+ * <p>
+ * The file starts with a magic number and a format version, followed by a
+ * log of records, each one holding a checksum, the form file path and
+ * either its hash or its definition. Records are appended as soon as an
+ * entry changes, and the last record of a path wins. A record cut short by a
+ * crash fails its checksum and is dropped with everything after it.
+ * <p>
+ * When opened, the file is memory-mapped and only the paths, hashes and form
+ * names are read. Definitions are deserialized the first time they are
+ * asked for. The file is compacted when opened if most of its records have
+ * been superseded.
+ */
 public class FormCache implements FormCacheable {
-    private final File cacheFile;
-    private Map<String, String> pathToMd5Map = new HashMap<>();
-    private Map<String, BriefcaseFormDefinition> pathToDefinitionMap = new HashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(FormCache.class);
+    private static final String CACHE_FILE = "form-cache.bin";
+    private static final String LEGACY_CACHE_FILE = "cache.ser";
+    private static final int MAGIC = 0x42434643; // "BCFC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final byte MD5_RECORD = 1;
+    private static final byte DEFINITION_RECORD = 2;
+
+    private final Path cacheFile;
+    private final Map<String, String> pathToMd5Map = new HashMap<>();
+    private final Map<String, Entry> pathToDefinitionMap = new LinkedHashMap<>();
+    private FileChannel appender;
 
-    @SuppressWarnings("unchecked")
     public FormCache(File storagePath) {
-        cacheFile = new File(storagePath, "cache.ser");
-        if (cacheFile.exists() && cacheFile.canRead()) {
-            try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(cacheFile))) {
-                pathToMd5Map = (Map) objectInputStream.readObject();
-                pathToDefinitionMap = (Map) objectInputStream.readObject();
-            } catch (IOException | ClassNotFoundException | ClassCastException e) {
-                e.printStackTrace();
+        cacheFile = storagePath.toPath().resolve(CACHE_FILE);
+        File legacyCacheFile = new File(storagePath, LEGACY_CACHE_FILE);
+        try {
+            if (Files.exists(cacheFile)) {
+                load();
+            } else {
+                if (legacyCacheFile.exists())
+                    loadLegacy(legacyCacheFile);
+                rewrite();
             }
+            if (legacyCacheFile.exists() && !legacyCacheFile.delete())
+                log.warn("unable to delete the old form cache " + legacyCacheFile);
+        } catch (IOException e) {
+            log.error("unable to read the form cache, starting with an empty one", e);
+            pathToMd5Map.clear();
+            pathToDefinitionMap.clear();
+            appender = null;
+        }
+    }
+
+    private void load() throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(cacheFile, READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            log.info("discarding form cache with unknown format " + cacheFile);
+            rewrite();
+            return;
         }
 
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            @Override
-            public void run() {
-                save();
+        int records = 0;
+        while (buffer.remaining() >= 8) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            long crc = buffer.getInt() & 0xFFFFFFFFL;
+            if (length <= 0 || length > buffer.remaining() || crc != checksum(buffer, buffer.position(), length)) {
+                buffer.position(start);
+                break;
+            }
+            ByteBuffer record = (ByteBuffer) buffer.slice().limit(length);
+            try {
+                readRecord(record);
+            } catch (RuntimeException e) {
+                log.warn("unreadable form cache record at " + start, e);
+                buffer.position(start);
+                break;
             }
-        });
+            buffer.position(buffer.position() + length);
+            records++;
+        }
+
+        boolean truncated = buffer.hasRemaining();
+        int live = pathToMd5Map.size() + pathToDefinitionMap.size();
+        if (!truncated && records <= 2 * live + 16) {
+            appender = FileChannel.open(cacheFile, WRITE, APPEND);
+            return;
+        }
+        // compact the log, or drop the unreadable tail
+        try {
+            rewrite();
+        } catch (IOException e) {
+            // some platforms won't replace a mapped file
+            log.warn("unable to compact the form cache", e);
+            if (!truncated)
+                appender = FileChannel.open(cacheFile, WRITE, APPEND);
+        }
     }
 
-    private void save() {
-        if (!cacheFile.exists() || cacheFile.canWrite()) {
-            try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream(cacheFile))) {
-                objectOutputStream.writeObject(pathToMd5Map);
-                objectOutputStream.writeObject(pathToDefinitionMap);
-            } catch (IOException e) {
-                e.printStackTrace();
+    private void readRecord(ByteBuffer record) {
+        byte type = record.get();
+        String path = readString(record);
+        switch (type) {
+            case MD5_RECORD:
+                pathToMd5Map.put(path, readString(record));
+                break;
+            case DEFINITION_RECORD:
+                String formName = readString(record);
+                pathToDefinitionMap.put(path, new Entry(formName, record.slice()));
+                break;
+            default:
+                log.warn("skipping unknown form cache record " + type);
+                break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadLegacy(File legacyCacheFile) {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(legacyCacheFile))) {
+            Map<String, String> md5s = (Map) objectInputStream.readObject();
+            Map<String, BriefcaseFormDefinition> definitions = (Map) objectInputStream.readObject();
+            pathToMd5Map.putAll(md5s);
+            if (definitions != null)
+                definitions.forEach((path, definition) -> pathToDefinitionMap.put(path, new Entry(definition)));
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            log.warn("ignoring unreadable form cache " + legacyCacheFile, e);
+            pathToMd5Map.clear();
+            pathToDefinitionMap.clear();
+        }
+    }
+
+    /**
+     * Writes the current entries into a new cache file, which then replaces
+     * the old one.
+     */
+    private void rewrite() throws IOException {
+        Path tmp = cacheFile.resolveSibling(CACHE_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            writeFully(channel, header);
+            for (Map.Entry<String, String> e : pathToMd5Map.entrySet())
+                writeFully(channel, md5Record(e.getKey(), e.getValue()));
+            for (Map.Entry<String, Entry> e : pathToDefinitionMap.entrySet())
+                writeFully(channel, definitionRecord(e.getKey(), e.getValue()));
+        }
+        if (appender != null)
+            appender.close();
+        Files.move(tmp, cacheFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        appender = FileChannel.open(cacheFile, WRITE, APPEND);
+    }
+
+    private synchronized void append(ByteBuffer record) {
+        if (appender == null)
+            return;
+        try {
+            writeFully(appender, record);
+        } catch (IOException e) {
+            // keep going with the entries in memory
+            log.error("unable to write to the form cache", e);
+            try {
+                appender.close();
+            } catch (IOException e1) {
+                log.warn("failed to close the form cache", e1);
             }
+            appender = null;
         }
     }
 
     @Override
-    public String getFormFileMd5Hash(String filePath) {
+    public synchronized String getFormFileMd5Hash(String filePath) {
         return pathToMd5Map.get(filePath);
     }
 
     @Override
-    public void putFormFileMd5Hash(String filePath, String md5Hash) {
+    public synchronized void putFormFileMd5Hash(String filePath, String md5Hash) {
+        if (md5Hash == null || md5Hash.equals(pathToMd5Map.get(filePath)))
+            return;
         pathToMd5Map.put(filePath, md5Hash);
+        append(md5Record(filePath, md5Hash));
     }
 
     @Override
-    public BriefcaseFormDefinition getFormFileFormDefinition(String filePath) {
-        if (pathToDefinitionMap == null) {
-            pathToDefinitionMap = new HashMap<>();
-        }
-        return pathToDefinitionMap.get(filePath);
+    public synchronized BriefcaseFormDefinition getFormFileFormDefinition(String filePath) {
+        Entry entry = pathToDefinitionMap.get(filePath);
+        return (entry == null) ? null : getDefinition(filePath, entry);
     }
 
     @Override
-    public void putFormFileFormDefinition(String filePath, BriefcaseFormDefinition definition) {
-        pathToDefinitionMap.put(filePath, definition);
+    public synchronized void putFormFileFormDefinition(String filePath, BriefcaseFormDefinition definition) {
+        Entry entry = new Entry(definition);
+        pathToDefinitionMap.put(filePath, entry);
+        try {
+            append(definitionRecord(filePath, entry));
+        } catch (IOException e) {
+            log.error("unable to serialize form definition " + filePath, e);
+        }
     }
 
     @Override
-    public List<BriefcaseFormDefinition> getForms() {
-        return new ArrayList<>(pathToDefinitionMap.values());
+    public synchronized List<BriefcaseFormDefinition> getForms() {
+        List<BriefcaseFormDefinition> forms = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : new ArrayList<>(pathToDefinitionMap.entrySet())) {
+            BriefcaseFormDefinition definition = getDefinition(e.getKey(), e.getValue());
+            if (definition != null)
+                forms.add(definition);
+        }
+        return forms;
     }
 
     @Override
-    public Optional<BriefcaseFormDefinition> getForm(String formName) {
-        return pathToDefinitionMap.values().stream()
-            .filter(formDefinition -> formDefinition.getFormName().equals(formName))
-            .findFirst();
+    public synchronized Optional<BriefcaseFormDefinition> getForm(String formName) {
+        // form names are stored next to the definitions, so only the match is deserialized
+        for (Map.Entry<String, Entry> e : new ArrayList<>(pathToDefinitionMap.entrySet())) {
+            if (e.getValue().formName.equals(formName)) {
+                BriefcaseFormDefinition definition = getDefinition(e.getKey(), e.getValue());
+                if (definition != null)
+                    return Optional.of(definition);
+            }
+        }
+        return Optional.empty();
+    }
+
+    private BriefcaseFormDefinition getDefinition(String filePath, Entry entry) {
+        if (entry.definition == null) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(entry.serialized()))) {
+                entry.definition = (BriefcaseFormDefinition) in.readObject();
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                // a stale entry just means the form gets parsed again
+                log.warn("dropping unreadable form cache entry " + filePath, e);
+                pathToDefinitionMap.remove(filePath);
+                return null;
+            }
+        }
+        return entry.definition;
+    }
+
+    private static ByteBuffer md5Record(String filePath, String md5Hash) {
+        byte[] path = filePath.getBytes(UTF_8);
+        byte[] md5 = md5Hash.getBytes(UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 4 + path.length + 4 + md5.length);
+        body.put(MD5_RECORD).putInt(path.length).put(path).putInt(md5.length).put(md5);
+        return record(body);
+    }
+
+    private static ByteBuffer definitionRecord(String filePath, Entry entry) throws IOException {
+        byte[] path = filePath.getBytes(UTF_8);
+        byte[] formName = entry.formName.getBytes(UTF_8);
+        byte[] definition = entry.serialized();
+        ByteBuffer body = ByteBuffer.allocate(1 + 4 + path.length + 4 + formName.length + definition.length);
+        body.put(DEFINITION_RECORD).putInt(path.length).put(path).putInt(formName.length).put(formName).put(definition);
+        return record(body);
+    }
+
+    private static ByteBuffer record(ByteBuffer body) {
+        body.flip();
+        ByteBuffer record = ByteBuffer.allocate(8 + body.remaining());
+        record.putInt(body.remaining()).putInt((int) checksum(body, 0, body.remaining())).put(body);
+        record.flip();
+        return record;
+    }
+
+    private static long checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset).limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(slice);
+        return crc.getValue();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * A cached definition, either still serialized in the mapped file or
+     * already deserialized.
+     */
+    private static class Entry {
+        final String formName;
+        private ByteBuffer serialized;
+        BriefcaseFormDefinition definition;
+
+        Entry(String formName, ByteBuffer serialized) {
+            this.formName = formName;
+            this.serialized = serialized;
+        }
+
+        Entry(BriefcaseFormDefinition definition) {
+            this.formName = definition.getFormName();
+            this.definition = definition;
+        }
+
+        byte[] serialized() throws IOException {
+            if (serialized == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(definition);
+                }
+                serialized = ByteBuffer.wrap(bytes.toByteArray());
+            }
+            byte[] copy = new byte[serialized.remaining()];
+            serialized.duplicate().get(copy);
+            return copy;
+        }
     }
 }
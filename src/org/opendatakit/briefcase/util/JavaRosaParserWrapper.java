@@ -5,26 +5,91 @@ import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.instance.TreeElement;
 import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData;
+import org.opendatakit.aggregate.exception.ODKIncompleteSubmissionData.Reason;
 import org.opendatakit.aggregate.form.XFormParameters;
 import org.opendatakit.aggregate.parser.BaseFormParserForJavaRosa;
 import org.opendatakit.common.web.constants.HtmlConsts;
 
 public class JavaRosaParserWrapper extends BaseFormParserForJavaRosa {
+  private static final int PARSE_CACHE_SIZE = 64;
+  // most recent parses, done or in progress, by hash of the form xml
+  private static final Map<String, FutureTask<JavaRosaParserWrapper>> parses =
+      new LinkedHashMap<String, FutureTask<JavaRosaParserWrapper>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FutureTask<JavaRosaParserWrapper>> eldest) {
+          return size() > PARSE_CACHE_SIZE;
+        }
+      };
+
   private final File formDefinitionFile;
   private final String md5Hash;
-  
-  public JavaRosaParserWrapper(File formDefinitionFile, String inputXml) throws ODKIncompleteSubmissionData {
+
+  private JavaRosaParserWrapper(String inputXml, String md5Hash) throws ODKIncompleteSubmissionData {
     super( inputXml, null, true );
+    this.formDefinitionFile = null;
+    this.md5Hash = md5Hash;
+  }
+
+  private JavaRosaParserWrapper(JavaRosaParserWrapper parsed, File formDefinitionFile) {
+    super(parsed);
     this.formDefinitionFile = formDefinitionFile;
+    this.md5Hash = parsed.md5Hash;
+  }
+
+  /**
+   * Parses a form definition. Forms can be parsed from any number of threads
+   * at once, and an xml that has recently been parsed, or is being parsed by
+   * another thread, is not parsed again: the result shares the JavaRosa form
+   * of the earlier parse, which must then be treated as read-only.
+   */
+  public static JavaRosaParserWrapper parse(File formDefinitionFile, String inputXml) throws ODKIncompleteSubmissionData {
+    String md5Hash;
     try {
       md5Hash = newMD5HashUri(inputXml.getBytes(HtmlConsts.UTF8_ENCODE));
     } catch (UnsupportedEncodingException e) {
       throw new IllegalStateException("should not happen");
     }
+
+    FutureTask<JavaRosaParserWrapper> parse;
+    boolean isNewParse = false;
+    synchronized (parses) {
+      parse = parses.get(md5Hash);
+      if (parse == null) {
+        parse = new FutureTask<>(() -> new JavaRosaParserWrapper(inputXml, md5Hash));
+        parses.put(md5Hash, parse);
+        isNewParse = true;
+      }
+    }
+    if (isNewParse)
+      parse.run();
+
+    try {
+      return new JavaRosaParserWrapper(parse.get(), formDefinitionFile);
+    } catch (ExecutionException e) {
+      // only successful parses are kept
+      synchronized (parses) {
+        parses.remove(md5Hash, parse);
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof ODKIncompleteSubmissionData)
+        throw (ODKIncompleteSubmissionData) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IllegalStateException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ODKIncompleteSubmissionData("Interrupted while waiting for the form to be parsed", e, Reason.BAD_JR_PARSE);
+    }
   }
 
   public final static String newMD5HashUri(byte[] asBytes) {
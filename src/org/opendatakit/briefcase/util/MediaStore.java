@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A store of media files under the briefcase folder, where each content is
+ * kept once, named after its MD5 hash.
+ * <p>
+ * Files enter the store as hard links to the files they come from, and
+ * leave it as hard links too, so the copies of a photo held by different
+ * instances, or pulled again, share the same disk space. When hard links
+ * aren't supported, like across volumes, files are copied instead.
+ * <p>
+ * Stored files are never modified in place: downloads and imports replace
+ * files by moving new ones over them, which leaves the store untouched.
+ */
+final class MediaStore {
+  private static final Logger log = LoggerFactory.getLogger(MediaStore.class);
+  static final String MEDIA_STORE_DIR = "media-store";
+  private static final Pattern MD5_PATTERN = Pattern.compile("[0-9a-fA-F]{32}");
+
+  private final Path root;
+
+  MediaStore(File briefcaseFolder) {
+    root = briefcaseFolder.toPath().toAbsolutePath().normalize().resolve(MEDIA_STORE_DIR);
+  }
+
+  /**
+   * Returns the path of the content with this hash, or null if the hash,
+   * which comes from the server, isn't a well-formed MD5 hash.
+   */
+  private Path getBlob(String md5Hash) {
+    if (md5Hash == null || !MD5_PATTERN.matcher(md5Hash).matches()) {
+      log.warn("ignoring malformed media file hash " + md5Hash);
+      return null;
+    }
+    String name = md5Hash.toLowerCase(Locale.ROOT);
+    Path blob = root.resolve(name.substring(0, 2)).resolve(name).normalize();
+    return blob.startsWith(root) ? blob : null;
+  }
+
+  /**
+   * Puts the stored content with this hash at the target file, replacing it.
+   * Returns false if the store doesn't hold that content.
+   */
+  boolean get(String md5Hash, File target) throws IOException {
+    Path blob = getBlob(md5Hash);
+    if (blob == null || !Files.exists(blob))
+      return false;
+    if (!md5Hash.equalsIgnoreCase(FileSystemUtils.getMd5Hash(blob.toFile()))) {
+      // something wrote through one of its links
+      log.warn("dropping corrupt media store file " + blob);
+      Files.deleteIfExists(blob);
+      return false;
+    }
+    Path tmp = target.toPath().resolveSibling(target.getName() + ".link");
+    try {
+      FileSystemUtils.linkOrCopy(blob, tmp);
+      Files.move(tmp, target.toPath(), REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    return true;
+  }
+
+  /**
+   * Adds a file, whose hash has already been checked, to the store.
+   */
+  void put(String md5Hash, File file) {
+    Path blob = getBlob(md5Hash);
+    if (blob == null || Files.exists(blob))
+      return;
+    Path tmp = blob.resolveSibling(blob.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      Files.createDirectories(blob.getParent());
+      FileSystemUtils.linkOrCopy(file.toPath(), tmp);
+      Files.move(tmp, blob, ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.warn("unable to add " + file + " to the media store", e);
+    } finally {
+      try {
+        Files.deleteIfExists(tmp);
+      } catch (IOException e) {
+        log.warn("unable to delete " + tmp, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Temporary file holding the observations of one Stata export table in the
+ * order they are produced. Each variable is given a column the first time a
+ * value is spooled for it, and values are stored by column. Only the columns,
+ * the number of observations and the widest value of each column are kept in
+ * memory.
+ */
+class ObservationSpool {
+  private static final Logger log = LoggerFactory.getLogger(ObservationSpool.class);
+
+  private static final byte OBSERVATION = 1;
+  private static final byte VALUE = 2;
+  private static final byte END = 3;
+  private static final int NULL_LENGTH = -1;
+
+  private final File file;
+  private final DataOutputStream output;
+  private final Map<String, Integer> columns = new HashMap<>();
+  private final List<Integer> maxLengths = new ArrayList<>();
+  private boolean closed = false;
+  private int count = 0;
+
+  ObservationSpool(File dir) throws IOException {
+    file = File.createTempFile(".dta", ".data", dir);
+    output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+  }
+
+  void startObservation(String name) throws IOException {
+    output.writeByte(OBSERVATION);
+    writeString(name);
+    count++;
+  }
+
+  /**
+   * Spools the value of a variable of the current observation. The variable
+   * is identified by its full name in the form, which is unique in the table.
+   */
+  void value(String varname, String value) throws IOException {
+    Integer column = columns.get(varname);
+    if (column == null) {
+      column = columns.size();
+      columns.put(varname, column);
+      maxLengths.add(0);
+    }
+    output.writeByte(VALUE);
+    output.writeInt(column);
+    int length = writeString(value);
+    if (length > maxLengths.get(column))
+      maxLengths.set(column, length);
+  }
+
+  void endObservation() throws IOException {
+    output.writeByte(END);
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the column of the given variable, or -1 if no value was spooled
+   * for it.
+   */
+  int getColumn(String varname) {
+    Integer column = columns.get(varname);
+    return column == null ? -1 : column;
+  }
+
+  /**
+   * Returns the length in UTF-8 bytes of the widest value seen in the given
+   * column.
+   */
+  int getMaxLength(int column) {
+    return column < 0 ? 0 : maxLengths.get(column);
+  }
+
+  /**
+   * Reads back the observations, one at a time, in the order they were
+   * written. The values are given by column, and are null when they were
+   * null or not spooled for the observation. The array is reused between
+   * observations.
+   */
+  void forEach(ObservationHandler handler) throws IOException {
+    close();
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      String name = null;
+      String[] values = new String[columns.size()];
+      int marker;
+      while ((marker = input.read()) != -1) {
+        switch (marker) {
+          case OBSERVATION:
+            name = readString(input);
+            Arrays.fill(values, null);
+            break;
+          case VALUE:
+            int column = input.readInt();
+            values[column] = readString(input);
+            break;
+          case END:
+            handler.accept(name, values);
+            break;
+          default:
+            throw new IOException("Corrupted observation spool " + file.getPath());
+        }
+      }
+    }
+  }
+
+  void delete() {
+    try {
+      close();
+    } catch (IOException e) {
+      log.warn("failed to close observation spool", e);
+    }
+    if (!file.delete())
+      file.deleteOnExit();
+  }
+
+  private void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      output.close();
+    }
+  }
+
+  private int writeString(String value) throws IOException {
+    if (value == null) {
+      output.writeInt(NULL_LENGTH);
+      return 0;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+    return bytes.length;
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    int length = input.readInt();
+    if (length == NULL_LENGTH)
+      return null;
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  interface ObservationHandler {
+    void accept(String name, String[] values) throws IOException;
+  }
+}
@@ -26,18 +26,23 @@ import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import org.bushe.swing.event.EventBus;
 import org.bushe.swing.event.annotation.AnnotationProcessor;
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
@@ -53,6 +58,7 @@ import org.opendatakit.briefcase.model.ServerConnectionInfo;
 import org.opendatakit.briefcase.model.TerminationFuture;
 import org.opendatakit.briefcase.model.TransmissionException;
 import org.opendatakit.briefcase.model.XmlDocumentFetchException;
+import org.opendatakit.briefcase.ui.StorageLocation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,12 +68,19 @@ public class ServerFetcher {
 
   private static final String MD5_COLON_PREFIX = "md5:";
 
-  private static final int MAX_ENTRIES = 100;
+  private static final int CHUNK_PREFETCH = 3;
+
+  private static final int SUBMISSIONS_IN_FLIGHT_PER_THREAD = 2;
+
+  private static final SubmissionChunk END_OF_CHUNKS = new SubmissionChunk(Collections.emptyList(), null);
 
   ServerConnectionInfo serverInfo;
 
   private TerminationFuture terminationFuture;
 
+  // null unless the media store is enabled
+  private final MediaStore mediaStore;
+
   public static String SUCCESS_STATUS = "Success.";
   public static String FAILED_STATUS = "Failed.";
 
@@ -124,6 +137,9 @@ public class ServerFetcher {
     AnnotationProcessor.process(this);// if not using AOP
     this.serverInfo = serverInfo;
     this.terminationFuture = future;
+    this.mediaStore = BriefcasePreferences.getBriefcaseMediaStoreProperty()
+        ? new MediaStore(new StorageLocation().getBriefcaseFolder())
+        : null;
   }
 
   public boolean isCancelled() {
@@ -279,26 +295,8 @@ public class ServerFetcher {
 
   ;
 
-  private static class DownloadThreadFactory implements ThreadFactory {
-    private static final AtomicInteger poolNumber = new AtomicInteger(1);
-    private final AtomicInteger threadNumber = new AtomicInteger(1);
-    private final String namePrefix;
-
-    public DownloadThreadFactory() {
-      namePrefix = "briefcase-pull-" + poolNumber.getAndIncrement() + "-thread-";
-    }
-
-    public Thread newThread(Runnable r) {
-      Thread t = new Thread(r, namePrefix + threadNumber.getAndIncrement());
-      t.setPriority(Thread.MIN_PRIORITY);
-      t.setDaemon(true);
-      return t;
-    }
-  }
-
-  private ExecutorService getFetchExecutorService() {
-    int downloadThreads = BriefcasePreferences.getBriefcaseParallelPullsProperty() ? MAX_CONNECTIONS_PER_ROUTE : 1;
-    return Executors.newFixedThreadPool(downloadThreads, new DownloadThreadFactory());
+  private int getDownloadThreads() {
+    return BriefcasePreferences.getBriefcaseParallelPullsProperty() ? MAX_CONNECTIONS_PER_ROUTE : 1;
   }
 
   private boolean downloadAllSubmissionsForForm(File formInstancesDir, DatabaseUtils formDatabase, BriefcaseFormDefinition lfd,
@@ -307,75 +305,92 @@ public class ServerFetcher {
     int chunkCount = 1;
     boolean allSuccessful = true;
     RemoteFormDefinition fd = getRemoteFormDefinition(fs);
-    ExecutorService execSvc = getFetchExecutorService();
-    CompletionService<SubmissionChunk> chunkCompleter = new ExecutorCompletionService<>(execSvc);
+    int downloadThreads = getDownloadThreads();
+    ExecutorService execSvc = Executors.newFixedThreadPool(downloadThreads, new BriefcaseThreadFactory("pull"));
     CompletionService<String> submissionCompleter = new ExecutorCompletionService<>(execSvc);
 
-    String oldWebsafeCursorString;
-    String websafeCursorString = "";
+    // Each chunk needs the cursor of the previous one, so chunks are fetched
+    // one after another by their own thread, which stays up to CHUNK_PREFETCH
+    // chunks ahead of the submission downloads.
+    ExecutorService chunkSvc = Executors.newSingleThreadExecutor(new BriefcaseThreadFactory("pull"));
+    BlockingQueue<SubmissionChunk> chunks = new ArrayBlockingQueue<>(CHUNK_PREFETCH);
+    Future<Boolean> chunksFetched = chunkSvc.submit(new SubmissionChunkPrefetch(fs, fd.getFormId(),
+        BriefcasePreferences.getBriefcasePullChunkSizeProperty(), chunks));
 
-    chunkCompleter.submit(new SubmissionChunkDownload(fs, fd.getFormId(), websafeCursorString));
-
-    boolean cursorFinished;
+    // Submission downloads are topped up as they complete, regardless of the
+    // chunk they come from, so that the pipeline doesn't drain between chunks.
+    int maxInFlight = downloadThreads * SUBMISSIONS_IN_FLIGHT_PER_THREAD;
+    int inFlight = 0;
 
     try {
-      do {
+      while (true) {
         if (isCancelled()) {
           fs.setStatusString("aborting fetching submission chunks...", true);
           EventBus.publish(new FormStatusEvent(fs));
           return false;
         }
 
-        fs.setStatusString("processing chunk " + chunkCount + "...", true);
-        EventBus.publish(new FormStatusEvent(fs));
-
-        oldWebsafeCursorString = websafeCursorString; // remember what we had...
         SubmissionChunk chunk;
         try {
-          chunk = chunkCompleter.take().get();
-          chunkCount += 1;
-          websafeCursorString = chunk.websafeCursorString;
-          cursorFinished = oldWebsafeCursorString.equals(websafeCursorString);
-        } catch (InterruptedException | ExecutionException e) {
+          chunk = chunks.poll(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
           return false;
         }
-
-        if (!cursorFinished) {
-          // submit another chunk request so it's ready by the time we finish processing this chunk
-          chunkCompleter.submit(new SubmissionChunkDownload(fs, fd.getFormId(), websafeCursorString));
+        if (chunk == null) {
+          // the prefetch thread may have been stopped before handing over
+          // the end of the chunks
+          if (chunksFetched.isDone() && chunks.isEmpty())
+            break;
+          continue;
         }
+        if (chunk == END_OF_CHUNKS)
+          break;
+
+        fs.setStatusString("processing chunk " + chunkCount++ + "...", true);
+        EventBus.publish(new FormStatusEvent(fs));
 
-        // submit a download job for each uri in the chunk
         for (String uri : chunk.uriList) {
+          for (; inFlight >= maxInFlight; inFlight--) {
+            if (isCancelled()) {
+              fs.setStatusString("aborting processing submissions...", true);
+              EventBus.publish(new FormStatusEvent(fs));
+              return false;
+            }
+            if (takeSubmission(submissionCompleter, fs, submissionCount))
+              submissionCount++;
+            else
+              allSuccessful = false;
+          }
           if (isCancelled()) {
             fs.setStatusString("aborting requesting submissions...", true);
             EventBus.publish(new FormStatusEvent(fs));
             return false;
           }
-          submissionCompleter.submit(new SubmissionDownload(formInstancesDir, formDatabase, lfd, fs, uri));
+          submissionCompleter.submit(new SubmissionDownload(formInstancesDir, formDatabase, lfd, fs, uri, execSvc));
+          inFlight++;
         }
+      }
 
-        // call take() and get() exactly once for each download submitted above (we don't need the uri)
-        for (int i = 0; i < chunk.uriList.size(); i++) {
-          if (isCancelled()) {
-            fs.setStatusString("aborting processing submissions...", true);
-            EventBus.publish(new FormStatusEvent(fs));
-            return false;
-          }
-          try {
-            submissionCompleter.take().get();
-            fs.setStatusString(String.format("fetched instance %s...", submissionCount++), true);
-            EventBus.publish(new FormStatusEvent(fs));
-          } catch (InterruptedException | ExecutionException e) {
-            log.error("failure during submission download", e);
-            allSuccessful = false;
-            fs.setStatusString("Submission not retrieved: " + e.getMessage(), false);
-            EventBus.publish(new FormStatusEvent(fs));
-            // but try to get the next one...
-          }
+      for (; inFlight > 0; inFlight--) {
+        if (isCancelled()) {
+          fs.setStatusString("aborting processing submissions...", true);
+          EventBus.publish(new FormStatusEvent(fs));
+          return false;
         }
-      } while (!cursorFinished);
+        if (takeSubmission(submissionCompleter, fs, submissionCount))
+          submissionCount++;
+        else
+          allSuccessful = false;
+      }
+
+      try {
+        allSuccessful = chunksFetched.get() && allSuccessful;
+      } catch (InterruptedException | ExecutionException e) {
+        log.error("failure during submission chunk download", e);
+        return false;
+      }
     } finally {
+      chunkSvc.shutdownNow();
       execSvc.shutdown();
       try {
         execSvc.awaitTermination(1, TimeUnit.MINUTES);
@@ -386,20 +401,91 @@ public class ServerFetcher {
     return allSuccessful;
   }
 
+  /**
+   * Waits for the next submission download to complete and reports it.
+   *
+   * @return true if the submission was downloaded
+   */
+  private boolean takeSubmission(CompletionService<String> submissionCompleter, FormStatus fs, int submissionCount) {
+    try {
+      submissionCompleter.take().get();
+      fs.setStatusString(String.format("fetched instance %s...", submissionCount), true);
+      EventBus.publish(new FormStatusEvent(fs));
+      return true;
+    } catch (InterruptedException | ExecutionException e) {
+      log.error("failure during submission download", e);
+      fs.setStatusString("Submission not retrieved: " + e.getMessage(), false);
+      EventBus.publish(new FormStatusEvent(fs));
+      return false;
+    }
+  }
+
+  /**
+   * Walks the submission list of a form, chunk by chunk, and hands the chunks
+   * over through a bounded queue, followed by {@link #END_OF_CHUNKS}. Nothing
+   * more is handed over once the pull is cancelled or the thread interrupted,
+   * since nobody may be taking chunks any more.
+   */
+  private class SubmissionChunkPrefetch implements Callable<Boolean> {
+
+    private final FormStatus fs;
+    private final String formId;
+    private final int chunkSize;
+    private final BlockingQueue<SubmissionChunk> chunks;
+
+    SubmissionChunkPrefetch(FormStatus fs, String formId, int chunkSize, BlockingQueue<SubmissionChunk> chunks) {
+      this.fs = fs;
+      this.formId = formId;
+      this.chunkSize = chunkSize;
+      this.chunks = chunks;
+    }
+
+    @Override
+    public Boolean call() throws InterruptedException {
+      String websafeCursorString = "";
+      try {
+        while (!isCancelled()) {
+          SubmissionChunk chunk = new SubmissionChunkDownload(fs, formId, websafeCursorString, chunkSize).call();
+          if (!handOver(chunk))
+            return false;
+          if (websafeCursorString.equals(chunk.websafeCursorString))
+            return handOver(END_OF_CHUNKS);
+          websafeCursorString = chunk.websafeCursorString;
+        }
+        return false;
+      } catch (ParsingException | XmlDocumentFetchException e) {
+        log.error("failure during submission chunk download", e);
+        handOver(END_OF_CHUNKS);
+        return false;
+      }
+    }
+
+    /**
+     * Waits for room in the queue for a chunk, and returns false, without
+     * queuing it, if the pull gets cancelled meanwhile.
+     */
+    private boolean handOver(SubmissionChunk chunk) throws InterruptedException {
+      while (!chunks.offer(chunk, 1, TimeUnit.SECONDS))
+        if (isCancelled())
+          return false;
+      return true;
+    }
+  }
+
   private class SubmissionChunkDownload implements Callable<SubmissionChunk> {
 
     private final FormStatus fs;
     private final String fullUrl;
 
-    SubmissionChunkDownload(FormStatus fs, String formId, String cursor) {
+    SubmissionChunkDownload(FormStatus fs, String formId, String cursor, int chunkSize) {
       this.fs = fs;
-      this.fullUrl = getChunkUrl(formId, cursor);
+      this.fullUrl = getChunkUrl(formId, cursor, chunkSize);
     }
 
-    private String getChunkUrl(String formId, String cursor) {
+    private String getChunkUrl(String formId, String cursor, int chunkSize) {
       String baseUrl = serverInfo.getUrl() + "/view/submissionList";
       Map<String, String> params = new HashMap<>();
-      params.put("numEntries", Integer.toString(MAX_ENTRIES));
+      params.put("numEntries", Integer.toString(chunkSize));
       params.put("formId", formId);
       params.put("cursor", cursor);
       return WebUtils.createLinkWithProperties(baseUrl, params);
@@ -431,18 +517,20 @@ public class ServerFetcher {
     private BriefcaseFormDefinition lfd;
     private FormStatus fs;
     private String uri;
+    private Executor executor;
 
-    SubmissionDownload(File formInstancesDir, DatabaseUtils formDatabase, BriefcaseFormDefinition lfd, FormStatus fs, String uri) {
+    SubmissionDownload(File formInstancesDir, DatabaseUtils formDatabase, BriefcaseFormDefinition lfd, FormStatus fs, String uri, Executor executor) {
       this.formInstancesDir = formInstancesDir;
       this.formDatabase = formDatabase;
       this.lfd = lfd;
       this.fs = fs;
       this.uri = uri;
+      this.executor = executor;
     }
 
     @Override
     public String call() throws Exception {
-      downloadSubmission(formInstancesDir, formDatabase, lfd, fs, uri);
+      downloadSubmission(formInstancesDir, formDatabase, lfd, fs, uri, executor);
       return uri;
     }
   }
@@ -460,7 +548,7 @@ public class ServerFetcher {
   }
 
   private void downloadSubmission(File formInstancesDir, DatabaseUtils formDatabase, BriefcaseFormDefinition lfd, FormStatus fs,
-                                  String uri) throws Exception {
+                                  String uri, Executor executor) throws Exception {
 
     File instanceFolder = formDatabase.hasRecordedInstance(uri);
     if (instanceFolder != null) {
@@ -513,9 +601,7 @@ public class ServerFetcher {
           submissionManifest.instanceID);
 
       // fetch attachments
-      for (MediaFile m : submissionManifest.attachmentList) {
-        downloadMediaFileIfChanged(instanceDir, m, fs);
-      }
+      downloadAttachments(instanceDir, submissionManifest.attachmentList, fs, executor);
 
       // write submission file -- we rely on instanceId being unique...
       File submissionFile = new File(instanceDir, "submission.xml");
@@ -534,9 +620,7 @@ public class ServerFetcher {
           submissionManifest.instanceID);
 
       // fetch attachments
-      for (MediaFile m : submissionManifest.attachmentList) {
-        downloadMediaFileIfChanged(instanceDir, m, fs);
-      }
+      downloadAttachments(instanceDir, submissionManifest.attachmentList, fs, executor);
 
       // write submission file
       File submissionFile = new File(instanceDir, "submission.xml");
@@ -553,6 +637,49 @@ public class ServerFetcher {
 
   }
 
+  /**
+   * Downloads the attachments of a submission on the pull executor and
+   * returns once all of them are done. The calling thread also runs the
+   * downloads that haven't been picked up yet, so that submissions waiting
+   * for their attachments can't starve the pool they are running on.
+   */
+  private void downloadAttachments(File instanceDir, List<MediaFile> attachments, FormStatus fs, Executor executor) throws Exception {
+    if (attachments.size() < 2) {
+      for (MediaFile m : attachments)
+        downloadMediaFileIfChanged(instanceDir, m, fs);
+      return;
+    }
+
+    List<FutureTask<Void>> downloads = new ArrayList<>();
+    for (MediaFile m : attachments) {
+      FutureTask<Void> download = new FutureTask<>(() -> {
+        downloadMediaFileIfChanged(instanceDir, m, fs);
+        return null;
+      });
+      downloads.add(download);
+      try {
+        executor.execute(download);
+      } catch (RejectedExecutionException e) {
+        // the pull is shutting down, this thread will run it below
+      }
+    }
+    for (FutureTask<Void> download : downloads)
+      download.run();
+
+    Exception failure = null;
+    for (FutureTask<Void> download : downloads) {
+      try {
+        download.get();
+      } catch (ExecutionException e) {
+        log.error("failure during attachment download", e.getCause());
+        if (failure == null)
+          failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+
   public static class MediaFile {
     final String filename;
     final String hash;
@@ -611,24 +738,31 @@ public class ServerFetcher {
 
     File mediaFile = new File(mediaDir, m.filename);
 
+    String hashToMatch = null;
     if (m.hash.startsWith(MD5_COLON_PREFIX)) {
       // see if the file exists and has the same hash
-      String hashToMatch = m.hash.substring(MD5_COLON_PREFIX.length());
+      hashToMatch = m.hash.substring(MD5_COLON_PREFIX.length());
       if (mediaFile.exists()) {
         String hash = FileSystemUtils.getMd5Hash(mediaFile);
         if (hash.equalsIgnoreCase(hashToMatch))
           return;
-        mediaFile.delete();
+        // the outdated file is replaced once the new one is downloaded
       }
     }
 
+    // no need to download content that is already held
+    if (hashToMatch != null && mediaStore != null && mediaStore.get(hashToMatch, mediaFile))
+      return;
+
     if (isCancelled()) {
       fs.setStatusString("aborting fetch of media file...", true);
       EventBus.publish(new FormStatusEvent(fs));
       throw new TransmissionException("Transfer cancelled by user.");
     }
 
-    AggregateUtils.commonDownloadFile(serverInfo, mediaFile, m.downloadUrl);
+    AggregateUtils.commonDownloadFile(serverInfo, mediaFile, m.downloadUrl, hashToMatch);
+    if (hashToMatch != null && mediaStore != null)
+      mediaStore.put(hashToMatch, mediaFile);
   }
 
   public static final List<RemoteFormDefinition> retrieveAvailableFormsFromServer(ServerConnectionInfo serverInfo, TerminationFuture terminationFuture) throws XmlDocumentFetchException, ParsingException {
@@ -16,19 +16,29 @@
 
 package org.opendatakit.briefcase.util;
 
+import static org.opendatakit.briefcase.util.WebUtils.MAX_CONNECTIONS_PER_ROUTE;
+
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 import org.bushe.swing.event.EventBus;
 import org.bushe.swing.event.annotation.AnnotationProcessor;
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.BriefcasePreferences;
 import org.opendatakit.briefcase.model.DocumentDescription;
 import org.opendatakit.briefcase.model.FileSystemException;
 import org.opendatakit.briefcase.model.FormStatus;
@@ -48,7 +58,7 @@ public class ServerUploader {
 
   private static final Logger log = LoggerFactory.getLogger(ServerUploader.class);
 
-  private final int MAX_ENTRIES = 100;
+  private static final int SUBMISSIONS_IN_FLIGHT_PER_THREAD = 2;
 
   private final ServerConnectionInfo serverInfo;
   private final TerminationFuture terminationFuture;
@@ -121,7 +131,18 @@ public class ServerUploader {
      * it has, so we don't need to send any of these to the server, as that POST
      * request will be treated as a no-op.
      */
+    Set<String> serverInstanceIds = new HashSet<>();
+    try {
+      fetchServerInstanceIds(fs, serverInstanceIds);
+    } finally {
+      // even a partial list saves uploads
+      instancesToUpload.removeAll(formDatabase.getRecordedInstanceDirectories(serverInstanceIds));
+    }
+  }
+
+  private void fetchServerInstanceIds(FormStatus fs, Set<String> serverInstanceIds) {
     String baseUrl = serverInfo.getUrl() + "/view/submissionList";
+    int pageSize = BriefcasePreferences.getBriefcasePullChunkSizeProperty();
 
     String oldWebsafeCursorString = "not-empty";
     String websafeCursorString = "";
@@ -136,7 +157,7 @@ public class ServerUploader {
       EventBus.publish(new FormStatusEvent(fs));
 
       Map<String, String> params = new HashMap<>();
-      params.put("numEntries", Integer.toString(MAX_ENTRIES));
+      params.put("numEntries", Integer.toString(pageSize));
       params.put("formId", fs.getFormDefinition().getFormId());
       params.put("cursor", websafeCursorString);
       String fullUrl = WebUtils.createLinkWithProperties(baseUrl, params);
@@ -163,13 +184,7 @@ public class ServerUploader {
         return;
       }
       websafeCursorString = chunk.websafeCursorString;
-
-      for (String uri : chunk.uriList) {
-        File f = formDatabase.hasRecordedInstance(uri);
-        if (f != null) {
-          instancesToUpload.remove(f);
-        }
-      }
+      serverInstanceIds.addAll(chunk.uriList);
     }
   }
 
@@ -224,16 +239,9 @@ public class ServerUploader {
         // exclude submissions the server reported as already submitted
         subtractServerInstances(formToTransfer, formDatabase, briefcaseInstances);
 
-        int i = 1;
-        for (File briefcaseInstance : briefcaseInstances) {
-          outcome = uploadSubmission(formDatabase, formToTransfer, u, i++, briefcaseInstances.size(), briefcaseInstance);
-          thisFormSuccessful = thisFormSuccessful & outcome;
-          allSuccessful = allSuccessful & outcome;
-          // and stop this loop quickly if we're cancelled...
-          if (isCancelled()) {
-            break;
-          }
-        }
+        outcome = uploadSubmissions(formDatabase, formToTransfer, u, briefcaseInstances);
+        thisFormSuccessful = thisFormSuccessful & outcome;
+        allSuccessful = allSuccessful & outcome;
       } catch (SQLException | FileSystemException e) {
         thisFormSuccessful = false;
         allSuccessful = false;
@@ -270,6 +278,74 @@ public class ServerUploader {
     return allSuccessful;
   }
 
+  private int getUploadThreads() {
+    return BriefcasePreferences.getBriefcaseParallelPushesProperty() ? MAX_CONNECTIONS_PER_ROUTE : 1;
+  }
+
+  /**
+   * Uploads the submissions of a form, once its definition is on the server.
+   * Submissions don't depend on each other, so in parallel push mode they
+   * are posted by a bounded pool of threads.
+   */
+  private boolean uploadSubmissions(DatabaseUtils formDatabase, FormStatus formToTransfer, URI u, Set<File> briefcaseInstances) {
+    boolean successful = true;
+    int total = briefcaseInstances.size();
+    int uploadThreads = getUploadThreads();
+
+    if (uploadThreads == 1) {
+      int i = 1;
+      for (File briefcaseInstance : briefcaseInstances) {
+        successful = successful & uploadSubmission(formDatabase, formToTransfer, u, i++, total, briefcaseInstance);
+        // and stop this loop quickly if we're cancelled...
+        if (isCancelled()) {
+          break;
+        }
+      }
+      return successful;
+    }
+
+    ExecutorService execSvc = Executors.newFixedThreadPool(uploadThreads, new BriefcaseThreadFactory("push"));
+    CompletionService<Boolean> uploadCompleter = new ExecutorCompletionService<>(execSvc);
+    int maxInFlight = uploadThreads * SUBMISSIONS_IN_FLIGHT_PER_THREAD;
+    int inFlight = 0;
+    try {
+      int i = 1;
+      for (File briefcaseInstance : briefcaseInstances) {
+        for (; inFlight >= maxInFlight; inFlight--)
+          successful = successful & takeUpload(uploadCompleter, formToTransfer);
+        // and stop this loop quickly if we're cancelled...
+        if (isCancelled()) {
+          break;
+        }
+        int count = i++;
+        uploadCompleter.submit(() -> uploadSubmission(formDatabase, formToTransfer, u, count, total, briefcaseInstance));
+        inFlight++;
+      }
+      // uploads still in flight abort by themselves when cancelled
+      for (; inFlight > 0; inFlight--)
+        successful = successful & takeUpload(uploadCompleter, formToTransfer);
+    } finally {
+      execSvc.shutdown();
+      try {
+        execSvc.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        log.warn("interrupted while waiting for push to complete");
+      }
+    }
+    return successful;
+  }
+
+  private boolean takeUpload(CompletionService<Boolean> uploadCompleter, FormStatus formToTransfer) {
+    try {
+      return uploadCompleter.take().get();
+    } catch (InterruptedException | ExecutionException e) {
+      log.error("failure during submission upload", e);
+      formToTransfer.setStatusString("Submission not uploaded: " + e.getMessage(), false);
+      EventBus.publish(new FormStatusEvent(formToTransfer));
+      return false;
+    }
+  }
+
   public boolean uploadForm(FormStatus formToTransfer, File briefcaseFormDefFile, File briefcaseFormMediaDir) {
     // very similar to upload submissions...
 
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes a binary Stata dataset in the .dta format 118 (Stata 14 and later).
+ * <p>
+ * Records are fixed-width and little-endian, and are written through a
+ * buffered {@link FileChannel}. Numeric variables are stored as doubles and
+ * string variables as str# sized to their widest value, or as strL when
+ * that is wider than {@link #MAX_STR_LENGTH} bytes.
+ */
+class StataDtaWriter {
+  private static final int RELEASE = 118;
+  private static final int MAX_STR_LENGTH = 2045;
+  private static final int TYPE_STRL = 32768;
+  private static final int TYPE_DOUBLE = 65526;
+  private static final long MISSING_DOUBLE = 0x7fe0000000000000L;
+  private static final int STRL_ASCII = 130;
+  private static final int MAX_NAME_CHARS = 32;
+  private static final int NAME_LENGTH = 129;
+  private static final int FORMAT_LENGTH = 57;
+  private static final int VARIABLE_LABEL_LENGTH = 321;
+  private static final int DATA_LABEL_LENGTH = 320;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final List<DtaVariable> variables;
+  private final ObservationSpool spool;
+  private final Map<String, Map<Integer, String>> valueLabels;
+  private final String dataLabel;
+
+  private final String[] names;
+  private final int[] columns;
+  private final int[] types;
+  private final int[] widths;
+  private final long[] map = new long[14];
+
+  private FileChannel channel;
+  private ByteBuffer buffer;
+  private long observation;
+
+  /**
+   * @param variables   the variables of the table, in output order
+   * @param spool       the observations of the table
+   * @param valueLabels value label tables, by the full name of the
+   *                    variable they apply to
+   * @param dataLabel   the label of the dataset
+   */
+  StataDtaWriter(List<DtaVariable> variables, ObservationSpool spool, Map<String, Map<Integer, String>> valueLabels, String dataLabel) {
+    this.variables = variables;
+    this.spool = spool;
+    this.valueLabels = valueLabels;
+    this.dataLabel = dataLabel;
+    names = getUniqueNames(variables);
+    columns = new int[variables.size()];
+    types = new int[variables.size()];
+    widths = new int[variables.size()];
+    for (int i = 0; i < variables.size(); i++) {
+      DtaVariable variable = variables.get(i);
+      columns[i] = spool.getColumn(variable.fullName);
+      if (!variable.isString()) {
+        types[i] = TYPE_DOUBLE;
+        widths[i] = 8;
+      } else {
+        int maxLength = Math.max(1, spool.getMaxLength(columns[i]));
+        types[i] = maxLength > MAX_STR_LENGTH ? TYPE_STRL : maxLength;
+        widths[i] = maxLength > MAX_STR_LENGTH ? 8 : maxLength;
+      }
+    }
+  }
+
+  void write(File file) throws IOException {
+    try (FileChannel fileChannel = FileChannel.open(file.toPath(), CREATE, WRITE, TRUNCATE_EXISTING)) {
+      channel = fileChannel;
+      buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+      map[0] = position();
+      tag("<stata_dta>");
+      writeHeader();
+
+      map[1] = position();
+      tag("<map>");
+      long mapPosition = position();
+      for (int i = 0; i < map.length; i++)
+        buffer(8).putLong(0);
+      tag("</map>");
+
+      map[2] = position();
+      tag("<variable_types>");
+      for (int type : types)
+        buffer(2).putShort((short) type);
+      tag("</variable_types>");
+
+      map[3] = position();
+      tag("<varnames>");
+      for (String name : names)
+        terminated(name, NAME_LENGTH);
+      tag("</varnames>");
+
+      map[4] = position();
+      tag("<sortlist>");
+      for (int i = 0; i <= variables.size(); i++)
+        buffer(2).putShort((short) 0);
+      tag("</sortlist>");
+
+      map[5] = position();
+      tag("<formats>");
+      for (int i = 0; i < variables.size(); i++)
+        terminated(getFormat(i), FORMAT_LENGTH);
+      tag("</formats>");
+
+      map[6] = position();
+      tag("<value_label_names>");
+      for (int i = 0; i < variables.size(); i++)
+        terminated(hasValueLabels(i) ? names[i] : "", NAME_LENGTH);
+      tag("</value_label_names>");
+
+      map[7] = position();
+      tag("<variable_labels>");
+      for (DtaVariable variable : variables)
+        terminated(variable.label == null ? "" : variable.label, VARIABLE_LABEL_LENGTH);
+      tag("</variable_labels>");
+
+      map[8] = position();
+      tag("<characteristics>");
+      tag("</characteristics>");
+
+      map[9] = position();
+      tag("<data>");
+      writeData();
+      tag("</data>");
+
+      map[10] = position();
+      tag("<strls>");
+      writeStrls();
+      tag("</strls>");
+
+      map[11] = position();
+      tag("<value_labels>");
+      writeValueLabels();
+      tag("</value_labels>");
+
+      map[12] = position();
+      tag("</stata_dta>");
+      map[13] = position();
+      flush();
+
+      ByteBuffer mapBuffer = ByteBuffer.allocate(8 * map.length).order(ByteOrder.LITTLE_ENDIAN);
+      for (long offset : map)
+        mapBuffer.putLong(offset);
+      mapBuffer.flip();
+      while (mapBuffer.hasRemaining())
+        channel.write(mapBuffer, mapPosition + mapBuffer.position());
+    } finally {
+      channel = null;
+      buffer = null;
+    }
+  }
+
+  private void writeHeader() throws IOException {
+    tag("<header>");
+    tag("<release>");
+    tag(Integer.toString(RELEASE));
+    tag("</release>");
+    tag("<byteorder>");
+    tag("LSF");
+    tag("</byteorder>");
+    tag("<K>");
+    buffer(2).putShort((short) variables.size());
+    tag("</K>");
+    tag("<N>");
+    buffer(8).putLong(spool.getCount());
+    tag("</N>");
+    tag("<label>");
+    byte[] label = truncate(dataLabel == null ? "" : dataLabel, DATA_LABEL_LENGTH);
+    buffer(2).putShort((short) label.length);
+    bytes(label);
+    tag("</label>");
+    tag("<timestamp>");
+    byte[] timestamp = new SimpleDateFormat("dd MMM yyyy HH:mm", Locale.ENGLISH).format(new Date()).getBytes(US_ASCII);
+    buffer(1).put((byte) timestamp.length);
+    bytes(timestamp);
+    tag("</timestamp>");
+    tag("</header>");
+  }
+
+  private void writeData() throws IOException {
+    observation = 0;
+    spool.forEach((name, values) -> {
+      observation++;
+      for (int i = 0; i < variables.size(); i++) {
+        String value = columns[i] < 0 ? null : values[columns[i]];
+        if (types[i] == TYPE_DOUBLE) {
+          buffer(8).putLong(toDoubleBits(value));
+        } else if (types[i] == TYPE_STRL) {
+          ByteBuffer b = buffer(8);
+          if (value == null || value.isEmpty()) {
+            b.putLong(0);
+          } else {
+            // v in the first 2 bytes, o in the remaining 6
+            b.putShort((short) (i + 1));
+            b.putShort((short) observation);
+            b.putInt((int) (observation >>> 16));
+          }
+        } else {
+          fixed(value == null ? "" : value, widths[i]);
+        }
+      }
+    });
+  }
+
+  private void writeStrls() throws IOException {
+    boolean hasStrls = false;
+    for (int type : types)
+      hasStrls = hasStrls || type == TYPE_STRL;
+    if (!hasStrls)
+      return;
+
+    observation = 0;
+    spool.forEach((name, values) -> {
+      observation++;
+      for (int i = 0; i < variables.size(); i++) {
+        if (types[i] != TYPE_STRL || columns[i] < 0)
+          continue;
+        String value = values[columns[i]];
+        if (value == null || value.isEmpty())
+          continue;
+        byte[] bytes = value.getBytes(UTF_8);
+        tag("GSO");
+        buffer(4).putInt(i + 1);
+        buffer(8).putLong(observation);
+        buffer(1).put((byte) STRL_ASCII);
+        buffer(4).putInt(bytes.length + 1);
+        bytes(bytes);
+        buffer(1).put((byte) 0);
+      }
+    });
+  }
+
+  private void writeValueLabels() throws IOException {
+    for (int i = 0; i < variables.size(); i++) {
+      if (!hasValueLabels(i))
+        continue;
+      Map<Integer, String> labels = valueLabels.get(variables.get(i).fullName);
+
+      int n = labels.size();
+      int[] offsets = new int[n];
+      int[] values = new int[n];
+      byte[][] texts = new byte[n][];
+      int textLength = 0;
+      int j = 0;
+      for (Map.Entry<Integer, String> entry : labels.entrySet()) {
+        values[j] = entry.getKey();
+        texts[j] = truncate(entry.getValue() == null ? "" : entry.getValue(), VARIABLE_LABEL_LENGTH - 1);
+        offsets[j] = textLength;
+        textLength += texts[j].length + 1;
+        j++;
+      }
+
+      tag("<lbl>");
+      buffer(4).putInt(8 + 8 * n + textLength);
+      terminated(names[i], NAME_LENGTH);
+      bytes(new byte[3]);
+      buffer(4).putInt(n);
+      buffer(4).putInt(textLength);
+      for (int offset : offsets)
+        buffer(4).putInt(offset);
+      for (int value : values)
+        buffer(4).putInt(value);
+      for (byte[] text : texts) {
+        bytes(text);
+        buffer(1).put((byte) 0);
+      }
+      tag("</lbl>");
+    }
+  }
+
+  private boolean hasValueLabels(int i) {
+    Map<Integer, String> labels = valueLabels.get(variables.get(i).fullName);
+    return types[i] == TYPE_DOUBLE && labels != null && !labels.isEmpty();
+  }
+
+  private String getFormat(int i) {
+    String format = variables.get(i).format;
+    boolean stringFormat = format != null && format.endsWith("s");
+    if (types[i] == TYPE_DOUBLE)
+      return format != null && !stringFormat ? format : "%15.0g";
+    if (types[i] == TYPE_STRL)
+      return "%9s";
+    return "%" + Math.min(widths[i], 244) + "s";
+  }
+
+  /**
+   * Returns the names of the variables, cut to the length Stata allows.
+   * Stata rejects duplicate names, so names that end up taken get a _2, _3...
+   * suffix instead. Names that are short enough to be kept whole take
+   * precedence over cut ones.
+   */
+  static String[] getUniqueNames(List<DtaVariable> variables) {
+    Set<String> wholeNames = new HashSet<>();
+    for (DtaVariable variable : variables)
+      if (variable.stataName.length() <= MAX_NAME_CHARS)
+        wholeNames.add(variable.stataName);
+
+    String[] names = new String[variables.size()];
+    Set<String> taken = new HashSet<>();
+    for (int i = 0; i < variables.size(); i++) {
+      String stataName = variables.get(i).stataName;
+      String base = stataName.length() > MAX_NAME_CHARS ? stataName.substring(0, MAX_NAME_CHARS) : stataName;
+      String name = base;
+      int version = 1;
+      while (taken.contains(name) || (!name.equals(stataName) && wholeNames.contains(name))) {
+        String suffix = "_" + (++version);
+        name = base.substring(0, Math.min(base.length(), MAX_NAME_CHARS - suffix.length())) + suffix;
+      }
+      taken.add(name);
+      names[i] = name;
+    }
+    return names;
+  }
+
+  private static long toDoubleBits(String value) {
+    if (value == null)
+      return MISSING_DOUBLE;
+    String trimmed = value.trim();
+    if (trimmed.isEmpty())
+      return MISSING_DOUBLE;
+    if (trimmed.equalsIgnoreCase("true"))
+      return Double.doubleToLongBits(1);
+    if (trimmed.equalsIgnoreCase("false"))
+      return Double.doubleToLongBits(0);
+    try {
+      double d = Double.parseDouble(trimmed);
+      return Double.isNaN(d) || Double.isInfinite(d) ? MISSING_DOUBLE : Double.doubleToLongBits(d);
+    } catch (NumberFormatException e) {
+      return MISSING_DOUBLE;
+    }
+  }
+
+  /**
+   * Returns the UTF-8 bytes of the value, cut to fit in the given number of
+   * bytes without splitting a character.
+   */
+  private static byte[] truncate(String value, int maxBytes) {
+    byte[] bytes = value.getBytes(UTF_8);
+    if (bytes.length <= maxBytes)
+      return bytes;
+    int length = maxBytes;
+    // step back over UTF-8 continuation bytes
+    while (length > 0 && (bytes[length] & 0xC0) == 0x80)
+      length--;
+    byte[] truncated = new byte[length];
+    System.arraycopy(bytes, 0, truncated, 0, length);
+    return truncated;
+  }
+
+  /**
+   * Writes the value into a null padded field of the given width.
+   */
+  private void fixed(String value, int width) throws IOException {
+    padded(truncate(value, width), width);
+  }
+
+  /**
+   * Writes the value into a null padded field of the given width, keeping
+   * the last byte for the null terminator.
+   */
+  private void terminated(String value, int width) throws IOException {
+    padded(truncate(value, width - 1), width);
+  }
+
+  private void padded(byte[] bytes, int width) throws IOException {
+    bytes(bytes);
+    for (int i = bytes.length; i < width; i++)
+      buffer(1).put((byte) 0);
+  }
+
+  private void tag(String tag) throws IOException {
+    bytes(tag.getBytes(US_ASCII));
+  }
+
+  private void bytes(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      if (!buffer.hasRemaining())
+        flush();
+      int length = Math.min(buffer.remaining(), bytes.length - offset);
+      buffer.put(bytes, offset, length);
+      offset += length;
+    }
+  }
+
+  private ByteBuffer buffer(int size) throws IOException {
+    if (buffer.remaining() < size)
+      flush();
+    return buffer;
+  }
+
+  private long position() throws IOException {
+    return channel.position() + buffer.position();
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.END_TAG;
+import static org.xmlpull.v1.XmlPullParser.START_TAG;
+import static org.xmlpull.v1.XmlPullParser.TEXT;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.javarosa.core.model.instance.TreeElement;
+import org.kxml2.io.KXmlParser;
+import org.kxml2.kdom.Element;
+import org.kxml2.kdom.Node;
+import org.opendatakit.aggregate.form.XFormParameters;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.ParsingException;
+import org.opendatakit.briefcase.util.XmlManipulationUtils.FormInstanceMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Reads the values of submissions by walking their XML in lockstep with the
+ * TreeElement schema of the form, without building a DOM.
+ * <p>
+ * Elements the schema declares as groups become {@link Group}s, fields
+ * become their text, and anything the schema doesn't know about is skipped,
+ * except for the meta block of the submission. Values are then looked up by
+ * element name instead of scanning the children of each element.
+ * <p>
+ * Instances are immutable once built, and can be shared between threads.
+ */
+final class SubmissionReader {
+  private static final Logger log = LoggerFactory.getLogger(SubmissionReader.class);
+  private static final String META = "meta";
+
+  private final TreeElement schema;
+  // children of each group of the schema, by name
+  private final Map<TreeElement, Map<String, TreeElement>> fieldsByGroup = new IdentityHashMap<>();
+
+  SubmissionReader(TreeElement schema) {
+    this.schema = schema;
+    index(schema);
+  }
+
+  private void index(TreeElement group) {
+    Map<String, TreeElement> fields = new HashMap<>();
+    for (int i = 0; i < group.getNumChildren(); i++) {
+      TreeElement field = (TreeElement) group.getChildAt(i);
+      if (!fields.containsKey(field.getName())) {
+        fields.put(field.getName(), field);
+        if (field.getNumChildren() > 0)
+          index(field);
+      }
+    }
+    fieldsByGroup.put(group, fields);
+  }
+
+  /**
+   * Reads a submission file. Submissions that can't be parsed as they are go
+   * through {@link XmlManipulationUtils#parseXml(File)}, which tries to fix
+   * them.
+   */
+  Group read(File submission) throws ParsingException, FileSystemException {
+    try (Reader reader = new InputStreamReader(new BufferedInputStream(new FileInputStream(submission)), "UTF-8")) {
+      KXmlParser parser = new KXmlParser();
+      parser.setInput(reader);
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      parser.nextTag();
+      Group root = new Group();
+      for (int i = 0; i < parser.getAttributeCount(); i++)
+        root.attributes.put(parser.getAttributeName(i), parser.getAttributeValue(i));
+      readGroup(parser, schema, root, true);
+      return root;
+    } catch (XmlPullParserException e) {
+      log.warn("Unable to stream submission " + submission.getPath() + ", parsing it as a document", e);
+      return read(XmlManipulationUtils.parseXml(submission).getRootElement());
+    } catch (IOException e) {
+      throw new FileSystemException("Failed while reading submission xml: " + e.toString());
+    }
+  }
+
+  /**
+   * Reads a submission that has already been parsed, like a decrypted one.
+   */
+  Group read(Element submission) {
+    Group root = new Group();
+    for (int i = 0; i < submission.getAttributeCount(); i++)
+      root.attributes.put(submission.getAttributeName(i), submission.getAttributeValue(i));
+    readGroup(submission, schema, root, true);
+    return root;
+  }
+
+  private void readGroup(KXmlParser parser, TreeElement schemaGroup, Group group, boolean isRoot) throws XmlPullParserException, IOException {
+    int type;
+    while ((type = parser.next()) != END_TAG) {
+      if (type == END_DOCUMENT)
+        throw new XmlPullParserException("Unexpected end of document");
+      if (type != START_TAG)
+        continue;
+      String name = parser.getName();
+      TreeElement field = (schemaGroup == null) ? null : fieldsByGroup.get(schemaGroup).get(name);
+      if (field != null && field.getNumChildren() > 0) {
+        Group child = new Group();
+        readGroup(parser, field, child, false);
+        group.add(name, child);
+      } else if (field != null || schemaGroup == null) {
+        group.add(name, readText(parser));
+      } else if (isRoot && name.equals(META)) {
+        // the metadata is needed even when the form doesn't declare it
+        Group child = new Group();
+        readGroup(parser, null, child, false);
+        group.add(name, child);
+      } else {
+        skip(parser);
+      }
+    }
+  }
+
+  private static String readText(KXmlParser parser) throws XmlPullParserException, IOException {
+    StringBuilder b = new StringBuilder();
+    int type;
+    while ((type = parser.next()) != END_TAG) {
+      if (type == TEXT)
+        b.append(parser.getText());
+      else if (type == START_TAG)
+        skip(parser);
+      else if (type == END_DOCUMENT)
+        throw new XmlPullParserException("Unexpected end of document");
+    }
+    return b.toString();
+  }
+
+  private static void skip(KXmlParser parser) throws XmlPullParserException, IOException {
+    int depth = 1;
+    while (depth > 0) {
+      switch (parser.next()) {
+        case START_TAG:
+          depth++;
+          break;
+        case END_TAG:
+          depth--;
+          break;
+        case END_DOCUMENT:
+          throw new XmlPullParserException("Unexpected end of document");
+        default:
+          break;
+      }
+    }
+  }
+
+  private void readGroup(Element element, TreeElement schemaGroup, Group group, boolean isRoot) {
+    for (int i = 0; i < element.getChildCount(); i++) {
+      if (element.getType(i) != Node.ELEMENT)
+        continue;
+      Element childElement = element.getElement(i);
+      String name = childElement.getName();
+      TreeElement field = (schemaGroup == null) ? null : fieldsByGroup.get(schemaGroup).get(name);
+      if (field != null && field.getNumChildren() > 0) {
+        Group child = new Group();
+        readGroup(childElement, field, child, false);
+        group.add(name, child);
+      } else if (field != null || schemaGroup == null) {
+        group.add(name, readText(childElement));
+      } else if (isRoot && name.equals(META)) {
+        Group child = new Group();
+        readGroup(childElement, null, child, false);
+        group.add(name, child);
+      }
+    }
+  }
+
+  private static String readText(Element element) {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < element.getChildCount(); i++)
+      if (element.getType(i) == Node.TEXT)
+        b.append(element.getText(i));
+    return b.toString();
+  }
+
+  /**
+   * Same as {@link XmlManipulationUtils#getFormInstanceMetadata(Element)},
+   * for a submission read by this class.
+   */
+  static FormInstanceMetadata getFormInstanceMetadata(Group root) throws ParsingException {
+    String formId = root.getAttribute("id");
+    if (formId == null || formId.isEmpty()) {
+      formId = root.getAttribute("xmlns");
+      if (formId == null)
+        throw new ParsingException("Unable to extract form id");
+    }
+    String modelVersionString = root.getAttribute("version");
+
+    Group meta = root.getGroup(META);
+    String instanceId = (meta == null) ? null : trimToNull(meta.getValue("instanceID"));
+    if (instanceId == null)
+      instanceId = root.getAttribute("instanceID");
+    String base64EncryptedFieldKey = (meta == null) ? null : trimToNull(meta.getValue("base64EncryptedFieldKey"));
+    return new FormInstanceMetadata(new XFormParameters(formId, modelVersionString), instanceId, base64EncryptedFieldKey);
+  }
+
+  private static String trimToNull(String value) {
+    return (value == null || value.isEmpty()) ? null : value.trim();
+  }
+
+  /**
+   * The values of a group of a submission. Fields hold the text of their
+   * element, which is empty when the element is, and null when the element
+   * is not in the submission.
+   */
+  static final class Group {
+    private final Map<String, String> attributes = new HashMap<>();
+    // a String or a Group, or a Repeated list of them when the name repeats
+    private final Map<String, Object> children = new HashMap<>();
+
+    private void add(String name, Object child) {
+      Object current = children.get(name);
+      if (current == null) {
+        children.put(name, child);
+      } else if (current instanceof Repeated) {
+        ((Repeated) current).add(child);
+      } else {
+        Repeated repeated = new Repeated();
+        repeated.add(current);
+        repeated.add(child);
+        children.put(name, repeated);
+      }
+    }
+
+    String getAttribute(String name) {
+      return attributes.get(name);
+    }
+
+    /**
+     * Returns the text of the first field with that name.
+     */
+    String getValue(String name) {
+      Object child = first(name);
+      return (child instanceof String) ? (String) child : null;
+    }
+
+    /**
+     * Returns the first group with that name.
+     */
+    Group getGroup(String name) {
+      Object child = first(name);
+      return (child instanceof Group) ? (Group) child : null;
+    }
+
+    /**
+     * Returns all the groups with that name, like the instances of a repeat
+     * group, in document order.
+     */
+    List<Group> getGroups(String name) {
+      Object child = children.get(name);
+      if (child == null)
+        return Collections.emptyList();
+      List<Group> groups = new ArrayList<>();
+      for (Object o : (child instanceof Repeated) ? (Repeated) child : Collections.singletonList(child))
+        if (o instanceof Group)
+          groups.add((Group) o);
+      return groups;
+    }
+
+    private Object first(String name) {
+      Object child = children.get(name);
+      return (child instanceof Repeated) ? ((Repeated) child).get(0) : child;
+    }
+  }
+
+  private static class Repeated extends ArrayList<Object> {
+    private static final long serialVersionUID = 6917208571424093742L;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.File;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.kxml2.kdom.Document;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.CryptoException;
+import org.opendatakit.briefcase.model.FileSystemException;
+import org.opendatakit.briefcase.model.MissingFilesException;
+import org.opendatakit.briefcase.model.ParsingException;
+import org.opendatakit.briefcase.model.TerminationFuture;
+import org.opendatakit.briefcase.reused.BriefcaseException;
+import org.opendatakit.briefcase.util.FileSystemUtils.DecryptOutcome;
+import org.opendatakit.briefcase.util.VerificationReport.Entry;
+import org.opendatakit.briefcase.util.VerificationReport.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the integrity of the submissions of a form in the storage
+ * directory, without exporting them.
+ * <p>
+ * Submissions of encrypted forms are decrypted in memory and their
+ * signatures checked, like an export would do. Submissions of other forms
+ * are only parsed. Instances are verified in parallel, since a large
+ * archive is bound by disk reads and decryption, not by the single thread
+ * that collects the results.
+ */
+public class SubmissionVerifier {
+  private static final Logger log = LoggerFactory.getLogger(SubmissionVerifier.class);
+  private static final int VERIFY_THREADS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Verifies every instance of a form. Encrypted forms need their private
+   * key to be set in the form definition.
+   *
+   * @throws BriefcaseException if the form is encrypted and has no private key
+   */
+  public static VerificationReport verify(BriefcaseFormDefinition formDefinition, TerminationFuture terminationFuture) throws FileSystemException {
+    // without the key, every submission would be reported as corrupt
+    if (formDefinition.isFileEncryptedForm() && formDefinition.getPrivateKey() == null)
+      throw new BriefcaseException("Missing private key to verify the submissions of encrypted form " + formDefinition.getFormId());
+
+    File instancesDir = FileSystemUtils.getFormInstancesDirectory(formDefinition.getFormDirectory());
+    File[] instances = instancesDir.listFiles(file -> file.isDirectory() && !file.getName().startsWith("."));
+    VerificationReport report = new VerificationReport(formDefinition.getFormId());
+    if (instances == null)
+      return report;
+
+    CryptoContext cryptoContext = new CryptoContext(formDefinition.getPrivateKey());
+    ExecutorService executor = Executors.newFixedThreadPool(VERIFY_THREADS, new BriefcaseThreadFactory("verify"));
+    CompletionService<Entry> verifyCompleter = new ExecutorCompletionService<>(executor);
+    int maxInFlight = VERIFY_THREADS * 2;
+    int inFlight = 0;
+    try {
+      for (File instanceDir : instances) {
+        if (terminationFuture.isCancelled()) {
+          report.markIncomplete();
+          break;
+        }
+        for (; inFlight >= maxInFlight; inFlight--)
+          takeEntry(verifyCompleter, report);
+        verifyCompleter.submit(() -> verifyInstance(formDefinition, cryptoContext, instanceDir));
+        inFlight++;
+      }
+      for (; inFlight > 0; inFlight--)
+        takeEntry(verifyCompleter, report);
+    } finally {
+      executor.shutdownNow();
+    }
+    return report;
+  }
+
+  private static void takeEntry(CompletionService<Entry> verifyCompleter, VerificationReport report) {
+    try {
+      report.add(verifyCompleter.take().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      report.markIncomplete();
+    } catch (ExecutionException e) {
+      log.error("failure during submission verification", e);
+      report.markIncomplete();
+    }
+  }
+
+  private static Entry verifyInstance(BriefcaseFormDefinition formDefinition, CryptoContext cryptoContext, File instanceDir) {
+    String name = instanceDir.getName();
+    File submission = new File(instanceDir, "submission.xml");
+    if (!submission.exists())
+      return new Entry(name, null, Status.MISSING, "Missing submission.xml");
+
+    String instanceId = null;
+    try {
+      Document doc = XmlManipulationUtils.parseXml(submission);
+      instanceId = XmlManipulationUtils.getFormInstanceMetadata(doc.getRootElement()).instanceId;
+      if (!formDefinition.isFileEncryptedForm())
+        return new Entry(name, instanceId, Status.VALID, null);
+
+      // no directory for the decrypted media files, they are only hashed
+      DecryptOutcome outcome = FileSystemUtils.decryptAndValidateSubmission(doc, cryptoContext, instanceDir, null);
+      return outcome.isValidated
+          ? new Entry(name, instanceId, Status.VALID, null)
+          : new Entry(name, instanceId, Status.UNVALIDATED, "Submission signature doesn't match its contents");
+    } catch (MissingFilesException e) {
+      return new Entry(name, instanceId, Status.MISSING, e.getMessage());
+    } catch (ParsingException | FileSystemException | CryptoException e) {
+      return new Entry(name, instanceId, Status.CORRUPT, e.getMessage());
+    } catch (RuntimeException e) {
+      log.error("unexpected failure verifying " + name, e);
+      return new Entry(name, instanceId, Status.CORRUPT, e.toString());
+    }
+  }
+}
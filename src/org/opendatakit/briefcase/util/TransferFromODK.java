@@ -16,12 +16,32 @@
 
 package org.opendatakit.briefcase.util;
 
+import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 import org.apache.commons.io.FileUtils;
 import org.bushe.swing.event.EventBus;
 import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
@@ -32,6 +52,7 @@ import org.opendatakit.briefcase.model.OdkCollectFormDefinition;
 import org.opendatakit.briefcase.model.ParsingException;
 import org.opendatakit.briefcase.model.ServerConnectionInfo;
 import org.opendatakit.briefcase.model.TerminationFuture;
+import org.opendatakit.briefcase.model.TransferAbortEvent;
 import org.opendatakit.briefcase.model.TransferFailedEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +60,7 @@ import org.slf4j.LoggerFactory;
 public class TransferFromODK implements ITransferFromSourceAction {
 
   private static final Logger log = LoggerFactory.getLogger(TransferFromODK.class);
+  private static final int IMPORT_THREADS = Runtime.getRuntime().availableProcessors();
 
   @SuppressWarnings("checkstyle:ParameterName")
   private FilenameFilter fileEndsWithXml = (__, name) -> name.endsWith(".xml");
@@ -108,6 +130,15 @@ public class TransferFromODK implements ITransferFromSourceAction {
 
   @Override
   public boolean doAction() {
+    ExecutorService executor = Executors.newFixedThreadPool(IMPORT_THREADS, new BriefcaseThreadFactory("import"));
+    try {
+      return transferForms(executor);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private boolean transferForms(ExecutorService executor) {
 
     boolean allSuccessful = true;
 
@@ -172,136 +203,13 @@ public class TransferFromODK implements ITransferFromSourceAction {
           });
 
           if (odkFormInstanceDirs != null) {
-            int instanceCount = 1;
-            for (File dir : odkFormInstanceDirs) {
-              if (terminationFuture.isCancelled()) {
-                allSuccessful = isSuccessful = false;
-                fs.setStatusString("aborting retrieving submissions...", true);
-                EventBus.publish(new FormStatusEvent(fs));
-                return false;
-              }
-
-              // 1.1.8 -- submission is saved as submission.xml.
-              // full instance data is stored as directoryName.xml (as is the convention in 1.1.5, 1.1.7)
-              String instanceId = null;
-              File fullXml = new File(dir, dir.getName() + ".xml");
-              File xml = new File(dir, "submission.xml");
-              if (!xml.exists() && fullXml.exists()) {
-                xml = fullXml; // e.g., 1.1.5, 1.1.7
-              }
-
-              // this is a hack added to support easier generation of large test cases where we 
-              // copy a single instance directory repeatedly.  Normally the xml submission file
-              // has the name of the enclosing directory, but if you copy directories, this won't
-              // be the case.  In this instance, if there is one xml file in the directory,
-              // rename it to match the directory name.
-              if (!xml.exists()) {
-                File[] xmlFiles = dir.listFiles(fileEndsWithXml);
-
-                if (xmlFiles.length == 1) {
-                  try {
-                    FileUtils.moveFile(xmlFiles[0], xml);
-                  } catch (IOException e) {
-                    allSuccessful = isSuccessful = false;
-                    String msg = "unable to rename form instance xml";
-                    log.error(msg, e);
-                    fs.setStatusString(msg + ": " + e.getMessage(), false);
-                    EventBus.publish(new FormStatusEvent(fs));
-                    continue;
-                  }
-                }
-              }
-
-              if (xml.exists()) {
-                //Check if the instance has an instanceID
-                try {
-                  XmlManipulationUtils.FormInstanceMetadata formInstanceMetadata =
-                      XmlManipulationUtils.getFormInstanceMetadata(XmlManipulationUtils.parseXml(xml)
-                          .getRootElement());
-                  instanceId = formInstanceMetadata.instanceId;
-                } catch (ParsingException e) {
-                  log.error("failed to get instance id from submission", e);
-                }
-
-                // OK, we can copy the directory off...
-                // Briefcase instances directory name is arbitrary.
-                // Rename the xml within that to always be "submission.xml"
-                // to remove the correspondence to the directory name.
-                File scratchInstance = FileSystemUtils.getFormSubmissionDirectory(destinationFormInstancesDir, dir.getName());
-                String safeName = scratchInstance.getName();
-
-                int i = 2;
-                boolean same = false;
-                while (scratchInstance.exists()) {
-                  File[] contents = scratchInstance.listFiles(fileEndsWithXml);
-                  if (contents == null || contents.length == 0)
-                    break;
-                  if (contents.length == 1) {
-                    String itsInstanceId = null;
-                    try {
-                      XmlManipulationUtils.FormInstanceMetadata formInstanceMetadata =
-                          XmlManipulationUtils.getFormInstanceMetadata(XmlManipulationUtils.parseXml(contents[0])
-                              .getRootElement());
-                      itsInstanceId = formInstanceMetadata.instanceId;
-
-                      //Check if the above ODK file(xml) instanceId is equal to this briefcase file instanceId then compare their MD5 hashes
-                      //if yes don't copy it, skip to next file
-                      if (itsInstanceId != null && itsInstanceId.equals(instanceId) &&
-                          FileSystemUtils.getMd5Hash(xml).equals(FileSystemUtils.getMd5Hash(contents[0]))) {
-                        same = true;
-                        break;
-                      }
-                    } catch (ParsingException e) {
-                      log.error("failed to parse submission", e);
-                    }
-                  }
-
-                  scratchInstance = new File(destinationFormInstancesDir, safeName + "-" + Integer.toString(i));
-                  i++;
-                }
-
-                if (same) {
-                  fs.setStatusString("already present - skipping: " + xml.getName(), true);
-                  EventBus.publish(new FormStatusEvent(fs));
-                  continue;
-                }
-
-                try {
-                  FileUtils.copyDirectory(dir, scratchInstance);
-                } catch (IOException e) {
-                  allSuccessful = isSuccessful = false;
-                  String msg = "unable to copy saved instance";
-                  log.error(msg, e);
-                  fs.setStatusString(msg + ": " + e.getMessage(), false);
-                  EventBus.publish(new FormStatusEvent(fs));
-                  continue;
-                }
-
-                if (xml.equals(fullXml)) {
-                  // need to rename
-                  File odkSubmissionFile = new File(scratchInstance, fullXml.getName());
-                  File scratchSubmissionFile = new File(scratchInstance, "submission.xml");
-
-                  try {
-                    FileUtils.moveFile(odkSubmissionFile, scratchSubmissionFile);
-                  } catch (IOException e) {
-                    allSuccessful = isSuccessful = false;
-                    String msg = "unable to rename submission file to submission.xml";
-                    log.error(msg, e);
-                    fs.setStatusString(msg + ": " + e.getMessage(), false);
-                    EventBus.publish(new FormStatusEvent(fs));
-                    continue;
-                  }
-                } else {
-                  // delete the full xml file (keep only the submission.xml)
-                  File odkSubmissionFile = new File(scratchInstance, fullXml.getName());
-                  odkSubmissionFile.delete();
-                }
-
-                fs.setStatusString(String.format("retrieving (%1$d)", instanceCount), true);
-                EventBus.publish(new FormStatusEvent(fs));
-                ++instanceCount;
-              }
+            if (!importInstances(executor, fs, odkFormInstanceDirs, destinationFormInstancesDir))
+              allSuccessful = isSuccessful = false;
+            if (terminationFuture.isCancelled()) {
+              allSuccessful = isSuccessful = false;
+              fs.setStatusString("aborting retrieving submissions...", true);
+              EventBus.publish(new FormStatusEvent(fs));
+              return false;
             }
           }
 
@@ -339,6 +247,159 @@ public class TransferFromODK implements ITransferFromSourceAction {
     return allSuccessful;
   }
 
+  /**
+   * Copies the instance directories of a form from ODK Collect into briefcase
+   * storage, several at a time. The instances already in storage are indexed
+   * by instanceID beforehand, so that spotting one that was imported before
+   * doesn't mean parsing and hashing every instance with a colliding name.
+   */
+  private boolean importInstances(ExecutorService executor, FormStatus fs, File[] odkFormInstanceDirs, File destinationFormInstancesDir) {
+    boolean allSuccessful = true;
+    try {
+      InstanceIndex index = indexInstances(executor, destinationFormInstancesDir);
+      AtomicInteger instanceCount = new AtomicInteger(1);
+      CompletionService<Boolean> importCompleter = new ExecutorCompletionService<>(executor);
+      for (File dir : odkFormInstanceDirs)
+        importCompleter.submit(() -> importInstance(fs, dir, index, instanceCount));
+      for (int i = 0; i < odkFormInstanceDirs.length; i++) {
+        try {
+          allSuccessful = importCompleter.take().get() && allSuccessful;
+        } catch (ExecutionException e) {
+          allSuccessful = false;
+          String msg = "unable to copy saved instance";
+          log.error(msg, e.getCause());
+          fs.setStatusString(msg + ": " + e.getCause().getMessage(), false);
+          EventBus.publish(new FormStatusEvent(fs));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      terminationFuture.markAsCancelled(new TransferAbortEvent("Interrupted while importing instances"));
+      allSuccessful = false;
+    }
+    return allSuccessful;
+  }
+
+  private InstanceIndex indexInstances(ExecutorService executor, File instancesDir) throws InterruptedException {
+    InstanceIndex index = new InstanceIndex(instancesDir);
+    File[] dirs = instancesDir.listFiles(File::isDirectory);
+    if (dirs == null)
+      return index;
+    List<Future<?>> indexed = new ArrayList<>();
+    for (File dir : dirs) {
+      indexed.add(executor.submit(() -> {
+        File[] contents = dir.listFiles(fileEndsWithXml);
+        // like before, only instances with a single xml file are considered
+        if (contents != null && contents.length == 1)
+          index.add(readInstanceId(contents[0]), contents[0]);
+      }));
+    }
+    for (Future<?> f : indexed) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        log.error("failed to index instance", e.getCause());
+      }
+    }
+    return index;
+  }
+
+  private boolean importInstance(FormStatus fs, File dir, InstanceIndex index, AtomicInteger instanceCount) {
+    if (terminationFuture.isCancelled())
+      return false;
+
+    // 1.1.8 -- submission is saved as submission.xml.
+    // full instance data is stored as directoryName.xml (as is the convention in 1.1.5, 1.1.7)
+    File fullXml = new File(dir, dir.getName() + ".xml");
+    File xml = new File(dir, "submission.xml");
+    if (!xml.exists() && fullXml.exists()) {
+      xml = fullXml; // e.g., 1.1.5, 1.1.7
+    }
+
+    // this is a hack added to support easier generation of large test cases where we 
+    // copy a single instance directory repeatedly.  Normally the xml submission file
+    // has the name of the enclosing directory, but if you copy directories, this won't
+    // be the case.  In this instance, if there is one xml file in the directory,
+    // rename it to match the directory name.
+    if (!xml.exists()) {
+      File[] xmlFiles = dir.listFiles(fileEndsWithXml);
+
+      if (xmlFiles != null && xmlFiles.length == 1) {
+        try {
+          FileUtils.moveFile(xmlFiles[0], xml);
+        } catch (IOException e) {
+          String msg = "unable to rename form instance xml";
+          log.error(msg, e);
+          fs.setStatusString(msg + ": " + e.getMessage(), false);
+          EventBus.publish(new FormStatusEvent(fs));
+          return false;
+        }
+      }
+    }
+
+    if (!xml.exists())
+      return true;
+
+    // OK, we can copy the directory off...
+    // Briefcase instances directory name is arbitrary.
+    // Rename the xml within that to always be "submission.xml"
+    // to remove the correspondence to the directory name.
+    File scratchInstance = index.claim(dir.getName(), readInstanceId(xml), xml);
+    if (scratchInstance == null) {
+      fs.setStatusString("already present - skipping: " + xml.getName(), true);
+      EventBus.publish(new FormStatusEvent(fs));
+      return true;
+    }
+
+    try {
+      copyInstance(dir, xml, fullXml, scratchInstance);
+    } catch (IOException e) {
+      String msg = "unable to copy saved instance";
+      log.error(msg, e);
+      fs.setStatusString(msg + ": " + e.getMessage(), false);
+      EventBus.publish(new FormStatusEvent(fs));
+      return false;
+    }
+
+    fs.setStatusString(String.format("retrieving (%1$d)", instanceCount.getAndIncrement()), true);
+    EventBus.publish(new FormStatusEvent(fs));
+    return true;
+  }
+
+  private static String readInstanceId(File xml) {
+    try {
+      return XmlManipulationUtils.getFormInstanceMetadata(XmlManipulationUtils.parseXml(xml).getRootElement()).instanceId;
+    } catch (ParsingException e) {
+      log.error("failed to get instance id from submission", e);
+      return null;
+    }
+  }
+
+  /**
+   * Copies an instance directory, keeping only its submission file, which
+   * gets copied as submission.xml.
+   */
+  private static void copyInstance(File dir, File xml, File fullXml, File scratchInstance) throws IOException {
+    Path source = dir.toPath();
+    Path target = scratchInstance.toPath();
+    Path submission = xml.toPath();
+    Path fullSubmission = fullXml.toPath();
+    try (Stream<Path> paths = Files.walk(source)) {
+      Iterator<Path> it = paths.iterator();
+      while (it.hasNext()) {
+        Path path = it.next();
+        if (Files.isDirectory(path))
+          Files.createDirectories(target.resolve(source.relativize(path)));
+        else if (path.equals(submission))
+          Files.copy(path, target.resolve("submission.xml"), REPLACE_EXISTING, COPY_ATTRIBUTES);
+        else if (!path.equals(fullSubmission))
+          Files.copy(path, target.resolve(source.relativize(path)), REPLACE_EXISTING, COPY_ATTRIBUTES);
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
   @Override
   public boolean isSourceDeletable() {
     return true;
@@ -350,6 +411,79 @@ public class TransferFromODK implements ITransferFromSourceAction {
     throw new RuntimeException("This class has no transfer settings");
   }
 
+  /**
+   * The instances of a form in briefcase storage, by instanceID. It also hands
+   * out the directories of new instances, so that concurrent imports never
+   * pick the same one, or import the same submission twice.
+   */
+  private static class InstanceIndex {
+    private final File instancesDir;
+    private final Map<String, List<File>> submissionsByInstanceId = new HashMap<>();
+    private final Set<String> claimedDirNames = new HashSet<>();
+
+    InstanceIndex(File instancesDir) {
+      this.instancesDir = instancesDir;
+    }
+
+    synchronized void add(String instanceId, File submission) {
+      if (instanceId != null)
+        submissionsByInstanceId.computeIfAbsent(instanceId, id -> new ArrayList<>()).add(submission);
+    }
+
+    /**
+     * Returns the directory a submission should be copied to, or null if the
+     * same submission is already in storage.
+     * <p>
+     * Submissions with the same instanceID are compared by their MD5 hashes
+     * without holding the lock. Only the ones added meanwhile are compared
+     * again before the directory gets claimed.
+     */
+    File claim(String dirName, String instanceId, File submission) {
+      String md5Hash = null;
+      int compared = 0;
+      while (true) {
+        List<File> candidates = getSubmissions(instanceId);
+        if (candidates.size() > compared) {
+          if (md5Hash == null)
+            md5Hash = FileSystemUtils.getMd5Hash(submission);
+          for (File other : candidates.subList(compared, candidates.size()))
+            if (md5Hash != null && md5Hash.equals(FileSystemUtils.getMd5Hash(other)))
+              return null;
+          compared = candidates.size();
+        }
+        synchronized (this) {
+          if (getSubmissions(instanceId).size() == compared)
+            return claimDir(dirName, instanceId, submission);
+        }
+      }
+    }
+
+    private synchronized List<File> getSubmissions(String instanceId) {
+      List<File> submissions = instanceId == null ? null : submissionsByInstanceId.get(instanceId);
+      return submissions == null ? Collections.emptyList() : new ArrayList<>(submissions);
+    }
+
+    private synchronized File claimDir(String dirName, String instanceId, File submission) {
+      String safeName = FileSystemUtils.asFilesystemSafeName(dirName);
+      File instanceDir = new File(instancesDir, safeName);
+      for (int i = 2; isTaken(instanceDir); i++)
+        instanceDir = new File(instancesDir, safeName + "-" + i);
+      claimedDirNames.add(instanceDir.getName());
+      add(instanceId, submission);
+      return instanceDir;
+    }
+
+    private boolean isTaken(File instanceDir) {
+      if (claimedDirNames.contains(instanceDir.getName()))
+        return true;
+      if (!instanceDir.exists())
+        return false;
+      // directories without submissions get reused
+      File[] contents = instanceDir.listFiles((dir, name) -> name.endsWith(".xml"));
+      return contents == null ? instanceDir.isFile() : contents.length > 0;
+    }
+  }
+
   public static void pull(Path odk, List<FormStatus> forms) {
     TransferFromODK action = new TransferFromODK(odk.toFile(), new TerminationFuture(), forms);
     if (!action.doAction()) {
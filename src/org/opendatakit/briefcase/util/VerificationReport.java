@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.briefcase.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of verifying the submissions of a form with {@link SubmissionVerifier}.
+ * <p>
+ * Every instance is counted, but only the ones with problems are kept, so
+ * that the report of a large archive stays small.
+ */
+public class VerificationReport {
+
+  public enum Status {
+    /** Decrypted and its signature matches */
+    VALID,
+    /** Decrypted, but its signature can't be or wasn't confirmed */
+    UNVALIDATED,
+    /** Some of the files listed in its manifest are missing */
+    MISSING,
+    /** Its files can't be read, parsed or decrypted */
+    CORRUPT
+  }
+
+  public static class Entry {
+    public final String instanceDir;
+    public final String instanceId;
+    public final Status status;
+    public final String message;
+
+    Entry(String instanceDir, String instanceId, Status status, String message) {
+      this.instanceDir = instanceDir;
+      this.instanceId = instanceId;
+      this.status = status;
+      this.message = message;
+    }
+  }
+
+  private final String formId;
+  private final Map<Status, Integer> counts = new EnumMap<>(Status.class);
+  private final List<Entry> problems = new ArrayList<>();
+  private boolean complete = true;
+
+  VerificationReport(String formId) {
+    this.formId = formId;
+    for (Status status : Status.values())
+      counts.put(status, 0);
+  }
+
+  synchronized void add(Entry entry) {
+    counts.put(entry.status, counts.get(entry.status) + 1);
+    if (entry.status != Status.VALID)
+      problems.add(entry);
+  }
+
+  synchronized void markIncomplete() {
+    complete = false;
+  }
+
+  public String getFormId() {
+    return formId;
+  }
+
+  public synchronized int getCount(Status status) {
+    return counts.get(status);
+  }
+
+  public synchronized int getTotal() {
+    return counts.values().stream().mapToInt(Integer::intValue).sum();
+  }
+
+  /**
+   * Returns the instances that are not {@link Status#VALID}, sorted by
+   * their instance directory.
+   */
+  public synchronized List<Entry> getProblems() {
+    List<Entry> sorted = new ArrayList<>(problems);
+    sorted.sort(Comparator.comparing(entry -> entry.instanceDir));
+    return sorted;
+  }
+
+  /**
+   * Returns false if the verification was cancelled before going through
+   * all the instances.
+   */
+  public synchronized boolean isComplete() {
+    return complete;
+  }
+
+  public String getSummary() {
+    StringBuilder b = new StringBuilder();
+    b.append("Verified ").append(getTotal()).append(" submissions of form ").append(formId).append(":");
+    for (Status status : Status.values())
+      b.append(" ").append(getCount(status)).append(" ").append(status.name().toLowerCase());
+    if (!isComplete())
+      b.append(" (cancelled)");
+    return b.toString();
+  }
+
+  /**
+   * Writes the problems as a CSV file with the columns
+   * instanceDir, instanceID, status and message.
+   */
+  public void write(Path file) throws IOException {
+    try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      w.write("instanceDir,instanceID,status,message\n");
+      for (Entry entry : getProblems()) {
+        w.write(csvField(entry.instanceDir) + "," + csvField(entry.instanceId) + ","
+            + entry.status.name() + "," + csvField(entry.message) + "\n");
+      }
+    }
+  }
+
+  private static String csvField(String value) {
+    if (value == null)
+      return "";
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+}
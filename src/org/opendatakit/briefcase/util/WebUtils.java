@@ -22,6 +22,15 @@ import java.net.URLEncoder;
 import java.text.DateFormat;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -95,6 +104,46 @@ public final class WebUtils {
   private static final String PATTERN_YYYY_MM_DD_DATE_ONLY_NO_TIME_DASH = "yyyy-MM-dd";
   private static final String PATTERN_NO_DATE_TIME_ONLY = "HH:mm:ss.SSS";
 
+  private static final String[] ISO8601_PATTERNS = new String[]{
+      PATTERN_ISO8601};
+
+  private static final String[] LOCALIZED_PARSE_PATTERNS = new String[]{
+      // try the common HTTP date formats that have time zones
+      PATTERN_RFC1123,
+      PATTERN_RFC1036,
+      PATTERN_DATE_TOSTRING};
+
+  private static final String[] LOCALIZED_NO_TZ_PARSE_PATTERNS = new String[]{
+      // ones without timezones... (will assume UTC)
+      PATTERN_ASCTIME};
+
+  private static final String[] TZ_PARSE_PATTERNS = new String[]{
+      PATTERN_ISO8601,
+      PATTERN_ISO8601_DATE,
+      PATTERN_ISO8601_TIME};
+
+  private static final String[] NO_TZ_PARSE_PATTERNS = new String[]{
+      // ones without timezones... (will assume UTC)
+      PATTERN_ISO8601_WITHOUT_ZONE,
+      PATTERN_NO_DATE_TIME_ONLY,
+      PATTERN_YYYY_MM_DD_DATE_ONLY_NO_TIME_DASH};
+
+  /**
+   * The dateTime values written by JavaRosa and Aggregate, like
+   * 2018-01-15T10:20:30.123+01:00, with the offset also as +0100 or Z.
+   */
+  private static final DateTimeFormatter JAVAROSA_DATE_TIME = new DateTimeFormatterBuilder()
+      .append(DateTimeFormatter.ISO_LOCAL_DATE)
+      .appendLiteral('T')
+      .appendPattern("HH:mm:ss.SSS")
+      .optionalStart().appendOffset("+HH:MM", "Z").optionalEnd()
+      .optionalStart().appendOffset("+HHMM", "Z").optionalEnd()
+      .toFormatter()
+      .withResolverStyle(ResolverStyle.STRICT);
+
+  // SimpleDateFormat switches to the Julian calendar before this year
+  private static final int FIRST_GREGORIAN_YEAR = 1583;
+
   public static final String OPEN_ROSA_VERSION_HEADER = "X-OpenRosa-Version";
   public static final String OPEN_ROSA_VERSION = "1.0";
   private static final String DATE_HEADER = "Date";
@@ -196,33 +245,11 @@ public final class WebUtils {
     if (value == null || value.length() == 0)
       return null;
 
-    String[] iso8601Pattern = new String[]{
-        PATTERN_ISO8601};
-
-    String[] localizedParsePatterns = new String[]{
-        // try the common HTTP date formats that have time zones
-        PATTERN_RFC1123,
-        PATTERN_RFC1036,
-        PATTERN_DATE_TOSTRING};
-
-    String[] localizedNoTzParsePatterns = new String[]{
-        // ones without timezones... (will assume UTC)
-        PATTERN_ASCTIME};
-
-    String[] tzParsePatterns = new String[]{
-        PATTERN_ISO8601,
-        PATTERN_ISO8601_DATE,
-        PATTERN_ISO8601_TIME};
-
-    String[] noTzParsePatterns = new String[]{
-        // ones without timezones... (will assume UTC)
-        PATTERN_ISO8601_WITHOUT_ZONE,
-        PATTERN_NO_DATE_TIME_ONLY,
-        PATTERN_YYYY_MM_DD_DATE_ONLY_NO_TIME_DASH};
-
-    Date d = null;
+    Date d = parseJavaRosaDate(value);
+    if (d != null)
+      return d;
     // iso8601 parsing is sometimes off-by-one when JR does it...
-    d = parseDateSubset(value, iso8601Pattern, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, ISO8601_PATTERNS, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
     // try to parse with the JavaRosa parsers
@@ -236,23 +263,23 @@ public final class WebUtils {
     if (d != null)
       return d;
     // try localized and english text parsers (for Web headers and interactive filter spec.)
-    d = parseDateSubset(value, localizedParsePatterns, Locale.ENGLISH, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_PARSE_PATTERNS, Locale.ENGLISH, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
-    d = parseDateSubset(value, localizedParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_PARSE_PATTERNS, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
-    d = parseDateSubset(value, localizedNoTzParsePatterns, Locale.ENGLISH, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_NO_TZ_PARSE_PATTERNS, Locale.ENGLISH, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
-    d = parseDateSubset(value, localizedNoTzParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, LOCALIZED_NO_TZ_PARSE_PATTERNS, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
     // try other common patterns that might not quite match JavaRosa parsers
-    d = parseDateSubset(value, tzParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, TZ_PARSE_PATTERNS, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
-    d = parseDateSubset(value, noTzParsePatterns, null, TimeZone.getTimeZone("GMT"));
+    d = parseDateSubset(value, NO_TZ_PARSE_PATTERNS, null, TimeZone.getTimeZone("GMT"));
     if (d != null)
       return d;
     // try the locale- and timezone- specific parsers
@@ -283,6 +310,31 @@ public final class WebUtils {
     throw new IllegalArgumentException("Unable to parse the date: " + value);
   }
 
+  /**
+   * Fast path of {@link #parseDate(String)} for the dateTime and date values
+   * JavaRosa writes, which are most of what exports parse. Returns null for
+   * anything else, including values the slow path would read differently.
+   */
+  private static Date parseJavaRosaDate(String value) {
+    try {
+      if (value.length() == 10) {
+        // date only, at the start of the day like JavaRosa does
+        LocalDate date = LocalDate.parse(value, DateTimeFormatter.ISO_LOCAL_DATE);
+        if (date.getYear() < FIRST_GREGORIAN_YEAR)
+          return null;
+        return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+      }
+      if (value.length() < 24 || value.charAt(10) != 'T')
+        return null;
+      TemporalAccessor parsed = JAVAROSA_DATE_TIME.parse(value);
+      if (!parsed.isSupported(ChronoField.OFFSET_SECONDS) || parsed.get(ChronoField.YEAR) < FIRST_GREGORIAN_YEAR)
+        return null;
+      return Date.from(OffsetDateTime.from(parsed).toInstant());
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
   public static final String asSubmissionDateTimeString(Date d) {
     if (d == null)
       return null;
@@ -16,6 +16,7 @@
 
 package org.opendatakit.briefcase.util;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -29,6 +30,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.zip.CRC32;
 import org.apache.commons.io.FileUtils;
 import org.javarosa.xform.parse.XFormParser;
 import org.kxml2.io.KXmlParser;
@@ -286,6 +288,72 @@ public class XmlManipulationUtils {
     return doc;
   }
 
+  /**
+   * Parses a submission that is already held in memory, like the decrypted
+   * contents of an encrypted submission.
+   *
+   * @param name the name of the submission, used for logging and debugging
+   */
+  public static Document parseXml(byte[] submission, String name) throws ParsingException, FileSystemException {
+    try (InputStreamReader isr = new InputStreamReader(new ByteArrayInputStream(submission), UTF_8)) {
+      Document doc = new Document();
+      KXmlParser parser = new KXmlParser();
+      parser.setInput(isr);
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      doc.parse(parser);
+      return doc;
+    } catch (XmlPullParserException e) {
+      try {
+        return BadXMLFixer.fixBadXML(submission, name);
+      } catch (CannotFixXMLException e1) {
+        File debugFileLocation = new File(new StorageLocation().getBriefcaseFolder(), "debug");
+        try {
+          if (!debugFileLocation.exists()) {
+            FileUtils.forceMkdir(debugFileLocation);
+          }
+          CRC32 checksum = new CRC32();
+          checksum.update(submission);
+          File debugFile = new File(debugFileLocation, "submission-" + checksum.getValue() + ".xml");
+          FileUtils.writeByteArrayToFile(debugFile, submission);
+        } catch (IOException e2) {
+          throw new RuntimeException(e2);
+        }
+        throw new ParsingException("Failed during parsing of submission Xml: "
+            + e.toString());
+      }
+    } catch (IOException e) {
+      throw new FileSystemException("Failed while reading submission xml: "
+          + e.toString());
+    }
+  }
+
+  /**
+   * Reads the submissionDate attribute of the root element of a submission
+   * without building the whole document. Parsing stops at the first start tag.
+   * Falls back to {@link #parseXml(File)} when the pull parser rejects the
+   * file, so that the usual bad XML fixes are applied.
+   *
+   * @return the attribute value, or null if the root element has none
+   */
+  public static String readSubmissionDate(File submission) throws ParsingException, FileSystemException {
+    try (InputStreamReader isr = new InputStreamReader(new FileInputStream(submission), UTF_8)) {
+      KXmlParser parser = new KXmlParser();
+      parser.setInput(isr);
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      int eventType = parser.getEventType();
+      while (eventType != XmlPullParser.START_TAG && eventType != XmlPullParser.END_DOCUMENT)
+        eventType = parser.next();
+      return eventType == XmlPullParser.START_TAG
+          ? parser.getAttributeValue(null, SUBMISSION_DATE_ATTRIBUTE_NAME)
+          : null;
+    } catch (XmlPullParserException e) {
+      return parseXml(submission).getRootElement().getAttributeValue(null, SUBMISSION_DATE_ATTRIBUTE_NAME);
+    } catch (IOException e) {
+      throw new FileSystemException("Failed while reading submission xml: "
+          + e.toString());
+    }
+  }
+
   public static final List<RemoteFormDefinition> parseFormListResponse(boolean isOpenRosaResponse,
                                                                        Document formListDoc) throws ParsingException {
     // This gets a list of available forms from the specified server.
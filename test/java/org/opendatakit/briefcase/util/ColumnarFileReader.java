@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.opendatakit.briefcase.util.ColumnarFileWriter.Column;
+import org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType;
+import org.opendatakit.briefcase.util.ColumnarFileWriter.Encoding;
+
+/**
+ * Reads back the files written by {@link ColumnarFileWriter}, all at once.
+ */
+class ColumnarFileReader {
+  final List<Column> columns = new ArrayList<>();
+  final List<Integer> rowGroupRows = new ArrayList<>();
+  final List<List<Object>> rows = new ArrayList<>();
+
+  ColumnarFileReader(File file) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    expectMagic(buffer, 0);
+    if (buffer.get(4) != 1)
+      throw new IOException("Unknown version " + buffer.get(4));
+    expectMagic(buffer, buffer.limit() - 4);
+    int footerLength = buffer.getInt(buffer.limit() - 8);
+
+    ByteBuffer footer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    footer.position(buffer.limit() - 8 - footerLength);
+    int columnCount = (int) readVarint(footer);
+    for (int c = 0; c < columnCount; c++)
+      columns.add(new Column(readString(footer), ColumnType.values()[footer.get()], Encoding.values()[footer.get()]));
+
+    int rowGroupCount = (int) readVarint(footer);
+    for (int g = 0; g < rowGroupCount; g++) {
+      int rowCount = (int) readVarint(footer);
+      rowGroupRows.add(rowCount);
+      List<List<Object>> groupRows = new ArrayList<>();
+      for (int r = 0; r < rowCount; r++)
+        groupRows.add(new ArrayList<>());
+      for (Column column : columns) {
+        ByteBuffer chunk = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        chunk.position((int) footer.getLong());
+        chunk.limit(chunk.position() + (int) footer.getLong());
+        readChunk(chunk, column, groupRows);
+        if (chunk.hasRemaining())
+          throw new IOException("Unread bytes in chunk of " + column.name);
+      }
+      rows.addAll(groupRows);
+    }
+  }
+
+  private static void readChunk(ByteBuffer chunk, Column column, List<List<Object>> groupRows) {
+    byte[] bitmap = new byte[(groupRows.size() + 7) / 8];
+    chunk.get(bitmap);
+    List<String> dictionary = new ArrayList<>();
+    if (column.encoding == Encoding.DICTIONARY) {
+      int entries = (int) readVarint(chunk);
+      for (int i = 0; i < entries; i++)
+        dictionary.add(readString(chunk));
+    }
+    for (int r = 0; r < groupRows.size(); r++) {
+      if ((bitmap[r / 8] & (1 << (r % 8))) == 0) {
+        groupRows.get(r).add(null);
+        continue;
+      }
+      Object value;
+      switch (column.type) {
+        case INT64:
+        case TIMESTAMP:
+          value = chunk.getLong();
+          break;
+        case DOUBLE:
+          value = chunk.getDouble();
+          break;
+        case BOOLEAN:
+          value = chunk.get() != 0;
+          break;
+        case DATE:
+          value = chunk.getInt();
+          break;
+        case STRING:
+        default:
+          value = column.encoding == Encoding.DICTIONARY
+              ? dictionary.get((int) readVarint(chunk))
+              : readString(chunk);
+      }
+      groupRows.get(r).add(value);
+    }
+  }
+
+  private static void expectMagic(ByteBuffer buffer, int offset) throws IOException {
+    byte[] magic = new byte[4];
+    for (int i = 0; i < magic.length; i++)
+      magic[i] = buffer.get(offset + i);
+    if (!"ODKC".equals(new String(magic, US_ASCII)))
+      throw new IOException("Not a columnar file");
+  }
+
+  private static long readVarint(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[(int) readVarint(buffer)];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.briefcase.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.BOOLEAN;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.DATE;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.DOUBLE;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.INT64;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.STRING;
+import static org.opendatakit.briefcase.util.ColumnarFileWriter.ColumnType.TIMESTAMP;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.opendatakit.briefcase.util.ColumnarFileWriter.Column;
+import org.opendatakit.briefcase.util.ColumnarFileWriter.Encoding;
+
+public class ColumnarFileWriterTest {
+  private static final List<Column> COLUMNS = Arrays.asList(
+      new Column("name", STRING, Encoding.PLAIN),
+      new Column("choice", STRING, Encoding.DICTIONARY),
+      new Column("count", INT64, Encoding.PLAIN),
+      new Column("weight", DOUBLE, Encoding.PLAIN),
+      new Column("ok", BOOLEAN, Encoding.PLAIN),
+      new Column("day", DATE, Encoding.PLAIN),
+      new Column("time", TIMESTAMP, Encoding.PLAIN)
+  );
+
+  @Test
+  public void readsBackRowsWithNullsAndDictionaries() throws IOException {
+    List<List<Object>> rows = Arrays.asList(
+        Arrays.asList("first", "yes", 1L, 1.5, true, 17000, 1500000000000L),
+        Arrays.asList(null, null, null, null, null, null, null),
+        Arrays.asList("third", "no", -3L, null, false, null, 1500000000001L),
+        Arrays.asList("fourth", "yes", null, -0.25, null, -1, null),
+        Arrays.asList("", "no", Long.MAX_VALUE, 0.0, true, 0, 0L),
+        Arrays.asList("sixth", "maybe", 6L, 6.0, false, 6, 6L),
+        Arrays.asList(null, "yes", null, null, null, null, null),
+        Arrays.asList("eighth", null, 8L, 8.0, true, 8, 8L),
+        Arrays.asList("ninth", "no", 9L, 9.0, false, 9, 9L)
+    );
+    File file = Files.createTempFile("columnar", ".odkc").toFile();
+    try (ColumnarFileWriter writer = new ColumnarFileWriter(file, COLUMNS, 4)) {
+      for (List<Object> row : rows)
+        writer.writeRow(row);
+    }
+
+    ColumnarFileReader reader = new ColumnarFileReader(file);
+    assertEquals(COLUMNS.size(), reader.columns.size());
+    for (int c = 0; c < COLUMNS.size(); c++) {
+      assertEquals(COLUMNS.get(c).name, reader.columns.get(c).name);
+      assertEquals(COLUMNS.get(c).type, reader.columns.get(c).type);
+      assertEquals(COLUMNS.get(c).encoding, reader.columns.get(c).encoding);
+    }
+    assertEquals(Arrays.asList(4, 4, 1), reader.rowGroupRows);
+    assertEquals(rows, reader.rows);
+  }
+
+  @Test
+  public void writesOneEmptyRowGroupWithoutRows() throws IOException {
+    File file = Files.createTempFile("columnar", ".odkc").toFile();
+    new ColumnarFileWriter(file, COLUMNS, 4).close();
+
+    ColumnarFileReader reader = new ColumnarFileReader(file);
+    assertEquals(Collections.singletonList(0), reader.rowGroupRows);
+    assertEquals(Collections.emptyList(), reader.rows);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.opendatakit.briefcase.model.BriefcaseFormDefinition;
+import org.opendatakit.briefcase.model.TerminationFuture;
+
+public class ExportToCsvTest {
+  private Path formDir;
+  private Path formFile;
+  private Path exportDir;
+  private String formXml;
+
+  @Before
+  public void setUp() throws Exception {
+    formDir = Files.createTempDirectory("briefcase").resolve("basic");
+    Files.createDirectories(formDir);
+    formFile = formDir.resolve("basic.xml");
+    exportDir = Files.createTempDirectory("export");
+    formXml = new String(Files.readAllBytes(Paths.get(ExportToCsvTest.class.getResource("/basic.xml").toURI())), UTF_8);
+    Files.write(formFile, formXml.getBytes(UTF_8));
+  }
+
+  @Test
+  public void appendsOnlyNewInstances() throws Exception {
+    addInstance("uuid:1");
+    export();
+    assertEquals(2, readCsv().size());
+
+    addInstance("uuid:2");
+    export();
+    List<String> lines = readCsv();
+    assertEquals(3, lines.size());
+    assertEquals(1, count(lines, "SubmissionDate"));
+    assertEquals(1, count(lines, "uuid:1"));
+    assertEquals(1, count(lines, "uuid:2"));
+  }
+
+  @Test
+  public void exportsEverythingAgainWhenTheColumnsChange() throws Exception {
+    addInstance("uuid:1");
+    export();
+
+    Files.write(formFile, formXml
+        .replace("<test/>", "<test/>\n          <extra/>")
+        .replace("<bind nodeset=\"/basic/test\"", "<bind nodeset=\"/basic/extra\" type=\"string\"/>\n      <bind nodeset=\"/basic/test\"")
+        .getBytes(UTF_8));
+    addInstance("uuid:2");
+    export();
+
+    List<String> lines = readCsv();
+    assertEquals(3, lines.size());
+    assertEquals(1, count(lines, "SubmissionDate"));
+    assertTrue(lines.get(0).contains("extra"));
+    assertEquals(1, count(lines, "uuid:1"));
+    assertEquals(1, count(lines, "uuid:2"));
+  }
+
+  private void addInstance(String instanceId) throws Exception {
+    File instancesDir = FileSystemUtils.getFormInstancesDirectory(formDir.toFile());
+    Path instanceDir = instancesDir.toPath().resolve(instanceId.replace(':', '_'));
+    Files.createDirectories(instanceDir);
+    String submission = "<?xml version='1.0' ?><basic id=\"basic\"><test>yes</test>"
+        + "<meta><instanceID>" + instanceId + "</instanceID></meta></basic>";
+    Files.write(instanceDir.resolve("submission.xml"), submission.getBytes(UTF_8));
+  }
+
+  private void export() throws Exception {
+    BriefcaseFormDefinition form = new BriefcaseFormDefinition(formDir.toFile(), formFile.toFile());
+    ExportToCsv action = new ExportToCsv(new TerminationFuture(), exportDir.toFile(), form, "basic", false, false, null, null);
+    assertTrue(action.doAction());
+  }
+
+  private List<String> readCsv() throws Exception {
+    return Files.readAllLines(exportDir.resolve("basic.csv"), UTF_8);
+  }
+
+  private static long count(List<String> lines, String text) {
+    return lines.stream().filter(line -> line.contains(text)).count();
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+public class JavaRosaParserWrapperTest {
+  private static final int THREADS = 8;
+
+  @Test
+  public void concurrentParsesOfTheSameXmlShareTheForm() throws Exception {
+    String xml = new String(Files.readAllBytes(Paths.get(JavaRosaParserWrapperTest.class.getResource("/basic.xml").toURI())), UTF_8)
+        // a form of its own, not shared with other tests
+        .replace("<h:title>basic</h:title>", "<h:title>concurrent basic</h:title>");
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<JavaRosaParserWrapper>> parses = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        File file = new File("form-" + i + ".xml");
+        parses.add(executor.submit((Callable<JavaRosaParserWrapper>) () -> {
+          start.await();
+          return JavaRosaParserWrapper.parse(file, xml);
+        }));
+      }
+      start.countDown();
+
+      JavaRosaParserWrapper first = parses.get(0).get();
+      assertEquals("concurrent basic", first.getFormName());
+      assertEquals("basic", first.getSubmissionElementDefn().formId);
+      for (int i = 0; i < THREADS; i++) {
+        JavaRosaParserWrapper parsed = parses.get(i).get();
+        assertEquals(new File("form-" + i + ".xml"), parsed.getFormDefinitionFile());
+        assertSame(first.getFormDefn(), parsed.getFormDefn());
+        assertSame(first.getSubmissionElement(), parsed.getSubmissionElement());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void differentXmlIsParsedAgain() throws Exception {
+    String xml = new String(Files.readAllBytes(Paths.get(JavaRosaParserWrapperTest.class.getResource("/basic.xml").toURI())), UTF_8);
+    JavaRosaParserWrapper parsed = JavaRosaParserWrapper.parse(new File("a.xml"), xml);
+    JavaRosaParserWrapper other = JavaRosaParserWrapper.parse(new File("b.xml"), xml.replace("does this work?", "does this still work?"));
+
+    assertNotSame(parsed.getFormDefn(), other.getFormDefn());
+    assertEquals(parsed.getSubmissionElementDefn().formId, other.getSubmissionElementDefn().formId);
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+
+public class MediaStoreTest {
+
+  @Test
+  public void storesAndRestoresFilesByHash() throws IOException {
+    Path briefcase = Files.createTempDirectory("briefcase");
+    Path photo = Files.write(briefcase.resolve("photo.jpg"), "photo".getBytes(UTF_8));
+    String md5Hash = FileSystemUtils.getMd5Hash(photo.toFile());
+    MediaStore store = new MediaStore(briefcase.toFile());
+
+    store.put(md5Hash, photo.toFile());
+    Path target = briefcase.resolve("copy.jpg");
+    assertTrue(store.get(md5Hash, target.toFile()));
+    assertEquals("photo", new String(Files.readAllBytes(target), UTF_8));
+  }
+
+  @Test
+  public void ignoresHashesThatEscapeTheStore() throws IOException {
+    Path briefcase = Files.createTempDirectory("briefcase");
+    Path victim = Files.write(briefcase.resolve("victim"), "victim".getBytes(UTF_8));
+    MediaStore store = new MediaStore(briefcase.toFile());
+
+    File target = briefcase.resolve("target").toFile();
+    assertFalse(store.get("../../victim", target));
+    assertFalse(store.get("../victim", target));
+    assertTrue(Files.exists(victim));
+
+    store.put("../victim2", victim.toFile());
+    assertFalse(Files.exists(briefcase.resolve("victim2")));
+  }
+
+  @Test
+  public void ignoresMalformedHashes() throws IOException {
+    Path briefcase = Files.createTempDirectory("briefcase");
+    Path photo = Files.write(briefcase.resolve("photo.jpg"), "photo".getBytes(UTF_8));
+    MediaStore store = new MediaStore(briefcase.toFile());
+    File target = briefcase.resolve("target").toFile();
+
+    assertFalse(store.get("", target));
+    assertFalse(store.get("a", target));
+    assertFalse(store.get("0123456789abcdef0123456789abcdeg", target));
+    store.put("a", photo.toFile());
+    store.put(null, photo.toFile());
+    assertFalse(Files.exists(briefcase.resolve(MediaStore.MEDIA_STORE_DIR)));
+  }
+}
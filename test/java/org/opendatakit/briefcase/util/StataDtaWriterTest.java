@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.briefcase.util;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class StataDtaWriterTest {
+  private static final String LONG_NAME = "a_variable_name_longer_than_stata_allows";
+  private static final String[] SECTIONS = {
+      "<stata_dta>", "<map>", "<variable_types>", "<varnames>", "<sortlist>", "<formats>",
+      "<value_label_names>", "<variable_labels>", "<characteristics>", "<data>", "<strls>",
+      "<value_labels>", "</stata_dta>"
+  };
+
+  @Test
+  public void makesCutNamesUnique() {
+    String cut = LONG_NAME.substring(0, 32);
+    String[] names = StataDtaWriter.getUniqueNames(Arrays.asList(
+        variable(LONG_NAME + "_1", "double"),
+        variable(LONG_NAME + "_2", "double"),
+        variable(LONG_NAME, "double"),
+        variable(cut, "double")
+    ));
+    assertArrayEquals(new String[]{
+        LONG_NAME.substring(0, 30) + "_2",
+        LONG_NAME.substring(0, 30) + "_3",
+        LONG_NAME.substring(0, 30) + "_4",
+        cut
+    }, names);
+  }
+
+  @Test
+  public void writesReadableDataset() throws IOException {
+    Path dir = Files.createTempDirectory("dta");
+    List<DtaVariable> variables = Arrays.asList(
+        variable(LONG_NAME + "_1", "double"),
+        variable(LONG_NAME + "_2", "double"),
+        variable("text", "str")
+    );
+    ObservationSpool spool = new ObservationSpool(dir.toFile());
+    spool.startObservation("uuid:1");
+    spool.value(LONG_NAME + "_1", "1");
+    spool.value(LONG_NAME + "_2", "2.5");
+    spool.value("text", "hello");
+    spool.endObservation();
+    Map<String, Map<Integer, String>> valueLabels = new HashMap<>();
+    valueLabels.put(LONG_NAME + "_2", Collections.singletonMap(1, "yes"));
+    File file = dir.resolve("data.dta").toFile();
+
+    new StataDtaWriter(variables, spool, valueLabels, "label").write(file);
+    spool.delete();
+
+    ByteBuffer dta = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    expect(dta, "<stata_dta><header><release>118</release><byteorder>LSF</byteorder><K>");
+    assertEquals(3, dta.getShort());
+    expect(dta, "</K><N>");
+    assertEquals(1, dta.getLong());
+
+    dta.position(indexOf(dta, "<map>") + "<map>".length());
+    long[] map = new long[14];
+    for (int i = 0; i < map.length; i++)
+      map[i] = dta.getLong();
+    for (int i = 0; i < SECTIONS.length; i++) {
+      dta.position((int) map[i]);
+      expect(dta, SECTIONS[i]);
+    }
+    assertEquals(dta.capacity(), map[13]);
+
+    dta.position((int) map[3] + "<varnames>".length());
+    String cut = LONG_NAME.substring(0, 32);
+    assertEquals(cut, name(dta));
+    assertEquals(LONG_NAME.substring(0, 30) + "_2", name(dta));
+    assertEquals("text", name(dta));
+
+    dta.position((int) map[9] + "<data>".length());
+    assertEquals(1.0, dta.getDouble(), 0);
+    assertEquals(2.5, dta.getDouble(), 0);
+    byte[] text = new byte[5];
+    dta.get(text);
+    assertEquals("hello", new String(text, UTF_8));
+    expect(dta, "</data>");
+
+    dta.position((int) map[11] + "<value_labels>".length());
+    expect(dta, "<lbl>");
+    dta.getInt();
+    assertEquals(LONG_NAME.substring(0, 30) + "_2", name(dta));
+  }
+
+  @Test
+  public void keepsTheValuesOfFieldsWithTheSameName() throws IOException {
+    Path dir = Files.createTempDirectory("dta");
+    List<DtaVariable> variables = Arrays.asList(
+        new DtaVariable("/data/g1/age", "age", "age", "double", null, null),
+        new DtaVariable("/data/g2/age", "age", "age", "double", null, null)
+    );
+    ObservationSpool spool = new ObservationSpool(dir.toFile());
+    spool.startObservation("uuid:1");
+    spool.value("/data/g1/age", "30");
+    spool.value("/data/g2/age", "40");
+    spool.endObservation();
+    File file = dir.resolve("data.dta").toFile();
+
+    new StataDtaWriter(variables, spool, new HashMap<>(), "label").write(file);
+    spool.delete();
+
+    ByteBuffer dta = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    dta.position(indexOf(dta, "<varnames>") + "<varnames>".length());
+    assertEquals("age", name(dta));
+    assertEquals("age_2", name(dta));
+
+    dta.position(indexOf(dta, "<data>") + "<data>".length());
+    assertEquals(30.0, dta.getDouble(), 0);
+    assertEquals(40.0, dta.getDouble(), 0);
+    expect(dta, "</data>");
+  }
+
+  private static DtaVariable variable(String name, String type) {
+    return new DtaVariable(name, name, name, type, null, null);
+  }
+
+  private static void expect(ByteBuffer buffer, String expected) {
+    byte[] bytes = new byte[expected.length()];
+    buffer.get(bytes);
+    assertEquals(expected, new String(bytes, US_ASCII));
+  }
+
+  private static int indexOf(ByteBuffer buffer, String tag) {
+    String contents = new String(buffer.array(), US_ASCII);
+    return contents.indexOf(tag);
+  }
+
+  private static String name(ByteBuffer buffer) {
+    byte[] field = new byte[129];
+    buffer.get(field);
+    int length = 0;
+    while (field[length] != 0)
+      length++;
+    return new String(field, 0, length, UTF_8);
+  }
+}
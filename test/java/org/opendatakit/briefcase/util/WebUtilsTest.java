@@ -0,0 +1,41 @@
+package org.opendatakit.briefcase.util;
+
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WebUtilsTest {
+
+  @Test
+  public void parseDate_shouldReadJavaRosaDateTimesWithAnyOffsetNotation() {
+    Date expected = Date.from(OffsetDateTime.parse("2018-01-15T10:20:30.123+01:00").toInstant());
+
+    Assert.assertEquals(expected, WebUtils.parseDate("2018-01-15T10:20:30.123+01:00"));
+    Assert.assertEquals(expected, WebUtils.parseDate("2018-01-15T10:20:30.123+0100"));
+    Assert.assertEquals(expected, WebUtils.parseDate("2018-01-15T09:20:30.123Z"));
+  }
+
+  @Test
+  public void parseDate_shouldReadDatesAtTheStartOfTheLocalDay() {
+    Date expected = Date.from(LocalDate.of(2018, 1, 15).atStartOfDay(ZoneId.systemDefault()).toInstant());
+
+    Assert.assertEquals(expected, WebUtils.parseDate("2018-01-15"));
+  }
+
+  @Test
+  public void parseDate_shouldStillReadOtherFormats() {
+    Date expected = Date.from(OffsetDateTime.parse("1994-11-06T08:49:37Z").toInstant());
+
+    Assert.assertEquals(expected, WebUtils.parseDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+  }
+
+  @Test
+  public void parseDate_shouldReturnNullForEmptyValues() {
+    Assert.assertNull(WebUtils.parseDate(null));
+    Assert.assertNull(WebUtils.parseDate(""));
+  }
+
+}